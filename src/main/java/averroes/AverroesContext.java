@@ -0,0 +1,172 @@
+/**
+ * ***************************************************************************** Copyright (c) 2015
+ * Karim Ali and Ondřej Lhoták. All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * <p>Contributors: Karim Ali - initial API and implementation and/or initial documentation
+ * *****************************************************************************
+ */
+package averroes;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import soot.G;
+
+/**
+ * The state of one Averroes job: its options, its class hierarchy, its code generator, etc., along
+ * with its own Soot globals (i.e., {@link G}). Each of those components is created on first use
+ * through {@link #get(Class, Supplier)}, and the usual accessors (e.g., {@link
+ * averroes.soot.Hierarchy#v()}) return the component of the current context.
+ *
+ * <p>The current context is bound to the running thread (see {@link #run(Runnable)}), so one
+ * process can run several jobs back to back, or side by side on different threads. A thread that
+ * is not bound to any context uses the default one, which is all a single job ever needs.
+ *
+ * <p>Work handed to other threads (i.e., every parallel stream and every worker pool) has to run
+ * through {@link #call(Supplier)} of the context of the job, including any call that reaches Soot
+ * (e.g., {@link soot.SootClass#getMethods()} looks up the scene). Otherwise, it silently uses the
+ * default context instead. Processes that run several jobs (see {@link Batch} and {@link Server})
+ * call {@link #requireBoundThreads()}, so such a call fails right away instead.
+ *
+ * @author Karim Ali
+ */
+public class AverroesContext {
+
+  private static final AverroesContext defaultContext;
+  private static final ThreadLocal<AverroesContext> current = new ThreadLocal<AverroesContext>();
+  private static volatile boolean boundThreadsRequired = false;
+
+  // Soot looks up its globals through the current context from now on. The
+  // default context takes over the Soot globals created so far.
+  static {
+    defaultContext = new AverroesContext(G.v());
+    G.setGlobalObjectGetter(
+        new G.GlobalObjectGetter() {
+          @Override
+          public G getG() {
+            return v().soot;
+          }
+
+          @Override
+          public void reset() {
+            v().soot = new G();
+          }
+        });
+  }
+
+  private volatile G soot;
+  private Map<Class<?>, Object> components;
+
+  /** Construct a new context, with fresh Soot globals. */
+  public AverroesContext() {
+    this(new G());
+  }
+
+  private AverroesContext(G soot) {
+    this.soot = soot;
+    components = new ConcurrentHashMap<Class<?>, Object>();
+  }
+
+  /**
+   * Get the context bound to the running thread, or the default context if there's none (unless
+   * {@link #requireBoundThreads()} was called).
+   *
+   * @return
+   */
+  public static AverroesContext v() {
+    AverroesContext context = current.get();
+    if (context != null) {
+      return context;
+    } else if (boundThreadsRequired) {
+      throw new IllegalStateException(
+          "no Averroes context is bound to thread " + Thread.currentThread().getName());
+    }
+    return defaultContext;
+  }
+
+  /**
+   * From now on, make {@link #v()} fail on a thread that is not bound to any context, rather than
+   * use the default context. That's for processes that run several jobs, where the default context
+   * belongs to none of them.
+   */
+  public static void requireBoundThreads() {
+    boundThreadsRequired = true;
+  }
+
+  /**
+   * Get the component of the given type in this context. If there's none yet, it's created by the
+   * given factory. The factory runs outside of any lock, since creating a component (e.g., the
+   * class hierarchy) may look up other components.
+   *
+   * @param type
+   * @param factory
+   * @return
+   */
+  public <T> T get(Class<T> type, Supplier<T> factory) {
+    Object component = components.get(type);
+    if (component == null) {
+      component = factory.get();
+      Object existing = components.putIfAbsent(type, component);
+      if (existing != null) {
+        component = existing;
+      }
+    }
+    return type.cast(component);
+  }
+
+  /**
+   * Get the component of the given type in this context, or null if there's none. Unlike {@link
+   * #get(Class, Supplier)}, that never creates the component.
+   *
+   * @param type
+   * @return
+   */
+  public <T> T find(Class<T> type) {
+    return type.cast(components.get(type));
+  }
+
+  /**
+   * Set the component of the given type in this context (e.g., to reset it).
+   *
+   * @param type
+   * @param component
+   */
+  public <T> void put(Class<T> type, T component) {
+    components.put(type, component);
+  }
+
+  /**
+   * Run the given task with this context bound to the running thread.
+   *
+   * @param task
+   */
+  public void run(Runnable task) {
+    call(
+        () -> {
+          task.run();
+          return null;
+        });
+  }
+
+  /**
+   * Run the given task with this context bound to the running thread, and return its result.
+   *
+   * @param task
+   * @return
+   */
+  public <T> T call(Supplier<T> task) {
+    AverroesContext previous = current.get();
+    current.set(this);
+    try {
+      return task.get();
+    } finally {
+      if (previous == null) {
+        current.remove();
+      } else {
+        current.set(previous);
+      }
+    }
+  }
+}
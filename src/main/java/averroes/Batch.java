@@ -0,0 +1,181 @@
+/**
+ * ***************************************************************************** Copyright (c) 2015
+ * Karim Ali and Ondřej Lhoták. All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * <p>Contributors: Karim Ali - initial API and implementation and/or initial documentation
+ * *****************************************************************************
+ */
+package averroes;
+
+import averroes.options.AverroesOptions;
+import averroes.soot.HierarchySnapshot;
+import averroes.util.MathUtils;
+import averroes.util.TimeUtils;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Runs Averroes on a batch of applications in one JVM. The batch manifest lists one application
+ * per line: its application JAR files, main class, application regex and output directory (i.e.,
+ * the values of -a, -m, -r and -o), separated by white space. Empty lines and lines that start with
+ * # are ignored. All the other options (e.g., the library JAR files and the Java runtime) are given
+ * once on the command line, and they are shared by all the applications:
+ *
+ * <pre>
+ * java -jar averroes.jar batch &lt;manifest&gt; [options]
+ * </pre>
+ *
+ * <p>Each application runs as a separate job, in its own {@link AverroesContext}, so it gets its
+ * own Soot scene, class hierarchy and placeholder library. The library classes that Soot resolves
+ * are shared, though: the jobs with the same library inputs load them from one {@link
+ * HierarchySnapshot} that stays in memory for the whole batch (and is also written out if
+ * --hierarchy-snapshot is set). Only the first of those jobs parses the class files of the library.
+ *
+ * @author Karim Ali
+ */
+public class Batch {
+
+    /** The first argument to {@link Main} that runs a batch. */
+    public static final String COMMAND = "batch";
+
+    /** The tab-separated columns of each line of a manifest. */
+    private static final String[] COLUMNS = {
+        "<application jars>", "<main class>", "<application regex>", "<output directory>"
+    };
+
+    /**
+     * Run the batch of applications in the given manifest.
+     *
+     * @param args the manifest, followed by the options shared by all the applications
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            usage();
+        }
+
+        // Each job runs in its own context, the default one belongs to none of them
+        AverroesContext.requireBoundThreads();
+
+        try {
+            long start = System.currentTimeMillis();
+
+            // Process the arguments of all the jobs first, so that a broken
+            // manifest line does not stop the batch halfway through
+            String[] sharedArgs = Arrays.copyOfRange(args, 1, args.length);
+            Deque<AverroesContext> jobs = new ArrayDeque<AverroesContext>();
+            List<String> outputDirectories = new ArrayList<String>();
+            for (String[] jobArgs : readManifest(new File(args[0]))) {
+                AverroesContext job = new AverroesContext();
+                job.run(() -> AverroesOptions.processArguments(concat(sharedArgs, jobArgs)));
+                outputDirectories.add(job.call(AverroesOptions::getOutputDirectory));
+                jobs.add(job);
+            }
+
+            // Each job is dropped once it's done, along with its Soot scene
+            Map<String, HierarchySnapshot> snapshots = new HashMap<String, HierarchySnapshot>();
+            int jobCount = jobs.size();
+            int failedJobCount = 0;
+            for (int i = 1; !jobs.isEmpty(); i++) {
+                System.out.println();
+                System.out.println(
+                        "Running job " + i + " of " + jobCount + ": "
+                                + outputDirectories.get(i - 1));
+                if (!jobs.poll().call(() -> runJob(snapshots))) {
+                    failedJobCount++;
+                }
+            }
+
+            System.out.println();
+            System.out.println("# jobs: " + jobCount + " (failed: " + failedJobCount + ")");
+            System.out.println(
+                    "Batch elapsed time: "
+                            + MathUtils.round((System.currentTimeMillis() - start) / 1000.0)
+                            + " seconds.");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Run the current job. A failing job is reported, and the batch goes on with the next one.
+     *
+     * @param snapshots
+     * @return
+     */
+    private static boolean runJob(Map<String, HierarchySnapshot> snapshots) {
+        try {
+            TimeUtils.splitStart();
+            Main.run(snapshots);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Read the arguments of each job in the given manifest. Each line holds the application JAR
+     * files, the main class, the application regex, and the output directory of one job,
+     * separated by tabs, so the paths may contain spaces. Blank lines and lines that start with #
+     * are skipped.
+     *
+     * @param manifest
+     * @return
+     * @throws IOException
+     */
+    private static List<String[]> readManifest(File manifest) throws IOException {
+        List<String[]> result = new ArrayList<String[]>();
+
+        List<String> lines = FileUtils.readLines(manifest, "UTF-8");
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                continue;
+            }
+
+            String[] values = line.split("\t", -1);
+            if (values.length != COLUMNS.length || Arrays.asList(values).contains("")) {
+                throw new IOException(
+                        manifest + ":" + (i + 1) + ": expected " + String.join("<tab>", COLUMNS)
+                                + ", found: " + line);
+            }
+            result.add(
+                    new String[] {
+                        "-a", values[0], "-m", values[1], "-r", values[2], "-o", values[3]
+                    });
+        }
+
+        return result;
+    }
+
+    /**
+     * Concatenate the given arguments.
+     *
+     * @param first
+     * @param second
+     * @return
+     */
+    static String[] concat(String[] first, String[] second) {
+        String[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static void usage() {
+        System.out.println();
+        System.out.println("Usage: java -jar averroes.jar batch <manifest> [options]");
+        System.out.println("  each line of the manifest: " + String.join("<tab>", COLUMNS));
+        System.out.println();
+        System.exit(1);
+    }
+}
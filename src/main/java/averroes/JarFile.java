@@ -10,6 +10,8 @@
 package averroes;
 
 import averroes.exceptions.Assertions;
+import averroes.options.AverroesOptions;
+import averroes.soot.CodeGenerator;
 import averroes.soot.Names;
 import averroes.util.io.Paths;
 import org.apache.bcel.Repository;
@@ -33,12 +35,13 @@ import java.io.*;
 import java.net.URISyntaxException;
 import java.nio.file.Path;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
-import java.util.stream.Collectors;
 
 /**
  * A JAR file is a collection of class files. We use BCEL to verify that the generated JAR files
@@ -48,7 +51,6 @@ import java.util.stream.Collectors;
  */
 public class JarFile {
 
-  private static Set<JavaClass> bcelClasses = new HashSet<JavaClass>();
   private JarOutputStream jarOutputStream;
   private File fileName;
 
@@ -62,6 +64,17 @@ public class JarFile {
     this.fileName = file;
   }
 
+  /**
+   * Get the BCEL classes of the JAR files of the current Averroes job (see {@link
+   * AverroesContext}). They're shared by all of its JAR files, so that BCEL finds the classes of
+   * the placeholder library when it verifies the Averroes library class.
+   *
+   * @return
+   */
+  private static Set<JavaClass> bcelClasses() {
+    return AverroesContext.v().get(BcelClasses.class, BcelClasses::new);
+  }
+
   /**
    * Get the relative path for an absolute file path.
    *
@@ -92,36 +105,27 @@ public class JarFile {
   }
 
   /**
-   * Add all the generated class files to the Jar file.
+   * Add all the generated class files to the Jar file. The class files are streamed straight from
+   * the buffers of the code generator, and BCEL parses them from the same buffers.
    *
    * @throws IOException
    */
   public void addGeneratedLibraryClassFiles() throws IOException {
-    Set<String> classFiles = new HashSet<>();
-    File dir = Paths.libraryClassesOutputDirectory();
-    File placeholderJar = Paths.placeholderLibraryJarFile();
+    Map<String, byte[]> classFiles = new LinkedHashMap<>(CodeGenerator.getLibraryClassFiles());
+    classFiles.remove(Names.AVERROES_LIBRARY_CLASS_BC_SIG + ".class");
 
     // Add the class files to the crafted JAR file.
-    FileUtils.listFiles(dir, new String[] {"class"}, true).stream()
-        .filter(f -> !relativize(dir, f).equals(Names.AVERROES_LIBRARY_CLASS_BC_SIG + ".class"))
-        .forEach(
-            file -> {
-              try {
-                String className = relativize(dir, file);
-                add(dir, file);
-                classFiles.add(className);
-              } catch (IOException e) {
-                e.printStackTrace();
-              }
-            });
+    for (Map.Entry<String, byte[]> classFile : classFiles.entrySet()) {
+      add(classFile.getValue(), classFile.getKey());
+    }
     close();
 
-    // Now add all those class files in the crafted JAR file to the BCEL
-    // repository.
-    for (String classFile : classFiles) {
-      ClassParser parser = new ClassParser(placeholderJar.getPath(), classFile);
+    // Now add all those class files to the BCEL repository.
+    for (Map.Entry<String, byte[]> classFile : classFiles.entrySet()) {
+      ClassParser parser =
+          new ClassParser(new ByteArrayInputStream(classFile.getValue()), classFile.getKey());
       JavaClass cls = parser.parse();
-      bcelClasses.add(cls);
+      bcelClasses().add(cls);
     }
   }
 
@@ -160,11 +164,11 @@ public class JarFile {
     for (String classFile : classFiles) {
       ClassParser parser = new ClassParser(placeholderJar.getPath(), classFile);
       JavaClass cls = parser.parse();
-      bcelClasses.add(cls);
+      bcelClasses().add(cls);
     }
 
     // Now we need to add all the BCEL classes
-    bcelClasses.forEach(c -> Repository.getRepository().storeClass(c));
+    bcelClasses().forEach(c -> Repository.getRepository().storeClass(c));
   }
 
   /**
@@ -174,20 +178,15 @@ public class JarFile {
    * @throws URISyntaxException
    */
   public void addAverroesLibraryClassFile() throws IOException, URISyntaxException {
-    File dir = Paths.libraryClassesOutputDirectory();
     File placeholderJar = Paths.placeholderLibraryJarFile();
     File averroesLibraryClassJar = Paths.averroesLibraryClassJarFile();
 
-    File file =
-        FileUtils.listFiles(dir, new String[] {"class"}, true).stream()
-            .filter(f -> relativize(dir, f).equals(Names.AVERROES_LIBRARY_CLASS_BC_SIG + ".class"))
-            .collect(Collectors.toList())
-            .get(0);
-    String className = relativize(dir, file);
+    String className = Names.AVERROES_LIBRARY_CLASS_BC_SIG + ".class";
+    byte[] classFile = CodeGenerator.getLibraryClassFiles().get(className);
 
     // Add the class file to the separately crafted JAR file.
-    if (file.isFile()) {
-      add(dir, file);
+    if (classFile != null) {
+      add(classFile, className);
     } else {
       throw new IllegalStateException(
           "cannot find "
@@ -206,19 +205,19 @@ public class JarFile {
                     + File.pathSeparator
                     + placeholderJar
                     + File.pathSeparator
-                    + Paths.organizedApplicationJarFile()));
+                    + AverroesOptions.getApplicationClassPath()));
     Repository.setRepository(rep);
 
     // Now add the class files (including ones from placeholder JAR) to the
     // BCEL repository.
-    ClassParser parser = new ClassParser(averroesLibraryClassJar.getPath(), className);
+    ClassParser parser = new ClassParser(new ByteArrayInputStream(classFile), className);
     JavaClass cls = parser.parse();
-    bcelClasses.add(cls);
+    bcelClasses().add(cls);
 
     // Now we need to add all the BCEL classes (including ones from previous
     // placeholder JAR to force BCEL to load
     // those crafted files when it looks them up
-    bcelClasses.forEach(c -> Repository.getRepository().storeClass(c));
+    bcelClasses().forEach(c -> Repository.getRepository().storeClass(c));
   }
 
   /**
@@ -283,6 +282,21 @@ public class JarFile {
     in.close();
   }
 
+  /**
+   * Add the given class file bytes with the given entry name to this JAR file.
+   *
+   * @param source
+   * @param entryName
+   * @throws IOException
+   */
+  public void add(byte[] source, String entryName) throws IOException {
+    JarEntry entry = new JarEntry(entryName);
+    entry.setTime(System.currentTimeMillis());
+    getJarOutputStream().putNextEntry(entry);
+    getJarOutputStream().write(source);
+    getJarOutputStream().closeEntry();
+  }
+
   /**
    * Add the file read from the source input stream with the given entry name to this JAR file.
    *
@@ -320,7 +334,7 @@ public class JarFile {
    * @throws ClassFormatException
    */
   public void verify() throws ClassFormatException, IOException {
-    for (JavaClass cls : bcelClasses) {
+    for (JavaClass cls : bcelClasses()) {
       Verifier verifier = VerifierFactory.getVerifier(cls.getClassName());
       Method[] methods = cls.getMethods();
       for (int i = 0; i < methods.length; i++) {
@@ -368,4 +382,8 @@ public class JarFile {
       e.printStackTrace();
     }
   }
+
+  /** The BCEL classes of an Averroes job. */
+  @SuppressWarnings("serial")
+  private static class BcelClasses extends HashSet<JavaClass> {}
 }
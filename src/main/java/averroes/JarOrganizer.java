@@ -10,18 +10,46 @@
 package averroes;
 
 import averroes.options.AverroesOptions;
+import averroes.soot.SootBasicClassesDatabase;
+import averroes.soot.SootSceneUtil;
+import averroes.util.ConstantPoolUtils;
+import averroes.util.io.FileRegionChannel;
+import averroes.util.io.PathResource;
 import averroes.util.io.Paths;
+import averroes.util.io.Resource;
+import averroes.util.io.ZipEntryResource;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.zip.ZipEntry;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.filefilter.FileFilterUtils;
+import soot.Scene;
 
 /**
  * Utility class to organize the input JAR files to Averroes into two JAR files only: one for the
@@ -29,24 +57,75 @@ import org.apache.commons.io.filefilter.FileFilterUtils;
  * files in any way, it's merely copying the class files into these temporary JAR files for
  * convenience.
  *
+ * <p>Organizing happens in three steps: scanning the input archives for class files (in parallel
+ * if {@link AverroesOptions#isParallelOrganize()} is set), selecting the first copy of each class
+ * in classpath order, and finally copying the selected class files to the organized JAR files.
+ * With that flag, the copy reads the class files of each batch in parallel too. The selection and
+ * the writing always follow the classpath order. That way, both modes produce the same organized
+ * JAR files. The class files of ZIP archives are copied in their compressed form (see {@link
+ * OrganizedJarFile}), so none of them is ever decompressed.
+ *
+ * <p>The selected class files are also kept in an index from class names to their class files in
+ * the input archives. If {@link AverroesOptions#isVirtualClassPath()} is set, Soot loads the input
+ * classes through that index, and the organized JAR files are only written if {@link
+ * AverroesOptions#isWriteOrganizedJars()} is set. The input archives then stay open until {@link
+ * #close()} is called.
+ *
+ * <p>A modular Java runtime (see {@link RuntimeImage}) is organized last, and only the modules that
+ * hold a package referenced from the constant pool of an application class (or a dynamic class)
+ * are read, along with the modules they require.
+ *
+ * <p>If {@link AverroesOptions#isOrganizeCacheEnabled()} is set, the library archives (and the
+ * selected modules of a modular Java runtime) are organized once into an {@link OrganizeCache}
+ * entry. Later runs with the same library inputs read that single archive instead.
+ *
+ * <p>If {@link AverroesOptions#isPruneLibraryClasses()} is set, only the library classes that Soot
+ * would resolve for this application are kept (see {@link LibraryClassClosure}).
+ *
  * @author karim
  */
 public class JarOrganizer {
 
+  /** The directories that hold the class files of a Spring Boot fat JAR or a WAR file. */
+  private static final List<String> NESTED_CLASSES_DIRECTORIES =
+      Arrays.asList("BOOT-INF/classes/", "WEB-INF/classes/");
+
+  /** The directories that hold the nested JAR files of a Spring Boot fat JAR or a WAR file. */
+  private static final List<String> NESTED_LIBRARY_DIRECTORIES =
+      Arrays.asList("BOOT-INF/lib/", "WEB-INF/lib/");
+
+  /** The number of class files read in parallel before they are written in order. */
+  private static final int EXTRACT_BATCH_SIZE = 1024;
+
   private Set<String> classNames;
-  private JarFile organizedApplicationJarFile;
-  private JarFile organizedLibraryJarFile;
+  private OrganizedJarFile organizedApplicationJarFile;
+  private OrganizedJarFile organizedLibraryJarFile;
 
   private Set<String> applicationClassNames;
   private Set<String> libraryClassNames;
+  private Set<String> shadowingLibraryClassNames;
+
+  private List<InputArchive> libraryArchives;
+  private List<ArchiveScan> scans;
+  private Map<String, Resource> classIndex;
+  private RuntimeImage runtimeImage;
+  private Set<String> applicationReferences;
+  private boolean closed;
 
   /** Construct a new JAR organizer. */
   public JarOrganizer() {
     classNames = new HashSet<String>();
     applicationClassNames = new HashSet<String>();
     libraryClassNames = new HashSet<String>();
-    organizedApplicationJarFile = new JarFile(Paths.organizedApplicationJarFile());
-    organizedLibraryJarFile = new JarFile(Paths.organizedLibraryJarFile());
+    shadowingLibraryClassNames = new HashSet<String>();
+    libraryArchives = new ArrayList<InputArchive>();
+    scans = new ArrayList<ArchiveScan>();
+    classIndex = new HashMap<String, Resource>();
+    runtimeImage = null;
+    applicationReferences = null;
+    closed = false;
+    organizedApplicationJarFile = new OrganizedJarFile(Paths.organizedApplicationJarFile());
+    organizedLibraryJarFile = new OrganizedJarFile(Paths.organizedLibraryJarFile());
   }
 
   /**
@@ -67,6 +146,56 @@ public class JarOrganizer {
     return libraryClassNames;
   }
 
+  /**
+   * Get the set of library class names that come from the library archives (or the Java runtime),
+   * i.e., excluding the library classes found in the input JAR files.
+   *
+   * @return
+   */
+  public Set<String> libraryArchiveClassNames() {
+    Set<String> result = new HashSet<String>(libraryClassNames);
+    result.removeAll(shadowingLibraryClassNames);
+    return result;
+  }
+
+  /**
+   * Compute a key that identifies the contents of the library archives and the whole Java runtime
+   * (see {@link OrganizeCache#key(List, Collection, Collection)}). Unlike the key of an organize
+   * cache entry, it does not depend on the application at all.
+   *
+   * @return
+   * @throws IOException
+   */
+  public String libraryArchivesKey() throws IOException {
+    Set<String> modules =
+        runtimeImage == null ? Collections.emptySet() : runtimeImage.moduleNames();
+    return OrganizeCache.key(
+        libraryInputFiles(modules), Collections.emptySet(), Collections.emptySet());
+  }
+
+  /**
+   * Get the index of all the selected class names (application and library) to their class files
+   * in the input archives.
+   *
+   * @return
+   */
+  public Map<String, Resource> classIndex() {
+    return classIndex;
+  }
+
+  /**
+   * Get the classpath made of the input archives, in the order they were organized. Nested JAR files
+   * and the modules of a modular Java runtime are not part of it, since they are not files.
+   *
+   * @return
+   */
+  public String inputClassPath() {
+    return scans.stream()
+        .filter(scan -> scan.onClassPath)
+        .map(scan -> scan.path)
+        .collect(Collectors.joining(File.pathSeparator));
+  }
+
   /**
    * Organize the input JAR files into two JAR files only: one for application classes, the other
    * for library classes.
@@ -76,42 +205,255 @@ public class JarOrganizer {
    * @throws URISyntaxException
    */
   public void organizeInputJarFiles() throws ZipException, IOException {
-    processInputs();
-    processDependencies();
-    organizedApplicationJarFile.close();
-    organizedLibraryJarFile.close();
+    List<InputArchive> archives = inputArchives();
+    List<InputArchive> applicationArchives =
+        archives.stream()
+            .filter(archive -> archive.fromApplicationArchive)
+            .collect(Collectors.toList());
+    libraryArchives =
+        archives.stream()
+            .filter(archive -> !archive.fromApplicationArchive)
+            .collect(Collectors.toList());
+
+    scans = new ArrayList<ArchiveScan>(scanArchives(applicationArchives));
+    checkApplicationClassPath();
+    scans.forEach(this::selectClasses);
+
+    // The library archives either come from the organize cache, or they are organized as usual
+    List<ArchiveScan> libraryScans;
+    if (AverroesOptions.isOrganizeCacheEnabled()) {
+      libraryScans =
+          scanArchives(
+              Collections.singletonList(
+                  new InputArchive(cachedLibraryArchive(libraryArchives).getPath(), false)));
+    } else {
+      libraryScans = scanLibraryArchives(libraryArchives);
+    }
+    libraryScans.forEach(this::selectClasses);
+    scans.addAll(libraryScans);
+
+    if (AverroesOptions.isPruneLibraryClasses()) {
+      pruneLibraryClasses();
+    }
+
+    if (AverroesOptions.isWriteOrganizedJars()) {
+      try {
+        for (ArchiveScan scan : scans) {
+          extractClasses(scan);
+        }
+      } finally {
+        if (!AverroesOptions.isVirtualClassPath()) {
+          close();
+        }
+      }
+
+      organizedApplicationJarFile.close();
+      organizedLibraryJarFile.close();
+    } else {
+      // Make sure no organized JAR files from an earlier run are left behind
+      FileUtils.deleteQuietly(Paths.organizedApplicationJarFile());
+      FileUtils.deleteQuietly(Paths.organizedLibraryJarFile());
+    }
+  }
+
+  /**
+   * Make sure the input JAR files can stand for the organized application JAR file (see {@link
+   * AverroesOptions#getApplicationClassPath()}) when it is not written. BCEL cannot find the
+   * application classes of a fat JAR or a WAR file on that classpath, since they are under a
+   * classes directory or in nested JAR files.
+   */
+  private void checkApplicationClassPath() {
+    if (!AverroesOptions.isVirtualClassPath() || AverroesOptions.isWriteOrganizedJars()) {
+      return;
+    }
+
+    for (ArchiveScan scan : scans) {
+      if (!scan.flat) {
+        throw new IllegalArgumentException(
+            "the input archive "
+                + scan.path
+                + " has nested classes or JAR files, add --write-organized-jars to use it with"
+                + " --virtual-classpath");
+      }
+    }
   }
 
   /**
-   * Process the input JAR files.
+   * Scan the given library archives, followed by the modules of a modular Java runtime (if any). The
+   * modules come last on the classpath, and we only read the ones that the application needs, now
+   * that we know the application classes.
+   *
+   * @param libraryArchives
+   * @return
+   * @throws IOException
+   */
+  private List<ArchiveScan> scanLibraryArchives(List<InputArchive> libraryArchives)
+      throws IOException {
+    List<ArchiveScan> result = new ArrayList<ArchiveScan>(scanArchives(libraryArchives));
+    result.addAll(scanModules(selectedModules(result)));
+    return result;
+  }
+
+  /**
+   * Get the modules of the modular Java runtime that the application needs (none if the Java
+   * runtime is not modular), given the scans of the library archives.
+   *
+   * @param libraryArchiveScans
+   * @return
+   * @throws IOException
+   */
+  private Set<String> selectedModules(List<ArchiveScan> libraryArchiveScans) throws IOException {
+    if (runtimeImage == null) {
+      return Collections.emptySet();
+    }
+    return runtimeImage.selectModules(referencedPackageNames(libraryArchiveScans));
+  }
+
+  /**
+   * Get the archive of organized library classes for the given library archives (and the modules
+   * of a modular Java runtime) from the organize cache. If the cache has no entry for those inputs
+   * yet, the library archives are organized on their own (i.e., regardless of the application
+   * archives) and the result is stored in the cache.
+   *
+   * @param libraryArchives
+   * @return
+   * @throws IOException
+   */
+  private File cachedLibraryArchive(List<InputArchive> libraryArchives) throws IOException {
+    OrganizeCache cache = new OrganizeCache(new File(AverroesOptions.getOrganizeCacheDirectory()));
+    List<ArchiveScan> libraryScans = new ArrayList<ArchiveScan>(scanArchives(libraryArchives));
+    try {
+      Set<String> modules = selectedModules(libraryScans);
+      String key =
+          OrganizeCache.key(
+              libraryInputFiles(modules), modules, AverroesOptions.getApplicationRegex());
+      cache.saveDigests();
+
+      if (cache.contains(key)) {
+        System.out.println("Reusing organized library classes from cache entry: " + key);
+      } else {
+        System.out.println("Creating organized library classes for cache entry: " + key);
+        libraryScans.addAll(scanModules(modules));
+        createCacheEntry(cache, key, libraryScans);
+      }
+
+      return cache.archive(key);
+    } finally {
+      for (ArchiveScan scan : libraryScans) {
+        scan.close();
+      }
+    }
+  }
+
+  /**
+   * Create the organize cache entry with the given key from the given library scans.
+   *
+   * @param cache
+   * @param key
+   * @param libraryScans
+   * @throws IOException
+   */
+  private void createCacheEntry(OrganizeCache cache, String key, List<ArchiveScan> libraryScans)
+      throws IOException {
+    File entry = cache.newEntry(key);
+    OrganizedJarFile cachedArchive =
+        new OrganizedJarFile(new File(entry, OrganizeCache.ARCHIVE_NAME));
+    Set<String> cachedClassNames = new LinkedHashSet<String>();
+    List<ClassFileEntry> cachedClassFiles = new ArrayList<ClassFileEntry>();
+    for (ArchiveScan scan : libraryScans) {
+      for (ClassFileEntry classFile : scan.classEntries) {
+        if (cachedClassNames.add(classFile.className())) {
+          cachedClassFiles.add(classFile);
+        }
+      }
+    }
+
+    extractClassFiles(cachedClassFiles, cachedArchive);
+    cachedArchive.close();
+
+    // The index is written last, it marks the cache entry as complete
+    FileUtils.writeLines(new File(entry, OrganizeCache.INDEX_NAME), cachedClassNames);
+    cache.commit(key, entry);
+  }
+
+  /**
+   * Get the files of the library archives, followed by the files that hold the given modules of a
+   * modular Java runtime (if any).
+   *
+   * @param modules
+   * @return
+   */
+  private List<File> libraryInputFiles(Collection<String> modules) {
+    List<File> result =
+        libraryArchives.stream()
+            .map(archive -> new File(archive.fileName))
+            .collect(Collectors.toList());
+    if (runtimeImage != null) {
+      result.addAll(runtimeImage.sourceFiles(modules));
+    }
+    return result;
+  }
+
+  /**
+   * Close the input archives. Closing them again has no effect.
    *
-   * @throws ZipException
    * @throws IOException
-   * @throws URISyntaxException
    */
-  private void processInputs() throws ZipException, IOException {
-    AverroesOptions.getApplicationJars().forEach(jar -> processArchive(jar, true));
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    for (ArchiveScan scan : scans) {
+      scan.close();
+    }
+
+    if (runtimeImage != null) {
+      runtimeImage.close();
+    }
   }
 
-  /** Process the dependencies of the input JAR files. */
-  private void processDependencies() {
+  /**
+   * Get the input archives in classpath order: the input JAR files, the library dependencies, then
+   * the JRE libraries. A modular Java runtime is opened instead, and its modules are scanned later.
+   *
+   * @return
+   * @throws IOException
+   */
+  private List<InputArchive> inputArchives() throws IOException {
+    List<InputArchive> result = new ArrayList<InputArchive>();
+
+    // Add the input JAR files
+    AverroesOptions.getApplicationJars().forEach(jar -> result.add(new InputArchive(jar, true)));
+
     // Add the application library dependencies
-    AverroesOptions.getLibraryJarFiles().forEach(lib -> processArchive(lib, false));
+    AverroesOptions.getLibraryJarFiles().forEach(lib -> result.add(new InputArchive(lib, false)));
 
     // Add the JRE libraries
-    if ("system".equals(AverroesOptions.getJreDirectory())) {
-      processJreArchives(System.getProperty("java.home"));
+    String jreDirectory =
+        "system".equals(AverroesOptions.getJreDirectory())
+            ? System.getProperty("java.home")
+            : AverroesOptions.getJreDirectory();
+    if (RuntimeImage.isModular(jreDirectory)) {
+      runtimeImage = RuntimeImage.open(jreDirectory);
     } else {
-      processJreArchives(AverroesOptions.getJreDirectory());
+      result.addAll(jreArchives(jreDirectory));
     }
+
+    // Ignore empty file names
+    return result.stream()
+        .filter(archive -> archive.fileName.trim().length() > 0)
+        .collect(Collectors.toList());
   }
 
   /**
-   * Process the JRE archives (recognized JAR files are: rt.jar, jsse.jar, jce.jar).
+   * Find the JRE archives (recognized JAR files are: rt.jar, jsse.jar, jce.jar).
    *
    * @param dir
+   * @return
    */
-  private void processJreArchives(String dir) {
+  private List<InputArchive> jreArchives(String dir) {
     File directory = new File(dir);
     org.apache.commons.io.filefilter.IOFileFilter nameFilter =
         FileFilterUtils.or(
@@ -119,58 +461,291 @@ public class JarOrganizer {
             FileFilterUtils.nameFileFilter("jsse.jar"),
             FileFilterUtils.nameFileFilter("jce.jar"));
 
-    FileUtils.listFiles(directory, nameFilter, FileFilterUtils.trueFileFilter())
-        .forEach(file -> processArchive(file.getPath(), false));
+    return FileUtils.listFiles(directory, nameFilter, FileFilterUtils.trueFileFilter()).stream()
+        .map(file -> new InputArchive(file.getPath(), false))
+        .collect(Collectors.toList());
   }
 
   /**
-   * Process a given JAR file.
+   * Scan the given archives for class files. The returned scans are in the same order as the given
+   * archives, regardless of whether they were scanned in parallel or not. The scans of the nested
+   * JAR files of an archive directly follow the scan of that archive.
    *
-   * @param fileName
-   * @param fromApplicationArchive
+   * @param archives
+   * @return
+   * @throws IOException
    */
-  private void processArchive(String fileName, boolean fromApplicationArchive) {
-    // Exit if the fileName is empty
-    if (fileName.trim().length() <= 0) {
-      return;
+  private List<ArchiveScan> scanArchives(List<InputArchive> archives) throws IOException {
+    Stream<InputArchive> stream =
+        AverroesOptions.isParallelOrganize() ? archives.parallelStream() : archives.stream();
+
+    try {
+      return stream
+          .map(JarOrganizer::scanArchive)
+          .collect(Collectors.toList())
+          .stream()
+          .flatMap(List::stream)
+          .collect(Collectors.toList());
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
     }
+  }
 
-    File file = new File(fileName);
-    System.out.println(
-        "Processing "
-            + (fromApplicationArchive ? "input" : "library")
-            + " archive: "
-            + file.getAbsolutePath());
+  /**
+   * Scan the given input archive for class files. The input archive is either a ZIP file or an
+   * exploded directory. Nested JAR files in its {@link #NESTED_LIBRARY_DIRECTORIES} are scanned
+   * too, right after the archive itself, just like the class loaders of Spring Boot and servlet
+   * containers would do.
+   *
+   * @param input
+   * @return
+   */
+  private static List<ArchiveScan> scanArchive(InputArchive input) {
+    List<ArchiveScan> result = new ArrayList<ArchiveScan>();
+    File file = new File(input.fileName);
 
     try {
-      ZipFile archive = new ZipFile(file);
-      Enumeration<? extends ZipEntry> entries = archive.entries();
-
-      while (entries.hasMoreElements()) {
-        ZipEntry entry = entries.nextElement();
-        if (entry.getName().endsWith(".class")) {
-          addClass(archive, entry, fromApplicationArchive);
+      if (file.isDirectory()) {
+        result.add(new ArchiveScan(input, classesDirectory(file.toPath())));
+        for (String directory : NESTED_LIBRARY_DIRECTORIES) {
+          File[] jars = new File(file, directory).listFiles((dir, name) -> name.endsWith(".jar"));
+          if (jars != null) {
+            Arrays.sort(jars);
+            for (File jar : jars) {
+              for (ArchiveScan nested :
+                  scanArchive(new InputArchive(jar.getPath(), input.fromApplicationArchive))) {
+                nested.flat = false;
+                result.add(nested);
+              }
+            }
+          }
+        }
+      } else {
+        ArchiveScan scan = new ArchiveScan(input, new ZipFile(file), file.getAbsolutePath());
+        result.add(scan);
+        for (ZipArchiveEntry entry : scan.nestedEntries) {
+          ArchiveScan nested =
+              new ArchiveScan(
+                  input,
+                  openNestedArchive(file, scan.archive, entry),
+                  file.getAbsolutePath() + "!/" + entry.getName());
+          nested.flat = false;
+          result.add(nested);
         }
       }
-      archive.close();
     } catch (IOException e) {
-      e.printStackTrace();
-      System.exit(1);
+      throw new UncheckedIOException(e);
     }
+
+    return result;
   }
 
   /**
-   * Determine whether the given class file will be added to the list of application or library
-   * class files depending on the AverroesProperties file.
+   * Open the given nested JAR file of the given archive without extracting it to disk. A stored
+   * nested JAR file (e.g., in a Spring Boot fat JAR) is read in place from the outer file, while a
+   * compressed one (e.g., in a WAR file) is inflated in memory.
    *
+   * @param file
    * @param archive
    * @param entry
-   * @param fromApplicationArchive
+   * @return
+   * @throws IOException
+   */
+  private static ZipFile openNestedArchive(File file, ZipFile archive, ZipArchiveEntry entry)
+      throws IOException {
+    SeekableByteChannel channel;
+    if (entry.getMethod() == ZipArchiveEntry.STORED && entry.getDataOffset() >= 0) {
+      channel = new FileRegionChannel(file.toPath(), entry.getDataOffset(), entry.getSize());
+    } else {
+      try (InputStream in = archive.getInputStream(entry)) {
+        channel = new SeekableInMemoryByteChannel(IOUtils.toByteArray(in));
+      }
+    }
+    return new ZipFile(channel, entry.getName(), StandardCharsets.UTF_8.name(), true);
+  }
+
+  /**
+   * Get the directory that holds the class files of the given exploded archive, i.e., its
+   * BOOT-INF/classes or WEB-INF/classes if any, or the directory itself otherwise.
+   *
+   * @param directory
+   * @return
+   */
+  private static Path classesDirectory(Path directory) {
+    for (String prefix : NESTED_CLASSES_DIRECTORIES) {
+      Path classes = directory.resolve(prefix);
+      if (Files.isDirectory(classes)) {
+        return classes;
+      }
+    }
+    return directory;
+  }
+
+  /**
+   * Scan the given modules of the Java runtime for class files, in the given order.
+   *
+   * @param modules
+   * @return
+   * @throws IOException
+   */
+  private List<ArchiveScan> scanModules(Set<String> modules) throws IOException {
+    Stream<String> stream =
+        AverroesOptions.isParallelOrganize() ? modules.parallelStream() : modules.stream();
+
+    try {
+      return stream
+          .map(module -> new ArchiveScan(runtimeImage, module))
+          .collect(Collectors.toList());
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Get the packages that the application can reach: the packages of the classes referenced from
+   * the constant pools of the application classes and of the dynamic classes, along with the
+   * packages referenced from the library classes in their {@link LibraryClassClosure} (e.g., the
+   * JDK super class of a library class). These decide which modules of the Java runtime are read.
+   *
+   * @param libraryArchiveScans
+   * @return
    * @throws IOException
    */
-  private void addClass(ZipFile archive, ZipEntry entry, boolean fromApplicationArchive)
+  private Set<String> referencedPackageNames(List<ArchiveScan> libraryArchiveScans)
       throws IOException {
-    String className = entry.getName().replace('/', '.').replace(".class", "");
+    Set<String> roots = new HashSet<String>(referencedClassNames());
+    roots.addAll(AverroesOptions.getDynamicClasses());
+
+    // The library classes found in the input JAR files come first on the classpath
+    Map<String, Resource> libraryClasses = new HashMap<String, Resource>();
+    libraryClassNames.forEach(
+        className -> libraryClasses.put(className, classIndex.get(className)));
+    for (ArchiveScan scan : libraryArchiveScans) {
+      for (ClassFileEntry entry : scan.classEntries) {
+        if (!classNames.contains(entry.className())) {
+          libraryClasses.putIfAbsent(entry.className(), entry.resource);
+        }
+      }
+    }
+
+    Set<String> referencedClassNames;
+    try {
+      referencedClassNames =
+          new LibraryClassClosure(libraryClasses)
+              .referencedClassNames(roots, AverroesOptions.isParallelOrganize());
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    return referencedClassNames.stream()
+        .map(ConstantPoolUtils::packageName)
+        .collect(Collectors.toCollection(TreeSet::new));
+  }
+
+  /**
+   * Get the classes referenced from the constant pools of the application classes. The application
+   * class files are only read the first time.
+   *
+   * @return
+   * @throws IOException
+   */
+  private Set<String> referencedClassNames() throws IOException {
+    if (applicationReferences == null) {
+      Set<String> references = new HashSet<String>();
+
+      List<Resource> applicationClasses =
+          scans.stream()
+              .flatMap(scan -> scan.applicationEntries.stream())
+              .map(entry -> entry.resource)
+              .collect(Collectors.toList());
+      Stream<Resource> stream =
+          AverroesOptions.isParallelOrganize()
+              ? applicationClasses.parallelStream()
+              : applicationClasses.stream();
+
+      try {
+        stream
+            .map(LibraryClassClosure::referencedClassNames)
+            .collect(Collectors.toList())
+            .forEach(references::addAll);
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      applicationReferences = references;
+    }
+
+    return applicationReferences;
+  }
+
+  /**
+   * Drop the library classes that Soot would never resolve for this application, i.e., the ones
+   * that are not in the {@link LibraryClassClosure} of the classes referenced by the application
+   * and the basic classes.
+   *
+   * @throws IOException
+   */
+  private void pruneLibraryClasses() throws IOException {
+    Map<String, Resource> libraryClasses = new HashMap<String, Resource>();
+    libraryClassNames.forEach(
+        className -> libraryClasses.put(className, classIndex.get(className)));
+
+    Set<String> roots = new HashSet<String>(referencedClassNames());
+    roots.addAll(Scene.v().getBasicClasses());
+    roots.addAll(SootBasicClassesDatabase.basicClassNames());
+    roots.addAll(SootSceneUtil.getCommonDynamicClasses());
+
+    Set<String> neededLibraryClasses;
+    try {
+      neededLibraryClasses = new LibraryClassClosure(libraryClasses).compute(roots);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    int count = libraryClassNames.size();
+    for (ArchiveScan scan : scans) {
+      scan.libraryEntries.removeIf(entry -> !neededLibraryClasses.contains(entry.className()));
+    }
+    libraryClassNames.retainAll(neededLibraryClasses);
+    classIndex
+        .keySet()
+        .removeIf(
+            className ->
+                libraryClasses.containsKey(className)
+                    && !neededLibraryClasses.contains(className));
+
+    System.out.println(
+        "Pruned "
+            + (count - libraryClassNames.size())
+            + " library classes that the application does not need.");
+  }
+
+  /**
+   * Select the class files of the given archive that will be added to the organized JAR files.
+   * Scans have to be processed in classpath order for the first copy of a class to win.
+   *
+   * @param scan
+   */
+  private void selectClasses(ArchiveScan scan) {
+    System.out.println(
+        "Processing "
+            + (scan.fromApplicationArchive ? "input" : "library")
+            + " archive: "
+            + scan.path);
+
+    for (ClassFileEntry entry : scan.classEntries) {
+      addClass(scan, entry);
+    }
+  }
+
+  /**
+   * Determine whether the given class file will be added to the list of application or library
+   * class files depending on the AverroesProperties file.
+   *
+   * @param scan
+   * @param entry
+   */
+  private void addClass(ArchiveScan scan, ClassFileEntry entry) {
+    String className = entry.className();
 
     if (classNames.contains(className)) {
       /*
@@ -191,53 +766,317 @@ public class JarOrganizer {
        * application and they come from rt.jar (e.g.,
        * org.apache.xalan.templates.OutputProperties$1).
        */
-      if (AverroesOptions.isApplicationClass(className) && fromApplicationArchive) {
-        extractApplicationClassFile(archive, entry);
+      if (AverroesOptions.isApplicationClass(className) && scan.fromApplicationArchive) {
+        scan.applicationEntries.add(entry);
         applicationClassNames.add(className);
       } else {
-        extractLibraryClassFile(archive, entry);
+        scan.libraryEntries.add(entry);
         libraryClassNames.add(className);
+        if (scan.fromApplicationArchive) {
+          shadowingLibraryClassNames.add(className);
+        }
       }
 
       classNames.add(className);
+      classIndex.put(className, entry.resource);
     }
   }
 
   /**
-   * Extract an application class file.
+   * Extract the selected class files of the given archive to the organized JAR files.
    *
-   * @param sourceArchive
-   * @param entry
+   * @param scan
    * @throws IOException
    */
-  private void extractApplicationClassFile(ZipFile sourceArchive, ZipEntry entry)
+  private void extractClasses(ArchiveScan scan) throws IOException {
+    extractClassFiles(scan.applicationEntries, organizedApplicationJarFile);
+    extractClassFiles(scan.libraryEntries, organizedLibraryJarFile);
+  }
+
+  /**
+   * Extract the given class files to the specified file. If {@link
+   * AverroesOptions#isParallelOrganize()} is set, the class files of each batch of {@link
+   * #EXTRACT_BATCH_SIZE} entries are read in parallel, then written in order.
+   *
+   * @param entries
+   * @param destArchive
+   * @throws IOException
+   */
+  private void extractClassFiles(List<ClassFileEntry> entries, OrganizedJarFile destArchive)
       throws IOException {
-    extractClassFile(sourceArchive, entry, organizedApplicationJarFile);
+    if (!AverroesOptions.isParallelOrganize()) {
+      for (ClassFileEntry entry : entries) {
+        extractClassFile(entry, destArchive);
+      }
+      return;
+    }
+
+    for (int start = 0; start < entries.size(); start += EXTRACT_BATCH_SIZE) {
+      List<ClassFileEntry> batch =
+          entries.subList(start, Math.min(entries.size(), start + EXTRACT_BATCH_SIZE));
+      List<byte[]> contents;
+      try {
+        contents =
+            batch.parallelStream().map(JarOrganizer::readClassFile).collect(Collectors.toList());
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+
+      for (int i = 0; i < batch.size(); i++) {
+        writeClassFile(batch.get(i), contents.get(i), destArchive);
+      }
+    }
+  }
+
+  /**
+   * Read the given class file the way it will be written to an organized JAR file, i.e., in its
+   * compressed form if it comes from a ZIP archive.
+   *
+   * @param entry
+   * @return
+   */
+  private static byte[] readClassFile(ClassFileEntry entry) {
+    try (InputStream in = openClassFile(entry)) {
+      return IOUtils.toByteArray(in);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Open the given class file, in its compressed form if it comes from a ZIP archive.
+   *
+   * @param entry
+   * @return
+   * @throws IOException
+   */
+  private static InputStream openClassFile(ClassFileEntry entry) throws IOException {
+    if (entry.resource instanceof ZipEntryResource) {
+      ZipEntryResource zipEntry = (ZipEntryResource) entry.resource;
+      return zipEntry.archive().getRawInputStream(zipEntry.entry());
+    }
+    return entry.resource.open();
   }
 
   /**
-   * Extract a library class file.
+   * Write a class file that was read by {@link #readClassFile(ClassFileEntry)} to the specified
+   * file.
    *
-   * @param sourceArchive
    * @param entry
+   * @param contents
+   * @param destArchive
    * @throws IOException
    */
-  private void extractLibraryClassFile(ZipFile sourceArchive, ZipEntry entry) throws IOException {
-    extractClassFile(sourceArchive, entry, organizedLibraryJarFile);
+  private static void writeClassFile(
+      ClassFileEntry entry, byte[] contents, OrganizedJarFile destArchive) throws IOException {
+    if (entry.resource instanceof ZipEntryResource) {
+      destArchive.addRaw(((ZipEntryResource) entry.resource).entry(), entry.name, contents);
+    } else {
+      destArchive.add(new ByteArrayInputStream(contents), entry.name);
+    }
   }
 
   /**
    * Extract a class file to specified file.
    *
-   * @param sourceArchive
    * @param entry
    * @param destArchive
    * @throws IOException
    */
-  private void extractClassFile(ZipFile sourceArchive, ZipEntry entry, JarFile destArchive)
+  private void extractClassFile(ClassFileEntry entry, OrganizedJarFile destArchive)
       throws IOException {
-    // Write out the class file to the destination archive directly. No
-    // temporary file used.
-    destArchive.add(sourceArchive.getInputStream(entry), entry.getName());
+    if (entry.resource instanceof ZipEntryResource) {
+      // Write out the compressed class file to the destination archive
+      // directly. No temporary file used, and no decompression either.
+      ZipEntryResource zipEntry = (ZipEntryResource) entry.resource;
+      destArchive.addRaw(zipEntry.archive(), zipEntry.entry(), entry.name);
+    } else {
+      // Class files of a modular runtime are not compressed in the first place
+      try (InputStream in = entry.resource.open()) {
+        destArchive.add(in, entry.name);
+      }
+    }
+  }
+
+  /** An input archive along with where it comes from (application or library). */
+  private static class InputArchive {
+    private final String fileName;
+    private final boolean fromApplicationArchive;
+
+    private InputArchive(String fileName, boolean fromApplicationArchive) {
+      this.fileName = fileName;
+      this.fromApplicationArchive = fromApplicationArchive;
+    }
+  }
+
+  /**
+   * Strip the classes directory of a fat JAR or a WAR file from the given entry name, if any.
+   *
+   * @param entryName
+   * @return
+   */
+  private static String stripClassesDirectory(String entryName) {
+    for (String prefix : NESTED_CLASSES_DIRECTORIES) {
+      if (entryName.startsWith(prefix)) {
+        return entryName.substring(prefix.length());
+      }
+    }
+    return entryName;
+  }
+
+  /**
+   * Is the given entry name a nested JAR file of a fat JAR or a WAR file?
+   *
+   * @param entryName
+   * @return
+   */
+  private static boolean isNestedLibrary(String entryName) {
+    if (!entryName.endsWith(".jar")) {
+      return false;
+    }
+    for (String prefix : NESTED_LIBRARY_DIRECTORIES) {
+      if (entryName.startsWith(prefix) && entryName.indexOf('/', prefix.length()) < 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** A class file in an input archive: its name in a JAR file and the resource to read it from. */
+  private static class ClassFileEntry {
+    private final String name;
+    private final Resource resource;
+
+    private ClassFileEntry(String name, Resource resource) {
+      this.name = name;
+      this.resource = resource;
+    }
+
+    private String className() {
+      return name.replace('/', '.').replace(".class", "");
+    }
+  }
+
+  /**
+   * The class files found in an input archive (or a module of the Java runtime), in the order they
+   * appear in the archive. The archive stays open until the selected class files are extracted.
+   */
+  private static class ArchiveScan {
+    private final String path;
+    private final boolean fromApplicationArchive;
+    private final ZipFile archive;
+    private final boolean onClassPath;
+    private final List<ClassFileEntry> classEntries;
+    private final List<ZipArchiveEntry> nestedEntries;
+
+    /**
+     * Whether the class files of this scan are where a class loader would find them on the
+     * classpath, i.e., neither under a classes directory nor in a nested JAR file.
+     */
+    private boolean flat;
+
+    private final List<ClassFileEntry> applicationEntries;
+    private final List<ClassFileEntry> libraryEntries;
+
+    /**
+     * Scan the given ZIP archive for class files. Class files under BOOT-INF/classes/ or
+     * WEB-INF/classes/ are named as if they were at the root of the archive, and nested JAR files
+     * are only recorded so they can be scanned later on.
+     *
+     * @param input
+     * @param archive
+     * @param path
+     */
+    private ArchiveScan(InputArchive input, ZipFile archive, String path) {
+      this.path = path;
+      this.fromApplicationArchive = input.fromApplicationArchive;
+      this.archive = archive;
+      this.onClassPath = new File(path).isFile();
+      classEntries = new ArrayList<ClassFileEntry>();
+      nestedEntries = new ArrayList<ZipArchiveEntry>();
+      applicationEntries = new ArrayList<ClassFileEntry>();
+      libraryEntries = new ArrayList<ClassFileEntry>();
+      flat = true;
+
+      Enumeration<ZipArchiveEntry> entries = archive.getEntries();
+      while (entries.hasMoreElements()) {
+        ZipArchiveEntry entry = entries.nextElement();
+        String name = stripClassesDirectory(entry.getName());
+        if (name.endsWith(".class")) {
+          flat &= name.equals(entry.getName());
+          classEntries.add(new ClassFileEntry(name, new ZipEntryResource(path, archive, entry)));
+        } else if (isNestedLibrary(entry.getName())) {
+          nestedEntries.add(entry);
+        }
+      }
+    }
+
+    /**
+     * Scan the given exploded directory for class files.
+     *
+     * @param input
+     * @param root
+     * @throws IOException
+     */
+    private ArchiveScan(InputArchive input, Path root) throws IOException {
+      this.path = root.toAbsolutePath().toString();
+      this.fromApplicationArchive = input.fromApplicationArchive;
+      this.archive = null;
+      this.onClassPath = true;
+      classEntries = new ArrayList<ClassFileEntry>();
+      nestedEntries = new ArrayList<ZipArchiveEntry>();
+      applicationEntries = new ArrayList<ClassFileEntry>();
+      libraryEntries = new ArrayList<ClassFileEntry>();
+      flat = root.equals(new File(input.fileName).toPath());
+
+      try (Stream<Path> paths = Files.walk(root)) {
+        paths
+            .filter(file -> file.toString().endsWith(".class"))
+            .sorted()
+            .forEach(
+                file ->
+                    classEntries.add(
+                        new ClassFileEntry(
+                            root.relativize(file).toString().replace(File.separatorChar, '/'),
+                            new PathResource(file))));
+      }
+    }
+
+    /**
+     * Scan the given module of a modular Java runtime for class files. The module is closed along
+     * with the runtime image itself.
+     *
+     * @param runtimeImage
+     * @param module
+     */
+    private ArchiveScan(RuntimeImage runtimeImage, String module) {
+      path = runtimeImage.directory() + " (module " + module + ")";
+      fromApplicationArchive = false;
+      archive = null;
+      onClassPath = false;
+      classEntries = new ArrayList<ClassFileEntry>();
+      nestedEntries = new ArrayList<ZipArchiveEntry>();
+      applicationEntries = new ArrayList<ClassFileEntry>();
+      libraryEntries = new ArrayList<ClassFileEntry>();
+      flat = false;
+
+      try {
+        Path root = runtimeImage.root(module);
+        for (Path classFile : runtimeImage.classFiles(module)) {
+          classEntries.add(
+              new ClassFileEntry(
+                  root.relativize(classFile).toString(), new PathResource(classFile)));
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /** Close the underlying archive. */
+    private void close() throws IOException {
+      if (archive != null) {
+        archive.close();
+      }
+    }
   }
 }
@@ -0,0 +1,235 @@
+/**
+ * ***************************************************************************** Copyright (c) 2015
+ * Karim Ali and Ondřej Lhoták. All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * <p>Contributors: Karim Ali - initial API and implementation and/or initial documentation
+ * *****************************************************************************
+ */
+package averroes;
+
+import averroes.util.ConstantPoolReader;
+import averroes.util.ConstantPoolUtils;
+import averroes.util.io.Resource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.io.IOUtils;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * The library classes that Soot would resolve, starting from a set of classes referenced by the
+ * application. This mirrors the resolving levels of Soot: a class resolved at the level SIGNATURES
+ * needs its super types (and outer class) at that same level, and the types in the signatures of
+ * its members at the level HIERARCHY. A class resolved at the level HIERARCHY only needs its super
+ * types (and outer class) at that same level. Library class files are read only once they are
+ * reached, and only their declarations are visited.
+ *
+ * @author Karim Ali
+ */
+public class LibraryClassClosure {
+
+  private Map<String, Resource> libraryClasses;
+  private Map<String, ClassSummary> summaries;
+
+  /**
+   * Construct a new closure over the given library class files.
+   *
+   * @param libraryClasses
+   */
+  public LibraryClassClosure(Map<String, Resource> libraryClasses) {
+    this.libraryClasses = libraryClasses;
+    this.summaries = new HashMap<String, ClassSummary>();
+  }
+
+  /**
+   * Compute the names of the library classes needed to resolve the given classes at the level
+   * SIGNATURES. Names that are not library classes (e.g., application classes or missing classes)
+   * are ignored.
+   *
+   * @param roots
+   * @return
+   */
+  public Set<String> compute(Collection<String> roots) {
+    Set<String> result = new HashSet<String>();
+    Set<String> signatures = new HashSet<String>();
+
+    LinkedList<String> signaturesWorklist = new LinkedList<String>(roots);
+    LinkedList<String> hierarchyWorklist = new LinkedList<String>();
+
+    while (!signaturesWorklist.isEmpty() || !hierarchyWorklist.isEmpty()) {
+      if (!signaturesWorklist.isEmpty()) {
+        String className = signaturesWorklist.removeFirst();
+        if (libraryClasses.containsKey(className) && signatures.add(className)) {
+          result.add(className);
+          ClassSummary summary = summary(className);
+          signaturesWorklist.addAll(summary.superTypes);
+          hierarchyWorklist.addAll(summary.signatureTypes);
+        }
+      } else {
+        String className = hierarchyWorklist.removeFirst();
+        if (libraryClasses.containsKey(className) && result.add(className)) {
+          hierarchyWorklist.addAll(summary(className).superTypes);
+        }
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Compute the names of the classes referenced from the constant pools of the library classes
+   * needed to resolve the given classes (see {@link #compute(Collection)}), along with the given
+   * classes themselves. Unlike {@link #compute(Collection)}, the result keeps the classes that are
+   * not library classes (e.g., the JDK super class of a library class), so it tells which packages
+   * the application can reach through the library.
+   *
+   * @param roots
+   * @param parallel
+   * @return
+   */
+  public Set<String> referencedClassNames(Collection<String> roots, boolean parallel) {
+    Set<String> result = new HashSet<String>(roots);
+
+    List<Resource> classFiles =
+        compute(roots).stream().map(libraryClasses::get).collect(Collectors.toList());
+    Stream<Resource> stream = parallel ? classFiles.parallelStream() : classFiles.stream();
+    stream
+        .map(LibraryClassClosure::referencedClassNames)
+        .collect(Collectors.toList())
+        .forEach(result::addAll);
+
+    return result;
+  }
+
+  /**
+   * Get the classes referenced from the constant pool of the given class file.
+   *
+   * @param classFile
+   * @return
+   */
+  static Set<String> referencedClassNames(Resource classFile) {
+    try (InputStream in = classFile.open()) {
+      return ConstantPoolUtils.getReferencedClassNames(
+          new ConstantPoolReader(IOUtils.toByteArray(in)));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Get the summary of the given library class, reading its class file the first time.
+   *
+   * @param className
+   * @return
+   */
+  private ClassSummary summary(String className) {
+    return summaries.computeIfAbsent(
+        className,
+        name -> {
+          try (InputStream in = libraryClasses.get(name).open()) {
+            ClassSummary summary = new ClassSummary();
+            new ClassReader(in)
+                .accept(
+                    summary,
+                    ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            return summary;
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+  }
+
+  /** The super types, the outer class, and the types in the member signatures of a class. */
+  private static class ClassSummary extends ClassVisitor {
+    private String name;
+    private final List<String> superTypes;
+    private final Set<String> signatureTypes;
+
+    private ClassSummary() {
+      super(Opcodes.ASM7);
+      superTypes = new ArrayList<String>();
+      signatureTypes = new HashSet<String>();
+    }
+
+    @Override
+    public void visit(
+        int version,
+        int access,
+        String name,
+        String signature,
+        String superName,
+        String[] interfaces) {
+      this.name = name;
+      if (superName != null) {
+        superTypes.add(className(superName));
+      }
+      if (interfaces != null) {
+        for (String superInterface : interfaces) {
+          superTypes.add(className(superInterface));
+        }
+      }
+    }
+
+    @Override
+    public void visitOuterClass(String owner, String name, String descriptor) {
+      superTypes.add(className(owner));
+    }
+
+    @Override
+    public void visitInnerClass(String name, String outerName, String innerName, int access) {
+      if (name.equals(this.name) && outerName != null) {
+        superTypes.add(className(outerName));
+      }
+    }
+
+    @Override
+    public FieldVisitor visitField(
+        int access, String name, String descriptor, String signature, Object value) {
+      addType(Type.getType(descriptor));
+      return null;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(
+        int access, String name, String descriptor, String signature, String[] exceptions) {
+      addType(Type.getReturnType(descriptor));
+      for (Type type : Type.getArgumentTypes(descriptor)) {
+        addType(type);
+      }
+      if (exceptions != null) {
+        for (String exception : exceptions) {
+          signatureTypes.add(className(exception));
+        }
+      }
+      return null;
+    }
+
+    private void addType(Type type) {
+      Type baseType = type.getSort() == Type.ARRAY ? type.getElementType() : type;
+      if (baseType.getSort() == Type.OBJECT) {
+        signatureTypes.add(baseType.getClassName());
+      }
+    }
+
+    private static String className(String internalName) {
+      return internalName.replace('/', '.');
+    }
+  }
+}
@@ -12,14 +12,26 @@ package averroes;
 import averroes.options.AverroesOptions;
 import averroes.soot.CodeGenerator;
 import averroes.soot.Hierarchy;
+import averroes.soot.HierarchySnapshot;
 import averroes.soot.SootSceneUtil;
+import averroes.util.BytecodeUtils;
+import averroes.util.HeapReport;
 import averroes.util.MathUtils;
 import averroes.util.TimeUtils;
 import averroes.util.io.Paths;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 import org.apache.commons.io.FileUtils;
+import soot.ClassProvider;
 import soot.G;
 import soot.Scene;
 import soot.SootClass;
+import soot.SourceLocator;
+import soot.asm.AsmAverroesClassProvider;
+import soot.asm.AsmClassProvider;
 import soot.options.Options;
 
 /**
@@ -35,6 +47,16 @@ public class Main {
      * @param args
      */
     public static void main(String[] args) {
+        // Run a batch of applications (see Batch), or serve requests (see
+        // Server) instead
+        if (args.length > 0 && args[0].equals(Batch.COMMAND)) {
+            Batch.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        } else if (args.length > 0 && args[0].equals(Server.COMMAND)) {
+            Server.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         try {
             // Find the total execution time, instead of depending on the Unix
             // time command
@@ -43,27 +65,77 @@ public class Main {
             // Process the arguments
             AverroesOptions.processArguments(args);
 
-            // Reset Soot
-            G.reset();
+            run(null);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-            // Create the output directory and clean up any class files in there
-            FileUtils.forceMkdir(Paths.libraryClassesOutputDirectory());
-            FileUtils.cleanDirectory(Paths.classesOutputDirectory());
+    /**
+     * Run Averroes with the options of the current job (see {@link AverroesContext}). If the given
+     * map of hierarchy snapshots is not null, the library classes are loaded from (and recorded
+     * into) the snapshot of the library inputs of this job in that map, which is shared by all the
+     * jobs of a batch.
+     *
+     * @param snapshots
+     * @throws Exception
+     */
+    static void run(Map<String, HierarchySnapshot> snapshots) throws Exception {
+        // Reset Soot
+        G.reset();
 
-            // Organize the input JAR files
-            System.out.println();
-            System.out.println("Organizing the JAR files...");
-            JarOrganizer jarOrganizer = new JarOrganizer();
+        // Create the output directory and clean up any class files in there
+        FileUtils.forceMkdir(Paths.classesOutputDirectory());
+        FileUtils.cleanDirectory(Paths.classesOutputDirectory());
+
+        // Organize the input JAR files
+        System.out.println();
+        System.out.println("Organizing the JAR files...");
+        JarOrganizer jarOrganizer = new JarOrganizer();
+        AverroesContext.v().put(JarOrganizer.class, jarOrganizer);
+        try {
             jarOrganizer.organizeInputJarFiles();
 
             // Print some statistics
-            System.out.println("# application classes: " + jarOrganizer.applicationClassNames().size());
+            System.out.println(
+                    "# application classes: " + jarOrganizer.applicationClassNames().size());
             System.out.println("# library classes: " + jarOrganizer.libraryClassNames().size());
 
             // Add the organized archives for the application and its
-            // dependencies.
+            // dependencies. With a virtual classpath, Soot reads the classes
+            // straight from the input archives instead.
             TimeUtils.reset();
-            Options.v().set_soot_classpath(AverroesOptions.getSootClassPath());
+            ClassProvider classProvider = null;
+            if (AverroesOptions.isVirtualClassPath()) {
+                Options.v().set_soot_classpath(jarOrganizer.inputClassPath());
+                classProvider = new AsmAverroesClassProvider(jarOrganizer.classIndex());
+            } else {
+                Options.v().set_soot_classpath(AverroesOptions.getSootClassPath());
+            }
+
+            // The library classes in the hierarchy snapshot are not read from
+            // their class files at all
+            HierarchySnapshot snapshot = null;
+            if (snapshots != null) {
+                String key = jarOrganizer.libraryArchivesKey();
+                snapshot = snapshots.get(key);
+                if (snapshot == null) {
+                    snapshot = openHierarchySnapshot(key);
+                    snapshots.put(key, snapshot);
+                }
+            } else if (AverroesOptions.isHierarchySnapshotEnabled()) {
+                snapshot = openHierarchySnapshot(jarOrganizer.libraryArchivesKey());
+            }
+            if (snapshot != null) {
+                classProvider =
+                        snapshot.classProvider(
+                                classProvider == null ? new AsmClassProvider() : classProvider,
+                                jarOrganizer.libraryArchiveClassNames());
+            }
+
+            if (classProvider != null) {
+                SourceLocator.v().setClassProviders(Collections.singletonList(classProvider));
+            }
 
             // Set some soot parameters
             SootSceneUtil.addCommonDynamicClasses();
@@ -89,14 +161,25 @@ public class Main {
 
             // Output some initial statistics
             System.out.println(
-                    "# initial application classes: " + Hierarchy.v().getApplicationClasses().size());
-            System.out.println("# initial library classes: " + Hierarchy.v().getLibraryClasses().size());
-            System.out.println("# initial library methods: " + Hierarchy.v().getLibraryMethodCount());
+                    "# initial application classes: "
+                            + Hierarchy.v().getApplicationClasses().size());
+            System.out.println(
+                    "# initial library classes: " + Hierarchy.v().getLibraryClasses().size());
+            System.out.println(
+                    "# initial library methods: " + Hierarchy.v().getLibraryMethodCount());
             System.out.println("# initial library fields: " + Hierarchy.v().getLibraryFieldCount());
             System.out.println(
-                    "# referenced library methods: " + Hierarchy.v().getReferencedLibraryMethodCount());
+                    "# referenced library methods: "
+                            + Hierarchy.v().getReferencedLibraryMethodCount());
+            System.out.println(
+                    "# referenced library fields: "
+                            + Hierarchy.v().getReferencedLibraryFieldCount());
             System.out.println(
-                    "# referenced library fields: " + Hierarchy.v().getReferencedLibraryFieldCount());
+                    "# member resolution cache hits: "
+                            + BytecodeUtils.getResolutionCacheHitCount()
+                            + " (misses: "
+                            + BytecodeUtils.getResolutionCacheMissCount()
+                            + ")");
 
             // Cleanup the hierarchy
             System.out.println();
@@ -109,7 +192,8 @@ public class Main {
             System.out.println(
                     "# removed library fields: " + Hierarchy.v().getRemovedLibraryFieldCount());
             // The +1 is for Finalizer.register that will be added later
-            System.out.println("# final library methods: " + (Hierarchy.v().getLibraryMethodCount() + 1));
+            System.out.println(
+                    "# final library methods: " + (Hierarchy.v().getLibraryMethodCount() + 1));
             System.out.println("# final library fields: " + Hierarchy.v().getLibraryFieldCount());
 
             // Output some code generation statistics
@@ -124,9 +208,15 @@ public class Main {
             System.out.println();
             System.out.println("Creating the skeleton for Averroes's main library class...");
             CodeGenerator.v().createAverroesLibraryClass();
+            if (AverroesOptions.isReduceAllocations()) {
+                System.out.println(
+                        "# dropped object creations: "
+                                + CodeGenerator.v().getDroppedObjectCreationCount());
+            }
 
             // Create method bodies to the library classes
-            System.out.println("Generating the method bodies for the placeholder library classes ...");
+            System.out.println(
+                    "Generating the method bodies for the placeholder library classes ...");
             CodeGenerator.v().createLibraryMethodBodies();
 
             // Create empty classes for the basic classes required internally by
@@ -138,7 +228,9 @@ public class Main {
             }
             double averroes = TimeUtils.elapsedTime();
             System.out.println(
-                    "Placeholder library classes created and validated in " + averroes + " seconds.");
+                    "Placeholder library classes created and validated in "
+                            + averroes
+                            + " seconds.");
 
             // Create the jar file and add all the generated class files to it.
             TimeUtils.reset();
@@ -149,17 +241,57 @@ public class Main {
             double bcel = TimeUtils.elapsedTime();
             System.out.println("Placeholder library JAR file verified in " + bcel + " seconds.");
             System.out.println(
-                    "Total time (without verification) is " + MathUtils.round(soot + averroes) + " seconds.");
+                    "Total time (without verification) is "
+                            + MathUtils.round(soot + averroes)
+                            + " seconds.");
             System.out.println(
                     "Total time (with verification) is "
                             + MathUtils.round(soot + averroes + bcel)
                             + " seconds.");
 
-            double total = TimeUtils.elapsedSplitTime();
-            System.out.println("Elapsed time: " + total + " seconds.");
-        } catch (Exception e) {
-            e.printStackTrace();
+            // Add the library classes that Soot read from their class files to
+            // the hierarchy snapshot
+            if (snapshot != null) {
+                snapshot.save();
+                System.out.println(
+                        "# library classes loaded from the hierarchy snapshot: "
+                                + snapshot.getLoadedClassCount()
+                                + " (added: "
+                                + snapshot.getRecordedClassCount()
+                                + ")");
+            }
+
+            // Print out the heap taken by the class hierarchy
+            if (AverroesOptions.isMemoryReport()) {
+                System.out.println();
+                HeapReport report = new HeapReport();
+                Hierarchy.v().addTo(report);
+                report.print("Estimated heap of the class hierarchy:");
+            }
+        } finally {
+            // Release the input archives, even if the generation failed
+            jarOrganizer.close();
+        }
+
+        double total = TimeUtils.elapsedSplitTime();
+        System.out.println("Elapsed time: " + total + " seconds.");
+    }
+
+    /**
+     * Open the hierarchy snapshot of the given library key, in the directory given by {@link
+     * AverroesOptions#getHierarchySnapshotDirectory()}. Without that option, the snapshot is only
+     * kept in memory.
+     *
+     * @param key
+     * @return
+     * @throws IOException
+     */
+    private static HierarchySnapshot openHierarchySnapshot(String key) throws IOException {
+        if (AverroesOptions.isHierarchySnapshotEnabled()) {
+            return new HierarchySnapshot(
+                    new File(AverroesOptions.getHierarchySnapshotDirectory()), key);
         }
+        return new HierarchySnapshot();
     }
 
     public static void usage() {
@@ -0,0 +1,339 @@
+/**
+ * ***************************************************************************** Copyright (c) 2015
+ * Karim Ali and Ondřej Lhoták. All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * <p>Contributors: Karim Ali - initial API and implementation and/or initial documentation
+ * *****************************************************************************
+ */
+package averroes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A persistent cache of organized library classes. Each entry of the cache is a directory named
+ * after the key of the library inputs it was built from (see {@link #key(List, Collection,
+ * Collection)}), and it holds:
+ *
+ * <ul>
+ *   <li>{@value #ARCHIVE_NAME}: the library classes of those inputs, where the first copy of a
+ *       class on the classpath wins.
+ *   <li>{@value #INDEX_NAME}: the names of the classes in that archive, one per line.
+ * </ul>
+ *
+ * An entry is written to a temporary directory first, and then moved in place, so a partially
+ * written entry is never reused.
+ *
+ * <p>The cache directory also holds {@value #DIGESTS_NAME}: the digests of the library files read
+ * so far, along with the stamp of each file (see {@link #stamp(Path)}). Computing the key of an
+ * entry then only reads the files that changed since the last run.
+ *
+ * @author Karim Ali
+ */
+public class OrganizeCache {
+
+  public static final String ARCHIVE_NAME = "organized-lib.jar";
+  public static final String INDEX_NAME = "classes.txt";
+  public static final String DIGESTS_NAME = "digests.txt";
+
+  /** Bump this whenever the layout of a cache entry changes. */
+  private static final String VERSION = "1";
+
+  /** The digests of the files read so far, keyed by their stamp (see {@link #stamp(Path)}). */
+  private static final Map<String, String> digests = new ConcurrentHashMap<String, String>();
+
+  private File directory;
+
+  /**
+   * Construct a new organize cache in the given directory.
+   *
+   * @param directory
+   * @throws IOException
+   */
+  public OrganizeCache(File directory) throws IOException {
+    this.directory = directory;
+    FileUtils.forceMkdir(directory);
+    loadDigests();
+  }
+
+  /**
+   * Compute the cache key of the given library inputs. The key is a SHA-256 digest over the
+   * contents of the given files or exploded directories (in classpath order), the given names
+   * (e.g., the selected modules of a modular Java runtime) and the application regular
+   * expressions. The digest of each file is computed once per process, as long as the file keeps
+   * the same size and last modified time (see {@link #digest(Path)}).
+   *
+   * @param files
+   * @param names
+   * @param applicationRegex
+   * @return
+   * @throws IOException
+   */
+  public static String key(
+      List<File> files, Collection<String> names, Collection<String> applicationRegex)
+      throws IOException {
+    MessageDigest digest = newDigest();
+    update(digest, VERSION);
+
+    for (File file : files) {
+      if (file.isDirectory()) {
+        // An exploded archive: digest its files in a stable order, along with their names
+        update(digest, "directory");
+        try (Stream<Path> paths = Files.walk(file.toPath())) {
+          List<Path> regularFiles =
+              paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+          for (Path path : regularFiles) {
+            update(digest, file.toPath().relativize(path).toString());
+            update(digest, digest(path));
+          }
+        }
+      } else {
+        update(digest, "file");
+        update(digest, digest(file.toPath()));
+      }
+    }
+
+    for (String name : names) {
+      update(digest, "name");
+      update(digest, name);
+    }
+
+    for (String regex : applicationRegex) {
+      update(digest, "regex");
+      update(digest, regex);
+    }
+
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Does the cache have a complete entry for the given key?
+   *
+   * @param key
+   * @return
+   */
+  public boolean contains(String key) {
+    return new File(entry(key), INDEX_NAME).isFile() && archive(key).isFile();
+  }
+
+  /**
+   * The archive of organized library classes of the given key.
+   *
+   * @param key
+   * @return
+   */
+  public File archive(String key) {
+    return new File(entry(key), ARCHIVE_NAME);
+  }
+
+  /**
+   * The class names index of the given key.
+   *
+   * @param key
+   * @return
+   */
+  public File index(String key) {
+    return new File(entry(key), INDEX_NAME);
+  }
+
+  /**
+   * Create a new temporary directory to build the entry of the given key in. The entry only becomes
+   * visible once it's committed through {@link #commit(String, File)}.
+   *
+   * @param key
+   * @return
+   * @throws IOException
+   */
+  public File newEntry(String key) throws IOException {
+    return Files.createTempDirectory(directory.toPath(), key + ".tmp").toFile();
+  }
+
+  /**
+   * Move the given temporary directory in place as the entry of the given key. If another run
+   * committed the same entry in the meantime, the temporary directory is just dropped.
+   *
+   * @param key
+   * @param temporaryEntry
+   * @throws IOException
+   */
+  public void commit(String key, File temporaryEntry) throws IOException {
+    try {
+      Files.move(temporaryEntry.toPath(), entry(key).toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      if (contains(key)) {
+        FileUtils.deleteDirectory(temporaryEntry);
+      } else {
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Get the SHA-256 digest of the contents of the given file. Digests are cached for the lifetime
+   * of the process (e.g., across the jobs of a batch or the requests of a server), keyed by the
+   * real path, size and last modified time of the file, so a file is only read again once it
+   * changed.
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  private static String digest(Path file) throws IOException {
+    String stamp = stamp(file);
+    String result = digests.get(stamp);
+    if (result == null) {
+      result = computeDigest(file);
+      digests.put(stamp, result);
+    }
+    return result;
+  }
+
+  /**
+   * Get the stamp that identifies the current version of the given file: its real path, size and
+   * last modified time.
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  private static String stamp(Path file) throws IOException {
+    return file.toRealPath()
+        + "|"
+        + Files.size(file)
+        + "|"
+        + Files.getLastModifiedTime(file).toMillis();
+  }
+
+  /**
+   * Compute the SHA-256 digest of the contents of the given file.
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  private static String computeDigest(Path file) throws IOException {
+    MessageDigest digest = newDigest();
+    try (InputStream in = Files.newInputStream(file)) {
+      byte[] buffer = new byte[64 * 1024];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, count);
+      }
+    }
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Add the digests saved in the cache directory to the digests of this process. A line of the
+   * digests file holds a digest, a space, then the stamp of the file it was computed from.
+   *
+   * @throws IOException
+   */
+  private void loadDigests() throws IOException {
+    File file = new File(directory, DIGESTS_NAME);
+    if (!file.isFile()) {
+      return;
+    }
+
+    for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+      int space = line.indexOf(' ');
+      if (space > 0) {
+        digests.putIfAbsent(line.substring(space + 1), line.substring(0, space));
+      }
+    }
+  }
+
+  /**
+   * Save the digests of this process to the cache directory, so the next runs do not read the same
+   * files again. The digests of files that changed or disappeared since are dropped. The file is
+   * written to a temporary file first, and then moved in place.
+   *
+   * @throws IOException
+   */
+  public void saveDigests() throws IOException {
+    List<String> lines = new ArrayList<String>();
+    for (Map.Entry<String, String> entry : new TreeMap<String, String>(digests).entrySet()) {
+      if (isCurrent(entry.getKey())) {
+        lines.add(entry.getValue() + " " + entry.getKey());
+      }
+    }
+
+    Path temporaryFile = Files.createTempFile(directory.toPath(), DIGESTS_NAME, ".tmp");
+    try {
+      Files.write(temporaryFile, lines, StandardCharsets.UTF_8);
+      Files.move(
+          temporaryFile,
+          new File(directory, DIGESTS_NAME).toPath(),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temporaryFile);
+    }
+  }
+
+  /**
+   * Is the given stamp still the stamp of the file it names?
+   *
+   * @param stamp
+   * @return
+   */
+  private static boolean isCurrent(String stamp) {
+    int separator = stamp.lastIndexOf('|', stamp.lastIndexOf('|') - 1);
+    if (separator < 0) {
+      return false;
+    }
+
+    try {
+      return stamp.equals(stamp(Paths.get(stamp.substring(0, separator))));
+    } catch (IOException | InvalidPathException e) {
+      return false;
+    }
+  }
+
+  private File entry(String key) {
+    return new File(directory, key);
+  }
+
+  private static void update(MessageDigest digest, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+    digest.update(bytes);
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder result = new StringBuilder();
+    for (byte b : bytes) {
+      result.append(String.format("%02x", b));
+    }
+    return result.toString();
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
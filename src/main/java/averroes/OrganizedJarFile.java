@@ -0,0 +1,152 @@
+/**
+ * ***************************************************************************** Copyright (c) 2015
+ * Karim Ali and Ondřej Lhoták. All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * <p>Contributors: Karim Ali - initial API and implementation and/or initial documentation
+ * *****************************************************************************
+ */
+package averroes;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * An organized JAR file holds the original class files of the input archives (see {@link
+ * JarOrganizer}). Class files that come from a ZIP archive are transferred in their compressed form
+ * (i.e., same CRC, same compressed size), so organizing the input archives neither inflates nor
+ * deflates any of them.
+ *
+ * @author karim
+ */
+public class OrganizedJarFile {
+
+  private ZipArchiveOutputStream zipOutputStream;
+  private File fileName;
+
+  /**
+   * Construct a new organized JAR file.
+   *
+   * @param file
+   */
+  public OrganizedJarFile(File file) {
+    zipOutputStream = null;
+    this.fileName = file;
+  }
+
+  /**
+   * Get the output stream of this JAR archive. The manifest is always the first entry in the
+   * archive, just like {@link java.util.jar.JarOutputStream} does it.
+   *
+   * @return
+   * @throws IOException
+   */
+  public ZipArchiveOutputStream getZipOutputStream() throws IOException {
+    if (zipOutputStream == null) {
+      zipOutputStream = new ZipArchiveOutputStream(fileName);
+
+      Manifest manifest = new Manifest();
+      manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+      zipOutputStream.putArchiveEntry(new ZipArchiveEntry(java.util.jar.JarFile.MANIFEST_NAME));
+      manifest.write(zipOutputStream);
+      zipOutputStream.closeArchiveEntry();
+    }
+    return zipOutputStream;
+  }
+
+  /**
+   * Copy the given entry from the source archive to this JAR file without decompressing it.
+   *
+   * @param sourceArchive
+   * @param entry
+   * @throws IOException
+   */
+  public void addRaw(ZipFile sourceArchive, ZipArchiveEntry entry) throws IOException {
+    addRaw(sourceArchive, entry, entry.getName());
+  }
+
+  /**
+   * Copy the given entry from the source archive to this JAR file without decompressing it, under
+   * the given entry name (e.g., a class file under BOOT-INF/classes/ in a fat JAR).
+   *
+   * @param sourceArchive
+   * @param entry
+   * @param entryName
+   * @throws IOException
+   */
+  public void addRaw(ZipFile sourceArchive, ZipArchiveEntry entry, String entryName)
+      throws IOException {
+    try (InputStream raw = sourceArchive.getRawInputStream(entry)) {
+      getZipOutputStream().addRawArchiveEntry(destEntry(entry, entryName), raw);
+    }
+  }
+
+  /**
+   * Add the given entry to this JAR file under the given entry name, from the compressed bytes that
+   * were already read from its source archive (see {@link ZipFile#getRawInputStream}).
+   *
+   * @param entry
+   * @param entryName
+   * @param raw
+   * @throws IOException
+   */
+  public void addRaw(ZipArchiveEntry entry, String entryName, byte[] raw) throws IOException {
+    getZipOutputStream()
+        .addRawArchiveEntry(destEntry(entry, entryName), new ByteArrayInputStream(raw));
+  }
+
+  /**
+   * Get the entry to write for the given source entry: the source entry itself, or a copy of it
+   * under the given entry name.
+   *
+   * @param entry
+   * @param entryName
+   * @return
+   */
+  private static ZipArchiveEntry destEntry(ZipArchiveEntry entry, String entryName) {
+    if (entryName.equals(entry.getName())) {
+      return entry;
+    }
+
+    ZipArchiveEntry destEntry = new ZipArchiveEntry(entryName);
+    destEntry.setMethod(entry.getMethod());
+    destEntry.setCrc(entry.getCrc());
+    destEntry.setCompressedSize(entry.getCompressedSize());
+    destEntry.setSize(entry.getSize());
+    destEntry.setTime(entry.getTime());
+    return destEntry;
+  }
+
+  /**
+   * Add the class file read from the given input stream to this JAR file, under the given entry
+   * name. That's used for class files that do not come from a ZIP archive.
+   *
+   * @param in
+   * @param entryName
+   * @throws IOException
+   */
+  public void add(InputStream in, String entryName) throws IOException {
+    ZipArchiveOutputStream out = getZipOutputStream();
+    out.putArchiveEntry(new ZipArchiveEntry(entryName));
+    IOUtils.copy(in, out);
+    out.closeArchiveEntry();
+  }
+
+  /**
+   * Close the JAR output stream.
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    getZipOutputStream().close();
+  }
+}
@@ -0,0 +1,321 @@
+/**
+ * ***************************************************************************** Copyright (c) 2015
+ * Karim Ali and Ondřej Lhoták. All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * <p>Contributors: Karim Ali - initial API and implementation and/or initial documentation
+ * *****************************************************************************
+ */
+package averroes;
+
+import averroes.util.ConstantPoolUtils;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ModuleVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * A modular Java runtime (Java 9 or later), read either from its runtime image (through the jrt:/
+ * file system) or from its jmod files. Unlike rt.jar, a modular runtime is only read one module at
+ * a time: {@link #selectModules(Collection)} finds the modules that hold the given packages, along
+ * with the modules they require, and only the class files of those modules are ever listed.
+ *
+ * @author Karim Ali
+ */
+public class RuntimeImage implements Closeable {
+
+  /** The module that holds java.lang.Object, which is always needed. */
+  public static final String JAVA_BASE = "java.base";
+
+  private String directory;
+  private List<FileSystem> fileSystems;
+  private Map<String, Module> modules;
+  private Map<String, String> packageToModule;
+
+  /**
+   * Construct a new runtime image for the Java runtime in the given directory.
+   *
+   * @param directory
+   * @param fileSystems
+   * @param modules
+   */
+  private RuntimeImage(String directory, List<FileSystem> fileSystems, List<Module> modules) {
+    this.directory = directory;
+    this.fileSystems = fileSystems;
+    this.modules = new HashMap<String, Module>();
+    this.packageToModule = new HashMap<String, String>();
+
+    for (Module module : modules) {
+      this.modules.put(module.name, module);
+      module.packages.forEach(pkg -> packageToModule.putIfAbsent(pkg, module.name));
+    }
+  }
+
+  /**
+   * Is the Java runtime in the given directory a modular one? That's the case if it has a runtime
+   * image (lib/modules) or jmod files (jmods/*.jmod).
+   *
+   * @param directory
+   * @return
+   */
+  public static boolean isModular(String directory) {
+    return runtimeImageFile(directory).isFile() || jmodsDirectory(directory).isDirectory();
+  }
+
+  /**
+   * Open the modular Java runtime in the given directory. The runtime image is preferred over the
+   * jmod files if both exist.
+   *
+   * @param directory
+   * @return
+   * @throws IOException
+   */
+  public static RuntimeImage open(String directory) throws IOException {
+    if (runtimeImageFile(directory).isFile()) {
+      return openRuntimeImage(directory);
+    } else {
+      return openJmods(directory);
+    }
+  }
+
+  /**
+   * The directory of the Java runtime.
+   *
+   * @return
+   */
+  public String directory() {
+    return directory;
+  }
+
+  /**
+   * The names of all the modules in this runtime.
+   *
+   * @return
+   */
+  public Set<String> moduleNames() {
+    return Collections.unmodifiableSet(modules.keySet());
+  }
+
+  /**
+   * Find the modules that hold any of the given packages, along with the modules they require
+   * (transitively). The module {@value #JAVA_BASE} is always selected. The result is sorted by
+   * module name, so that it does not depend on the order of the given packages.
+   *
+   * @param packages
+   * @return
+   */
+  public Set<String> selectModules(Collection<String> packages) {
+    Set<String> result = new TreeSet<String>();
+    LinkedList<String> worklist = new LinkedList<String>();
+
+    worklist.add(JAVA_BASE);
+    packages.stream()
+        .map(packageToModule::get)
+        .filter(module -> module != null)
+        .forEach(worklist::add);
+
+    while (!worklist.isEmpty()) {
+      String name = worklist.removeFirst();
+      if (modules.containsKey(name) && result.add(name)) {
+        worklist.addAll(modules.get(name).requires);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the root of the class files of the given module. The name of a class file relative to that
+   * root is its name in a JAR file (e.g., java/lang/Object.class).
+   *
+   * @param module
+   * @return
+   */
+  public Path root(String module) {
+    return modules.get(module).root;
+  }
+
+  /**
+   * Get the files that hold the given modules (i.e., the runtime image, or the jmod files), without
+   * duplicates and in the order of the given modules.
+   *
+   * @param modules
+   * @return
+   */
+  public List<File> sourceFiles(Collection<String> modules) {
+    return modules.stream()
+        .map(module -> this.modules.get(module).file)
+        .distinct()
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * List the class files of the given module (module-info.class excluded), in a stable order.
+   *
+   * @param module
+   * @return
+   * @throws IOException
+   */
+  public List<Path> classFiles(String module) throws IOException {
+    Path root = root(module);
+    try (Stream<Path> paths = Files.walk(root)) {
+      return paths
+          .filter(path -> path.toString().endsWith(".class"))
+          .filter(path -> !root.relativize(path).toString().equals("module-info.class"))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (FileSystem fileSystem : fileSystems) {
+      fileSystem.close();
+    }
+  }
+
+  /**
+   * Open the runtime image of the given Java runtime through the jrt:/ file system. The file system
+   * provider is loaded from the lib/jrt-fs.jar of that runtime, so this works even if Averroes
+   * itself runs on Java 8.
+   *
+   * @param directory
+   * @return
+   * @throws IOException
+   */
+  private static RuntimeImage openRuntimeImage(String directory) throws IOException {
+    URL jrtFs = new File(directory, "lib" + File.separator + "jrt-fs.jar").toURI().toURL();
+    ClassLoader loader = new URLClassLoader(new URL[] {jrtFs});
+    Map<String, String> env = Collections.singletonMap("java.home", directory);
+    FileSystem fileSystem = FileSystems.newFileSystem(URI.create("jrt:/"), env, loader);
+
+    List<Module> modules = new ArrayList<Module>();
+    try (DirectoryStream<Path> roots = Files.newDirectoryStream(fileSystem.getPath("/modules"))) {
+      for (Path root : roots) {
+        modules.add(
+            new Module(root.getFileName().toString(), root, runtimeImageFile(directory)));
+      }
+    }
+
+    return new RuntimeImage(directory, Collections.singletonList(fileSystem), modules);
+  }
+
+  /**
+   * Open the jmod files of the given Java runtime. Each jmod file is a ZIP file (with a small
+   * header) whose class files are under classes/.
+   *
+   * @param directory
+   * @return
+   * @throws IOException
+   */
+  private static RuntimeImage openJmods(String directory) throws IOException {
+    List<FileSystem> fileSystems = new ArrayList<FileSystem>();
+    List<Module> modules = new ArrayList<Module>();
+
+    try (DirectoryStream<Path> jmods =
+        Files.newDirectoryStream(jmodsDirectory(directory).toPath(), "*.jmod")) {
+      for (Path jmod : jmods) {
+        FileSystem fileSystem = FileSystems.newFileSystem(jmod, (ClassLoader) null);
+        String name = jmod.getFileName().toString().replace(".jmod", "");
+        fileSystems.add(fileSystem);
+        modules.add(new Module(name, fileSystem.getPath("/classes"), jmod.toFile()));
+      }
+    }
+
+    return new RuntimeImage(directory, fileSystems, modules);
+  }
+
+  private static File runtimeImageFile(String directory) {
+    return new File(directory, "lib" + File.separator + "modules");
+  }
+
+  private static File jmodsDirectory(String directory) {
+    return new File(directory, "jmods");
+  }
+
+  /**
+   * A module of the runtime, as described by its module-info.class (i.e., the packages it holds,
+   * and the modules it requires), along with the file that holds it.
+   */
+  private static class Module {
+    private final String name;
+    private final Path root;
+    private final File file;
+    private final Set<String> packages;
+    private final Set<String> requires;
+
+    private Module(String name, Path root, File file) throws IOException {
+      this.name = name;
+      this.root = root;
+      this.file = file;
+      this.packages = new HashSet<String>();
+      this.requires = new HashSet<String>();
+
+      Path moduleInfo = root.resolve("module-info.class");
+      if (Files.exists(moduleInfo)) {
+        try (InputStream in = Files.newInputStream(moduleInfo)) {
+          new ClassReader(in).accept(new ModuleInfoVisitor(), ClassReader.SKIP_CODE);
+        }
+      }
+
+      // The ModulePackages attribute is optional, so fall back to listing the module if needed
+      if (packages.isEmpty()) {
+        try (Stream<Path> paths = Files.walk(root)) {
+          paths
+              .filter(path -> path.toString().endsWith(".class"))
+              .map(path -> root.relativize(path).toString().replace('/', '.'))
+              .map(ConstantPoolUtils::packageName)
+              .filter(pkg -> !pkg.isEmpty())
+              .forEach(packages::add);
+        }
+      }
+    }
+
+    /** Collect the packages and the required modules of a module. */
+    private class ModuleInfoVisitor extends ClassVisitor {
+      private ModuleInfoVisitor() {
+        super(Opcodes.ASM7);
+      }
+
+      @Override
+      public ModuleVisitor visitModule(String moduleName, int access, String version) {
+        return new ModuleVisitor(Opcodes.ASM7) {
+          @Override
+          public void visitPackage(String packaze) {
+            packages.add(packaze.replace('/', '.'));
+          }
+
+          @Override
+          public void visitRequire(String module, int access, String version) {
+            requires.add(module);
+          }
+        };
+      }
+    }
+  }
+}
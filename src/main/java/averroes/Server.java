@@ -0,0 +1,197 @@
+/**
+ * ***************************************************************************** Copyright (c) 2015
+ * Karim Ali and Ondřej Lhoták. All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * <p>Contributors: Karim Ali - initial API and implementation and/or initial documentation
+ * *****************************************************************************
+ */
+package averroes;
+
+import averroes.options.AverroesOptions;
+import averroes.soot.HierarchySnapshot;
+import averroes.util.TimeUtils;
+import averroes.util.io.Paths;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps Averroes running in one warm JVM, and serves generation requests over stdin/stdout. Each
+ * request is a single line of JSON, e.g.:
+ *
+ * <pre>
+ * {"id": "1", "applicationJars": "app.jar", "mainClass": "app.Main",
+ *  "applicationRegex": "app.**", "outputDirectory": "out", "options": ["--virtual-classpath"]}
+ * </pre>
+ *
+ * <p>and it's answered by a single line of JSON on stdout, once the placeholder library is written
+ * (or the request failed). The log of each request goes to stderr instead. The options given when
+ * the server starts (e.g., the library JAR files and the Java runtime) are shared by all the
+ * requests:
+ *
+ * <pre>
+ * java -jar averroes.jar serve [options]
+ * </pre>
+ *
+ * <p>Requests are served one at a time. Just like the jobs of a {@link Batch}, each request runs in
+ * a fresh {@link AverroesContext}, so none of its state (its Soot scene included) outlives it,
+ * while the library classes that Soot resolves are kept in memory across requests, in one {@link
+ * HierarchySnapshot} per library key. The server stops at the end of its input.
+ *
+ * @author Karim Ali
+ */
+public class Server {
+
+    /** The first argument to {@link Main} that starts a server. */
+    public static final String COMMAND = "serve";
+
+    /**
+     * Serve the requests on stdin until it's closed.
+     *
+     * @param args the options shared by all the requests
+     */
+    public static void main(String[] args) {
+        // Each request runs in its own context, the default one belongs to none of them
+        AverroesContext.requireBoundThreads();
+
+        // Only the responses go to stdout
+        PrintStream responses = System.out;
+        System.setOut(System.err);
+
+        Gson gson = new Gson();
+        Map<String, HierarchySnapshot> snapshots = new HashMap<String, HierarchySnapshot>();
+        BufferedReader requests =
+                new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+
+        try {
+            String line;
+            while ((line = requests.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+
+                Response response;
+                try {
+                    Request request = gson.fromJson(line, Request.class);
+                    if (request == null) {
+                        response = new Response(null);
+                        response.error = "Invalid request: empty";
+                    } else {
+                        response =
+                                new AverroesContext().call(() -> serve(request, args, snapshots));
+                    }
+                } catch (JsonParseException e) {
+                    response = new Response(null);
+                    response.error = "Invalid request: " + e.getMessage();
+                } catch (RuntimeException e) {
+                    // Whatever goes wrong with one request, the server keeps serving the next ones
+                    e.printStackTrace();
+                    response = new Response(null);
+                    response.error = e.toString();
+                }
+
+                responses.println(gson.toJson(response));
+                responses.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Serve the given request in the current context.
+     *
+     * @param request
+     * @param sharedArgs
+     * @param snapshots
+     * @return
+     */
+    private static Response serve(
+            Request request, String[] sharedArgs, Map<String, HierarchySnapshot> snapshots) {
+        Response response = new Response(request.id);
+        TimeUtils.splitStart();
+
+        try {
+            AverroesOptions.parseArguments(Batch.concat(sharedArgs, request.arguments()));
+
+            // A missing input archive would stop the whole server while organizing
+            for (String jar : AverroesOptions.getApplicationJars()) {
+                if (!new File(jar).exists()) {
+                    throw new FileNotFoundException(jar);
+                }
+            }
+
+            Main.run(snapshots);
+            response.success = true;
+            response.placeholderLibrary = Paths.placeholderLibraryJarFile().getPath();
+            response.averroesLibraryClass = Paths.averroesLibraryClassJarFile().getPath();
+        } catch (Exception e) {
+            e.printStackTrace();
+            response.error = e.toString();
+        }
+
+        response.elapsedTime = TimeUtils.elapsedSplitTime();
+        return response;
+    }
+
+    /** A generation request, as read from stdin. */
+    private static class Request {
+        private String id;
+        private String applicationJars;
+        private String mainClass;
+        private String applicationRegex;
+        private String outputDirectory;
+        private List<String> options;
+
+        /**
+         * Get the arguments of this request, in the same form as the command line.
+         *
+         * @return
+         */
+        private String[] arguments() {
+            List<String> result = new ArrayList<String>();
+            addArgument(result, "-a", applicationJars);
+            addArgument(result, "-m", mainClass);
+            addArgument(result, "-r", applicationRegex);
+            addArgument(result, "-o", outputDirectory);
+            if (options != null) {
+                result.addAll(options);
+            }
+            return result.toArray(new String[result.size()]);
+        }
+
+        private static void addArgument(List<String> arguments, String option, String value) {
+            if (value != null) {
+                arguments.add(option);
+                arguments.add(value);
+            }
+        }
+    }
+
+    /** The response to a request, as written to stdout. */
+    private static class Response {
+        private String id;
+        private boolean success;
+        private String placeholderLibrary;
+        private String averroesLibraryClass;
+        private double elapsedTime;
+        private String error;
+
+        private Response(String id) {
+            this.id = id;
+            success = false;
+        }
+    }
+}
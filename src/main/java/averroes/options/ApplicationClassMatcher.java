@@ -0,0 +1,154 @@
+/**
+ * ***************************************************************************** Copyright (c) 2015
+ * Karim Ali and Ondřej Lhoták. All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * <p>Contributors: Karim Ali - initial API and implementation and/or initial documentation
+ * *****************************************************************************
+ */
+package averroes.options;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The application regex (see {@link AverroesOptions#getApplicationRegex()}) compiled into lookup
+ * tables, so that deciding whether a class belongs to the application does not walk the list of
+ * entries every time. The entries keep their meaning:
+ *
+ * <ol>
+ *   <li>{@code <package_name>.*} matches the classes in that package (ignoring case).
+ *   <li>{@code <package_name>.**} matches the classes whose name starts with {@code <package_name>.}
+ *       (i.e., the package and all its subpackages).
+ *   <li>{@code **} matches the classes in the default package.
+ *   <li>Anything else is a full class name (ignoring case).
+ * </ol>
+ *
+ * @author Karim Ali
+ */
+public final class ApplicationClassMatcher {
+
+  private Set<String> classNames;
+  private Set<String> packageNames;
+  private PackageNode superPackages;
+  private boolean defaultPackage;
+
+  private Map<String, Boolean> decisions;
+
+  /**
+   * Compile the given entries of the application regex.
+   *
+   * @param entries
+   */
+  public ApplicationClassMatcher(List<String> entries) {
+    classNames = new HashSet<String>();
+    packageNames = new HashSet<String>();
+    superPackages = new PackageNode();
+    defaultPackage = false;
+    decisions = new ConcurrentHashMap<String, Boolean>();
+
+    for (String entry : entries) {
+      if (entry.endsWith(".*")) {
+        packageNames.add(normalize(entry.replace(".*", "")));
+      } else if (entry.endsWith(".**")) {
+        addSuperPackage(entry.replace("**", ""));
+      } else if (entry.equalsIgnoreCase("**")) {
+        defaultPackage = true;
+      } else {
+        classNames.add(normalize(entry));
+      }
+    }
+  }
+
+  /**
+   * Check if the class with the given name belongs to the application.
+   *
+   * @param className
+   * @return
+   */
+  public boolean matches(String className) {
+    Boolean decision = decisions.get(className);
+    if (decision == null) {
+      decision = compute(className);
+      decisions.put(className, decision);
+    }
+    return decision;
+  }
+
+  /**
+   * Match the given class name against the compiled entries.
+   *
+   * @param className
+   * @return
+   */
+  private boolean compute(String className) {
+    int lastDot = className.lastIndexOf('.');
+    String pkg = lastDot < 0 ? "" : className.substring(0, lastDot);
+
+    if (pkg.isEmpty() && defaultPackage) {
+      return true;
+    }
+
+    if (!packageNames.isEmpty() && packageNames.contains(normalize(pkg))) {
+      return true;
+    }
+
+    if (!classNames.isEmpty() && classNames.contains(normalize(className))) {
+      return true;
+    }
+
+    // Walk down the package segments of the class name (i.e., the ones followed by a dot)
+    PackageNode node = superPackages;
+    int start = 0;
+    for (int dot = className.indexOf('.'); dot >= 0; dot = className.indexOf('.', start)) {
+      node = node.children.get(className.substring(start, dot));
+      if (node == null) {
+        return false;
+      } else if (node.terminal) {
+        return true;
+      }
+      start = dot + 1;
+    }
+
+    return false;
+  }
+
+  /**
+   * Add the given package prefix (which ends with a dot) to the package trie.
+   *
+   * @param prefix
+   */
+  private void addSuperPackage(String prefix) {
+    PackageNode node = superPackages;
+    for (String segment : prefix.substring(0, prefix.length() - 1).split("\\.", -1)) {
+      node = node.children.computeIfAbsent(segment, s -> new PackageNode());
+    }
+    node.terminal = true;
+  }
+
+  /**
+   * Map the given name to a key such that two names have the same key iff they are equal ignoring
+   * case (the same way {@link String#equalsIgnoreCase(String)} compares characters).
+   *
+   * @param name
+   * @return
+   */
+  private static String normalize(String name) {
+    char[] chars = name.toCharArray();
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+    }
+    return new String(chars);
+  }
+
+  /** A package segment in the trie of {@code <package_name>.**} entries. */
+  private static class PackageNode {
+    private Map<String, PackageNode> children = new HashMap<String, PackageNode>();
+    private boolean terminal = false;
+  }
+}
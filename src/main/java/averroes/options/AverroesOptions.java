@@ -9,9 +9,9 @@
  */
 package averroes.options;
 
+import averroes.AverroesContext;
 import averroes.util.io.Paths;
 import org.apache.commons.cli.*;
-import probe.ObjectManager;
 import probe.ProbeClass;
 import soot.SootClass;
 
@@ -21,6 +21,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -33,7 +34,12 @@ import java.util.stream.Collectors;
  */
 public final class AverroesOptions {
 
-  private static List<String> dynamicClasses = null;
+  // The parsed options of one Averroes job (see AverroesContext)
+  private CommandLine cmd = null;
+  private List<String> dynamicClasses = null;
+  private List<String> applicationRegexEntries = null;
+  private volatile ApplicationClassMatcher applicationClassMatcher = null;
+  private int javaVersion = soot.options.Options.java_version_default;
 
   private static Option applicationRegex =
       Option.builder("r")
@@ -128,6 +134,117 @@ public final class AverroesOptions {
           .required(false)
           .build();
 
+  private static Option parallelOrganize =
+      Option.builder()
+          .longOpt("parallel-organize")
+          .desc(
+              "setting this flag will make Averroes scan the input archives and read the class files it copies in parallel while organizing them (the first copy of a class on the classpath still wins)")
+          .hasArg(false)
+          .required(false)
+          .build();
+
+  private static Option parallelClassFiles =
+      Option.builder()
+          .longOpt("parallel-class-files")
+          .desc(
+              "setting this flag will make Averroes serialize the placeholder library classes in parallel, once all their method bodies are generated")
+          .hasArg(false)
+          .required(false)
+          .build();
+
+  private static Option reduceAllocations =
+      Option.builder()
+          .longOpt("reduce-allocations")
+          .desc(
+              "setting this flag will make Averroes only create the library objects whose types can flow to a type the application sees (a parameter, return, field, or callback receiver type)")
+          .hasArg(false)
+          .required(false)
+          .build();
+
+  private static Option virtualClassPath =
+      Option.builder()
+          .longOpt("virtual-classpath")
+          .desc(
+              "setting this flag will make Soot load the input classes straight from the input archives, without writing the organized JAR files first")
+          .hasArg(false)
+          .required(false)
+          .build();
+
+  private static Option writeOrganizedJars =
+      Option.builder()
+          .longOpt("write-organized-jars")
+          .desc(
+              "setting this flag will make Averroes still write the organized JAR files when --virtual-classpath is set")
+          .hasArg(false)
+          .required(false)
+          .build();
+
+  private static Option writeClassFiles =
+      Option.builder()
+          .longOpt("write-class-files")
+          .desc(
+              "setting this flag will make Averroes also write the generated placeholder library classes as loose class files under classes/lib")
+          .hasArg(false)
+          .required(false)
+          .build();
+
+  private static Option pruneLibraryClasses =
+      Option.builder()
+          .longOpt("prune-library-classes")
+          .desc(
+              "setting this flag will make Averroes only organize the library classes that Soot needs to resolve the application classes")
+          .hasArg(false)
+          .required(false)
+          .build();
+
+  private static Option organizeCacheDirectory =
+      Option.builder()
+          .longOpt("organize-cache")
+          .desc(
+              "a directory where Averroes caches the organized library classes, so that runs with the same library inputs do not organize them again")
+          .hasArg()
+          .argName("directory")
+          .required(false)
+          .build();
+
+  private static Option hierarchySnapshotDirectory =
+      Option.builder()
+          .longOpt("hierarchy-snapshot")
+          .desc(
+              "a directory where Averroes keeps a snapshot of the library classes Soot resolves, so that later runs with the same library inputs do not parse their class files again")
+          .hasArg()
+          .argName("directory")
+          .required(false)
+          .build();
+
+  private static Option compactHierarchy =
+      Option.builder()
+          .longOpt("compact-hierarchy")
+          .desc(
+              "setting this flag will make Averroes keep the relations of the class hierarchy in compact immutable sets, trading some lookup speed for a smaller heap")
+          .hasArg(false)
+          .required(false)
+          .build();
+
+  private static Option memoryReport =
+      Option.builder()
+          .longOpt("memory-report")
+          .desc(
+              "setting this flag will make Averroes print out an estimate of the heap taken by each structure of the class hierarchy at the end of the run")
+          .hasArg(false)
+          .required(false)
+          .build();
+
+  private static Option classVersion =
+      Option.builder()
+          .longOpt("class-version")
+          .desc(
+              "the Java version (5 to 9) of the class files Averroes generates for the placeholder library (by default, the lowest version that each class needs)")
+          .hasArg()
+          .argName("version")
+          .required(false)
+          .build();
+
   private static Options options =
       new Options()
           .addOption(applicationRegex)
@@ -139,21 +256,51 @@ public final class AverroesOptions {
           .addOption(outputDirectory)
           .addOption(jreDirectory)
           .addOption(help)
-          .addOption(enableGuards);
+          .addOption(enableGuards)
+          .addOption(parallelOrganize)
+          .addOption(parallelClassFiles)
+          .addOption(reduceAllocations)
+          .addOption(virtualClassPath)
+          .addOption(writeOrganizedJars)
+          .addOption(writeClassFiles)
+          .addOption(pruneLibraryClasses)
+          .addOption(organizeCacheDirectory)
+          .addOption(hierarchySnapshotDirectory)
+          .addOption(compactHierarchy)
+          .addOption(memoryReport)
+          .addOption(classVersion);
+
+  private AverroesOptions() {}
+
+  /**
+   * Get the options of the current Averroes job.
+   *
+   * @return
+   */
+  private static AverroesOptions current() {
+    return AverroesContext.v().get(AverroesOptions.class, AverroesOptions::new);
+  }
 
-  private static CommandLine cmd;
+  /**
+   * Get the parsed input arguments of the current Averroes job.
+   *
+   * @return
+   */
+  private static CommandLine cmd() {
+    return current().cmd;
+  }
 
   /**
-   * Process the input arguments of Averroes.
+   * Process the input arguments of Averroes. They replace the options of the current Averroes job.
    *
    * @param args
    */
   public static void processArguments(String[] args) {
     try {
-      cmd = new DefaultParser().parse(options, args);
+      parseArguments(args);
 
       // Do we need to print out help messages?
-      if (cmd.hasOption(help.getOpt())) {
+      if (cmd().hasOption(help.getOpt())) {
         help();
       }
     } catch (ParseException e) {
@@ -162,6 +309,21 @@ public final class AverroesOptions {
     }
   }
 
+  /**
+   * Parse the input arguments of Averroes into the options of the current Averroes job. Unlike
+   * {@link #processArguments(String[])}, invalid arguments are left to the caller, and the process
+   * never exits.
+   *
+   * @param args
+   * @throws ParseException
+   */
+  public static void parseArguments(String[] args) throws ParseException {
+    AverroesOptions job = new AverroesOptions();
+    job.cmd = new DefaultParser().parse(options, args);
+    job.javaVersion = parseClassVersion(job.cmd.getOptionValue(classVersion.getLongOpt()));
+    AverroesContext.v().put(AverroesOptions.class, job);
+  }
+
   /** Print out some help information. */
   private static void help() {
     new HelpFormatter().printHelp("jar -jar averroes.jar", "", options, "", true);
@@ -174,7 +336,14 @@ public final class AverroesOptions {
    * @return
    */
   public static List<String> getApplicationRegex() {
-    return Arrays.asList(cmd.getOptionValue(applicationRegex.getOpt()).split(File.pathSeparator));
+    AverroesOptions job = current();
+    if (job.applicationRegexEntries == null) {
+      job.applicationRegexEntries =
+          Collections.unmodifiableList(
+              Arrays.asList(
+                  job.cmd.getOptionValue(applicationRegex.getOpt()).split(File.pathSeparator)));
+    }
+    return job.applicationRegexEntries;
   }
 
   /**
@@ -183,7 +352,7 @@ public final class AverroesOptions {
    * @return
    */
   public static String getMainClass() {
-    return cmd.getOptionValue(mainClass.getOpt());
+    return cmd().getOptionValue(mainClass.getOpt());
   }
 
   /**
@@ -192,7 +361,7 @@ public final class AverroesOptions {
    * @return
    */
   public static List<String> getApplicationJars() {
-    return Arrays.asList(cmd.getOptionValue(applicationJars.getOpt()).split(File.pathSeparator));
+    return Arrays.asList(cmd().getOptionValue(applicationJars.getOpt()).split(File.pathSeparator));
   }
 
   /**
@@ -201,7 +370,7 @@ public final class AverroesOptions {
    * @return
    */
   public static List<String> getLibraryJarFiles() {
-    return Arrays.asList(cmd.getOptionValue(libraryJars.getOpt(), "").split(File.pathSeparator));
+    return Arrays.asList(cmd().getOptionValue(libraryJars.getOpt(), "").split(File.pathSeparator));
   }
 
   /**
@@ -210,7 +379,7 @@ public final class AverroesOptions {
    * @return
    */
   public static boolean isDynamicClassesEnabled() {
-    return cmd.hasOption(dynamicClassesFile.getOpt());
+    return cmd().hasOption(dynamicClassesFile.getOpt());
   }
 
   /**
@@ -219,21 +388,23 @@ public final class AverroesOptions {
    * @return
    */
   public static List<String> getDynamicClasses() throws IOException {
-    if (dynamicClasses == null) {
-      dynamicClasses = new ArrayList<String>();
+    AverroesOptions job = current();
+    if (job.dynamicClasses == null) {
+      job.dynamicClasses = new ArrayList<String>();
 
       if (isDynamicClassesEnabled()) {
         BufferedReader in =
-            new BufferedReader(new FileReader(cmd.getOptionValue(dynamicClassesFile.getOpt())));
+            new BufferedReader(
+                new FileReader(job.cmd.getOptionValue(dynamicClassesFile.getOpt())));
         String line;
         while ((line = in.readLine()) != null) {
-          dynamicClasses.add(line);
+          job.dynamicClasses.add(line);
         }
         in.close();
       }
     }
 
-    return dynamicClasses;
+    return job.dynamicClasses;
   }
 
   /**
@@ -266,7 +437,7 @@ public final class AverroesOptions {
    * @return
    */
   public static boolean isTamiflexEnabled() {
-    return cmd.hasOption(tamiflexFactsFile.getOpt());
+    return cmd().hasOption(tamiflexFactsFile.getOpt());
   }
 
   /**
@@ -275,7 +446,7 @@ public final class AverroesOptions {
    * @return
    */
   public static String getTamiflexFactsFile() {
-    return cmd.getOptionValue(tamiflexFactsFile.getOpt(), "");
+    return cmd().getOptionValue(tamiflexFactsFile.getOpt(), "");
   }
 
   /**
@@ -284,7 +455,7 @@ public final class AverroesOptions {
    * @return
    */
   public static String getOutputDirectory() {
-    return cmd.getOptionValue(outputDirectory.getOpt());
+    return cmd().getOptionValue(outputDirectory.getOpt());
   }
 
   /**
@@ -294,7 +465,7 @@ public final class AverroesOptions {
    * @return
    */
   public static String getJreDirectory() {
-    return cmd.getOptionValue(jreDirectory.getOpt());
+    return cmd().getOptionValue(jreDirectory.getOpt());
   }
 
   /**
@@ -305,30 +476,7 @@ public final class AverroesOptions {
    * @return
    */
   public static boolean isApplicationClass(ProbeClass probeClass) {
-    for (String entry : getApplicationRegex()) {
-      /*
-       * 1. If the entry ends with .* then this means it's a package. 2.
-       * If the entry ends with .** then it's a super package. 3. If the
-       * entry is **, then it's the default package. 4. Otherwise, it's
-       * the full class name.
-       */
-      if (entry.endsWith(".*")) {
-        String pkg = entry.replace(".*", "");
-        if (probeClass.pkg().equalsIgnoreCase(pkg)) {
-          return true;
-        }
-      } else if (entry.endsWith(".**")) {
-        String pkg = entry.replace("**", "");
-        if (probeClass.toString().startsWith(pkg)) {
-          return true;
-        }
-      } else if (entry.equalsIgnoreCase("**") && probeClass.pkg().isEmpty()) {
-        return true;
-      } else if (entry.equalsIgnoreCase(probeClass.toString())) {
-        return true;
-      }
-    }
-    return false;
+    return isApplicationClass(probeClass.toString());
   }
 
   /**
@@ -338,7 +486,22 @@ public final class AverroesOptions {
    * @return
    */
   public static boolean isApplicationClass(String className) {
-    return isApplicationClass(ObjectManager.v().getClass(className));
+    return getApplicationClassMatcher().matches(className);
+  }
+
+  /**
+   * The application regex compiled into an {@link ApplicationClassMatcher}, built on first use.
+   *
+   * @return
+   */
+  private static ApplicationClassMatcher getApplicationClassMatcher() {
+    AverroesOptions job = current();
+    ApplicationClassMatcher matcher = job.applicationClassMatcher;
+    if (matcher == null) {
+      matcher = new ApplicationClassMatcher(getApplicationRegex());
+      job.applicationClassMatcher = matcher;
+    }
+    return matcher;
   }
 
   /**
@@ -368,7 +531,185 @@ public final class AverroesOptions {
    * @return
    */
   public static boolean isEnableGuards() {
-    return cmd.hasOption(enableGuards.getOpt());
+    return cmd().hasOption(enableGuards.getOpt());
+  }
+
+  /**
+   * Setting this flag will make Averroes scan the input archives, and read the class files it
+   * copies to the organized JAR files, in parallel while organizing them.
+   *
+   * @return
+   */
+  public static boolean isParallelOrganize() {
+    return cmd().hasOption(parallelOrganize.getLongOpt());
+  }
+
+  /**
+   * Setting this flag will make Averroes serialize the placeholder library classes in parallel,
+   * once all their method bodies are generated (and converted to Baf).
+   *
+   * @return
+   */
+  public static boolean isParallelClassFiles() {
+    return cmd().hasOption(parallelClassFiles.getLongOpt());
+  }
+
+  /**
+   * Setting this flag will make Averroes only create the library objects whose types can flow to a
+   * type the application sees (a parameter, return, field, or callback receiver type). Nothing is
+   * dropped once java.lang.Object is one of those types, since every object can flow to it.
+   *
+   * @return
+   */
+  public static boolean isReduceAllocations() {
+    return cmd().hasOption(reduceAllocations.getLongOpt());
+  }
+
+  /**
+   * Setting this flag will make Soot load the input classes straight from the input archives,
+   * without writing the organized JAR files first.
+   *
+   * @return
+   */
+  public static boolean isVirtualClassPath() {
+    return cmd().hasOption(virtualClassPath.getLongOpt());
+  }
+
+  /**
+   * Should Averroes write the organized JAR files? They are always written unless {@link
+   * #isVirtualClassPath()} is set, in which case they are only written on request.
+   *
+   * @return
+   */
+  public static boolean isWriteOrganizedJars() {
+    return !isVirtualClassPath() || cmd().hasOption(writeOrganizedJars.getLongOpt());
+  }
+
+  /**
+   * Setting this flag will make Averroes also write the generated placeholder library classes as
+   * loose class files. Otherwise, they only go into the placeholder library JAR files.
+   *
+   * @return
+   */
+  public static boolean isWriteClassFiles() {
+    return cmd().hasOption(writeClassFiles.getLongOpt());
+  }
+
+  /**
+   * Setting this flag will make Averroes only organize the library classes that Soot needs to
+   * resolve the application classes.
+   *
+   * @return
+   */
+  public static boolean isPruneLibraryClasses() {
+    return cmd().hasOption(pruneLibraryClasses.getLongOpt());
+  }
+
+  /**
+   * Is the organize cache enabled?
+   *
+   * @return
+   */
+  public static boolean isOrganizeCacheEnabled() {
+    return cmd().hasOption(organizeCacheDirectory.getLongOpt());
+  }
+
+  /**
+   * The directory where Averroes caches the organized library classes.
+   *
+   * @return
+   */
+  public static String getOrganizeCacheDirectory() {
+    return cmd().getOptionValue(organizeCacheDirectory.getLongOpt());
+  }
+
+  /**
+   * Should Averroes load the library classes from a hierarchy snapshot?
+   *
+   * @return
+   */
+  public static boolean isHierarchySnapshotEnabled() {
+    return cmd().hasOption(hierarchySnapshotDirectory.getLongOpt());
+  }
+
+  /**
+   * The directory where Averroes keeps the hierarchy snapshots.
+   *
+   * @return
+   */
+  public static String getHierarchySnapshotDirectory() {
+    return cmd().getOptionValue(hierarchySnapshotDirectory.getLongOpt());
+  }
+
+  /**
+   * Should Averroes keep the relations of the class hierarchy in compact sets?
+   *
+   * @return
+   */
+  public static boolean isCompactHierarchy() {
+    return cmd().hasOption(compactHierarchy.getLongOpt());
+  }
+
+  /**
+   * Should Averroes print out an estimate of the heap taken by the class hierarchy?
+   *
+   * @return
+   */
+  public static boolean isMemoryReport() {
+    return cmd().hasOption(memoryReport.getLongOpt());
+  }
+
+  /**
+   * The Java version of the generated class files, as one of the java_version constants of {@link
+   * soot.options.Options}.
+   *
+   * @return
+   */
+  public static int getClassVersion() {
+    return current().javaVersion;
+  }
+
+  /**
+   * Parse the given value of the class version option (see {@link #getClassVersion()}), so that an
+   * unsupported version is reported along with the other invalid arguments.
+   *
+   * @param version
+   * @return
+   * @throws ParseException
+   */
+  private static int parseClassVersion(String version) throws ParseException {
+    if (version == null) {
+      return soot.options.Options.java_version_default;
+    }
+
+    switch (version.startsWith("1.") ? version.substring(2) : version) {
+      case "5":
+        return soot.options.Options.java_version_5;
+      case "6":
+        return soot.options.Options.java_version_6;
+      case "7":
+        return soot.options.Options.java_version_7;
+      case "8":
+        return soot.options.Options.java_version_8;
+      case "9":
+        return soot.options.Options.java_version_9;
+      default:
+        throw new ParseException("Unsupported class file version: " + version);
+    }
+  }
+
+  /**
+   * Get the classpath where the original application classes can be found. That's the organized
+   * application JAR file, if it's written, or the input JAR files otherwise.
+   *
+   * @return
+   */
+  public static String getApplicationClassPath() {
+    if (isWriteOrganizedJars()) {
+      return Paths.organizedApplicationJarFile().getPath();
+    } else {
+      return String.join(File.pathSeparator, getApplicationJars());
+    }
   }
 
   /**
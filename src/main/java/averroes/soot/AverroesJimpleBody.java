@@ -745,8 +745,23 @@ public class AverroesJimpleBody {
    * @param method
    */
   public void insertStaticInvokeStatement(SootMethod method) {
+    insertStaticInvokeStatement(method, false);
+  }
+
+  /**
+   * Insert a static invoke statement.
+   *
+   * @param method
+   * @param overrideGuard
+   */
+  public void insertStaticInvokeStatement(SootMethod method, boolean overrideGuard) {
     List<Value> args = prepareActualArguments(method);
-    insertStmt(Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(method.makeRef(), args)));
+    Stmt stmt = Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(method.makeRef(), args));
+    if (overrideGuard) {
+      body.getUnits().add(stmt);
+    } else {
+      insertStmt(stmt);
+    }
   }
 
   /**
@@ -9,27 +9,36 @@
  */
 package averroes.soot;
 
+import averroes.AverroesContext;
 import averroes.options.AverroesOptions;
 import averroes.tamiflex.TamiFlexFactsDatabase;
 import averroes.util.io.Paths;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.io.FileUtils;
 import soot.ArrayType;
 import soot.BooleanType;
 import soot.Local;
 import soot.Modifier;
+import soot.PackManager;
 import soot.RefLikeType;
 import soot.RefType;
 import soot.SootClass;
@@ -40,6 +49,7 @@ import soot.SourceLocator;
 import soot.Type;
 import soot.Value;
 import soot.VoidType;
+import soot.baf.BafASMBackend;
 import soot.jimple.AssignStmt;
 import soot.jimple.IntConstant;
 import soot.jimple.InvokeExpr;
@@ -47,7 +57,6 @@ import soot.jimple.Jimple;
 import soot.jimple.JimpleBody;
 import soot.jimple.toolkits.scalar.NopEliminator;
 import soot.options.Options;
-import soot.util.JasminOutputStream;
 
 /**
  * The master-mind of Averroes. That's where the magic of generating code for library classes
@@ -57,17 +66,26 @@ import soot.util.JasminOutputStream;
  */
 public class CodeGenerator {
 
-  private static CodeGenerator instance = new CodeGenerator();
+  /*
+   * The number of Jimple statements after which the statements of doItAll
+   * go into a new shard method. This keeps each method far below the 64 KB
+   * limit on the bytecode of a method, and mostly below the 8000 bytes that
+   * HotSpot still compiles.
+   */
+  private static final int DO_IT_ALL_SHARD_SIZE = 500;
 
   private HashMap<SootClass, SootClass> libraryInterfaceToConcreteImplementationClass;
   private HashMap<SootClass, SootClass> abstractLibraryClassToConcreteImplementationClass;
 
   private int generatedMethodCount;
   private int generatedClassCount;
+  private int droppedObjectCreationCount;
 
   private SootClass averroesLibraryClass = null;
   private SootClass averroesAbstractLibraryClass = null;
   private AverroesJimpleBody doItAllBody = null;
+  private AverroesJimpleBody doItAllShardBody = null;
+  private List<SootMethod> doItAllShards = null;
 
   /** Create a new code generator with the given class Cleanup.v(). */
   private CodeGenerator() {
@@ -76,42 +94,143 @@ public class CodeGenerator {
 
     generatedMethodCount = 0;
     generatedClassCount = 0;
+    droppedObjectCreationCount = 0;
 
     initialize();
   }
 
   /**
-   * Get the CodeGenerator singleton.
+   * Get the code generator of the current Averroes job (see {@link AverroesContext}).
    *
    * @return
    */
   public static CodeGenerator v() {
-    return instance;
+    return AverroesContext.v().get(CodeGenerator.class, CodeGenerator::new);
   }
 
   /**
-   * Write the class file for the given library class.
+   * Write the class file for the given library class. The bytecode is emitted straight through
+   * Soot's ASM backend (Jimple bodies are converted to Baf on the way), in the class file version
+   * given by {@link AverroesOptions#getClassVersion()}. The class file is kept in memory until it
+   * is added to the placeholder library JAR files (see {@link #getLibraryClassFiles()}), and is
+   * only written under the classes directory if {@link AverroesOptions#isWriteClassFiles()} is set.
+   *
+   * <p>If {@link AverroesOptions#isParallelClassFiles()} is set, the method bodies of the class are
+   * converted to Baf right away, on the calling thread, since Soot is not thread-safe. The class
+   * itself is only serialized once all the classes are generated, in parallel with the other
+   * classes (see {@link #getLibraryClassFiles()}). The class must not be changed after this call.
    *
    * @param cls
    * @throws IOException
    */
   public static void writeLibraryClassFile(SootClass cls) throws IOException {
-    Options.v().set_output_dir(Paths.libraryClassesOutputDirectory().getPath());
+    LibraryClassFiles libraryClassFiles =
+        AverroesContext.v().get(LibraryClassFiles.class, LibraryClassFiles::new);
+    String entryName = cls.getName().replace('.', '/') + ".class";
+    int javaVersion = AverroesOptions.getClassVersion();
+
+    // The options of Soot are only touched on this thread
+    File file = null;
+    if (AverroesOptions.isWriteClassFiles()) {
+      Options.v().set_output_dir(Paths.libraryClassesOutputDirectory().getPath());
+      file = new File(SourceLocator.v().getFileNameFor(cls, Options.output_format_class));
+    }
+    File classFile = file;
+
+    // The entry is added right away, so that the JAR files keep the order
+    // in which the classes were generated
+    if (AverroesOptions.isParallelClassFiles()) {
+      convertBodiesToBaf(cls);
+      libraryClassFiles.classFiles.put(
+          entryName, () -> generateClassFile(cls, javaVersion, classFile));
+    } else {
+      try {
+        byte[] bytes = generateClassFile(cls, javaVersion, classFile);
+        libraryClassFiles.classFiles.put(entryName, () -> bytes);
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
+  }
 
-    File file = new File(SourceLocator.v().getFileNameFor(cls, Options.output_format_class));
-    file.getParentFile().mkdirs();
+  /**
+   * Replace the Jimple bodies of the concrete methods of the given class with their Baf bodies,
+   * which is what the ASM backend serializes. That way, serializing the class does not create any
+   * Soot object.
+   *
+   * @param cls
+   */
+  private static void convertBodiesToBaf(SootClass cls) {
+    for (SootMethod method : cls.getMethods()) {
+      if (method.isConcrete()
+          && method.hasActiveBody()
+          && method.getActiveBody() instanceof JimpleBody) {
+        method.setActiveBody(PackManager.v().convertJimpleBodyToBaf(method));
+      }
+    }
+  }
 
-    OutputStream streamOut = new JasminOutputStream(new FileOutputStream(file));
-    PrintWriter writerOut = new PrintWriter(new OutputStreamWriter(streamOut));
+  /**
+   * Serialize the given library class, and write it to the given file (if any).
+   *
+   * @param cls
+   * @param javaVersion
+   * @param file
+   * @return
+   */
+  private static byte[] generateClassFile(SootClass cls, int javaVersion, File file) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    new BafASMBackend(cls, javaVersion).generateClassFile(bytes);
+    byte[] classFile = bytes.toByteArray();
 
-    if (cls.containsBafBody()) {
-      new soot.baf.JasminClass(cls).print(writerOut);
-    } else {
-      new soot.jimple.JasminClass(cls).print(writerOut);
+    if (file != null) {
+      try {
+        FileUtils.writeByteArrayToFile(file, classFile);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
     }
 
-    writerOut.flush();
-    streamOut.close();
+    return classFile;
+  }
+
+  /**
+   * Get the class files generated for the placeholder library by the current Averroes job (see
+   * {@link AverroesContext}), keyed by their JAR entry names, in the order they were generated.
+   * The classes that are not serialized yet (see {@link AverroesOptions#isParallelClassFiles()})
+   * are serialized in parallel first. The main thread does not touch Soot in the meantime.
+   *
+   * @return
+   * @throws IOException
+   */
+  public static Map<String, byte[]> getLibraryClassFiles() throws IOException {
+    LibraryClassFiles libraryClassFiles =
+        AverroesContext.v().get(LibraryClassFiles.class, LibraryClassFiles::new);
+    List<Map.Entry<String, Supplier<byte[]>>> entries =
+        new ArrayList<Map.Entry<String, Supplier<byte[]>>>(
+            libraryClassFiles.classFiles.entrySet());
+    Stream<Map.Entry<String, Supplier<byte[]>>> stream =
+        AverroesOptions.isParallelClassFiles() ? entries.parallelStream() : entries.stream();
+
+    // The worker threads serialize the classes in the Soot instance of this job
+    AverroesContext context = AverroesContext.v();
+    List<byte[]> classFiles;
+    try {
+      classFiles =
+          stream.map(entry -> context.call(entry.getValue())).collect(Collectors.toList());
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    // Each class is only serialized once
+    Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+    for (int i = 0; i < entries.size(); i++) {
+      byte[] classFile = classFiles.get(i);
+      result.put(entries.get(i).getKey(), classFile);
+      libraryClassFiles.classFiles.put(entries.get(i).getKey(), () -> classFile);
+    }
+
+    return result;
   }
 
   /**
@@ -132,6 +251,16 @@ public class CodeGenerator {
     return generatedClassCount;
   }
 
+  /**
+   * Get the number of object creations left out of doItAll because their types cannot flow to any
+   * type the application sees (see {@link AverroesOptions#isReduceAllocations()}).
+   *
+   * @return
+   */
+  public int getDroppedObjectCreationCount() {
+    return droppedObjectCreationCount;
+  }
+
   /**
    * Get the concrete implementation class for the given library interface.
    *
@@ -511,7 +640,9 @@ public class CodeGenerator {
   /**
    * Create the doItAll method for the Averroes library class. It includes creating objects, calling
    * methods, writing to array elements, throwing exceptions and all the stuff that the library
-   * could do.
+   * could do. Once doItAll grows too large, its statements go into a chain of static shard methods
+   * instead (see {@link #getDoItAllShardBody()}), which doItAll calls before it throws the
+   * throwables.
    */
   private void createAverroesLibraryDoItAll() {
     SootMethod doItAll =
@@ -523,6 +654,8 @@ public class CodeGenerator {
 
     averroesLibraryClass.addMethod(doItAll);
     doItAllBody = new AverroesJimpleBody(doItAll);
+    doItAllShardBody = doItAllBody;
+    doItAllShards = new ArrayList<SootMethod>();
 
     // Load the Averroes instance field
     doItAllBody.getInstance();
@@ -545,6 +678,12 @@ public class CodeGenerator {
       createObjectsFromApplicationClassNames();
     }
 
+    // Call the shards of doItAll in the order they were created
+    finishDoItAllShard();
+    for (SootMethod shard : doItAllShards) {
+      doItAllBody.insertStaticInvokeStatement(shard, true);
+    }
+
     // Now we need to throw all the exceptions the library has access to
     // (via lpt)
     throwThrowables();
@@ -565,11 +704,65 @@ public class CodeGenerator {
     doItAllBody.validate();
   }
 
+  /**
+   * Get the body that the next statements of doItAll go into. That's doItAll itself until it
+   * reaches {@link #DO_IT_ALL_SHARD_SIZE} statements. Then, a new static shard method is added to
+   * the Averroes library class, and so on. The shards share nothing but the LPT, so splitting
+   * doItAll does not change what the library points to.
+   *
+   * @return
+   */
+  private AverroesJimpleBody getDoItAllShardBody() {
+    if (doItAllShardBody.getJimpleBody().getUnits().size() >= DO_IT_ALL_SHARD_SIZE) {
+      finishDoItAllShard();
+
+      SootMethod shard =
+          new SootMethod(
+              Names.AVERROES_DO_IT_ALL_SHARD_METHOD_NAME_PREFIX + doItAllShards.size(),
+              Collections.emptyList(),
+              VoidType.v(),
+              Modifier.PRIVATE | Modifier.STATIC);
+      averroesLibraryClass.addMethod(shard);
+      doItAllShards.add(shard);
+      doItAllShardBody = new AverroesJimpleBody(shard);
+    }
+
+    return doItAllShardBody;
+  }
+
+  /**
+   * Finish the current body of doItAll. The return values of the calls in it are assigned to the
+   * LPT, and a shard method also gets its return statement.
+   */
+  private void finishDoItAllShard() {
+    storeInvokeReturnVariables(doItAllShardBody);
+
+    if (doItAllShardBody != doItAllBody) {
+      doItAllShardBody.insertReturnStmt();
+      NopEliminator.v().transform(doItAllShardBody.getJimpleBody());
+      doItAllShardBody.validate();
+    }
+  }
+
+  /**
+   * Assign the return values of the calls in the given body to the LPT. This only applies to return
+   * variables of type RefLikeType.
+   *
+   * @param body
+   */
+  private void storeInvokeReturnVariables(AverroesJimpleBody body) {
+    for (Local ret : body.getInvokeReturnVariables()) {
+      body.storeLibraryPointsToField(ret);
+    }
+    body.getInvokeReturnVariables().clear();
+  }
+
   /** Call the finalize() method. */
   private void callFinalize() {
-    Local fpt = doItAllBody.getFpt();
+    AverroesJimpleBody body = getDoItAllShardBody();
+    Local fpt = body.getFpt();
     SootMethod finalize = Hierarchy.v().getMethod(Names.FINALIZE_SIG);
-    doItAllBody.insertVirtualInvokeStatement(fpt, finalize);
+    body.insertVirtualInvokeStatement(fpt, finalize);
   }
 
   /** Call the application methods that the library could call reflectively. */
@@ -578,10 +771,11 @@ public class CodeGenerator {
       SootClass cls = toCall.getDeclaringClass();
       // SootClass cls = Cleanup.v().getClass(toCall.getSignature());
       SootMethodRef methodRef = toCall.makeRef();
+      AverroesJimpleBody body = getDoItAllShardBody();
 
       // Prepare the method base, and actual args
-      Local base = (Local) doItAllBody.getCompatibleValue(cls.getType());
-      List<Value> args = doItAllBody.prepareActualArguments(toCall);
+      Local base = (Local) body.getCompatibleValue(cls.getType());
+      List<Value> args = body.prepareActualArguments(toCall);
       InvokeExpr invokeExpr;
 
       // Call the method
@@ -597,19 +791,17 @@ public class CodeGenerator {
       // holds an object.
       // If not, then just call the method.
       if (toCall.getReturnType() instanceof RefLikeType) {
-        Local ret = doItAllBody.newLocal(toCall.getReturnType());
-        doItAllBody.getInvokeReturnVariables().add(ret);
-        doItAllBody.insertAssignmentStatement(ret, invokeExpr);
+        Local ret = body.newLocal(toCall.getReturnType());
+        body.getInvokeReturnVariables().add(ret);
+        body.insertAssignmentStatement(ret, invokeExpr);
       } else {
-        doItAllBody.insertInvokeStatement(invokeExpr);
+        body.insertInvokeStatement(invokeExpr);
       }
     }
 
     // Assign the return values from all those methods only if there were
     // any return variables of type RefLikeType
-    for (Local ret : doItAllBody.getInvokeReturnVariables()) {
-      doItAllBody.storeLibraryPointsToField(ret);
-    }
+    storeInvokeReturnVariables(doItAllShardBody);
   }
 
   /**
@@ -633,21 +825,22 @@ public class CodeGenerator {
 
   /** Handle possible array writes in the library. */
   private void handleArrayIndices() {
+    AverroesJimpleBody body = getDoItAllShardBody();
     Local objectArray =
         (Local)
-            doItAllBody.getCompatibleValue(
-                ArrayType.v(Hierarchy.v().getJavaLangObject().getType(), 1));
-    doItAllBody.insertAssignmentStatement(
-        Jimple.v().newArrayRef(objectArray, IntConstant.v(0)), doItAllBody.getLpt());
+            body.getCompatibleValue(ArrayType.v(Hierarchy.v().getJavaLangObject().getType(), 1));
+    body.insertAssignmentStatement(
+        Jimple.v().newArrayRef(objectArray, IntConstant.v(0)), body.getLpt());
   }
 
   /** Create objects for application classes if the library knows their name constants. */
   private void createObjectsFromApplicationClassNames() {
     SootMethod forName = Hierarchy.v().getMethod(Names.FOR_NAME_SIG);
     SootMethod newInstance = Hierarchy.v().getMethod(Names.NEW_INSTANCE_SIG);
-    List<Value> args = doItAllBody.prepareActualArguments(forName);
-    Local classes = doItAllBody.newLocal(Hierarchy.v().getJavaLangClass().getType());
-    Local instances = doItAllBody.newLocal(Hierarchy.v().getJavaLangObject().getType());
+    AverroesJimpleBody body = getDoItAllShardBody();
+    List<Value> args = body.prepareActualArguments(forName);
+    Local classes = body.newLocal(Hierarchy.v().getJavaLangClass().getType());
+    Local instances = body.newLocal(Hierarchy.v().getJavaLangObject().getType());
 
     AssignStmt classForName =
         Jimple.v().newAssignStmt(classes, Jimple.v().newStaticInvokeExpr(forName.makeRef(), args));
@@ -656,7 +849,7 @@ public class CodeGenerator {
             .newAssignStmt(
                 instances, Jimple.v().newVirtualInvokeExpr(classes, newInstance.makeRef()));
 
-    doItAllBody.insertAndGuardAssignStmts(classForName, classNewInstance);
+    body.insertAndGuardAssignStmts(classForName, classNewInstance);
 
     //		doItAllBody.insertAssignmentStatement(classes,
     // Jimple.v().newStaticInvokeExpr(forName.makeRef(), args));
@@ -675,19 +868,33 @@ public class CodeGenerator {
     doItAllBody.insertThrowStatement(throwables);
   }
 
-  /** Create all the objects that the library could possible instantiate. */
+  /**
+   * Create all the objects that the library could possible instantiate. If {@link
+   * AverroesOptions#isReduceAllocations()} is set, the library classes and array types whose
+   * objects cannot flow to any type the application sees are not instantiated. The application
+   * classes are always instantiated, since their constructors are application code.
+   */
   private void createObjects() {
+    VisibleTypes visibleTypes =
+        AverroesOptions.isReduceAllocations()
+            ? new VisibleTypes(getApplicationVisibleTypes())
+            : null;
+
     // 1. The library can point to any concrete (i.e., not an interface nor
     // abstract) library class
     for (SootClass cls : getConcreteLibraryClasses()) {
-      doItAllBody.createObjectOfType(cls);
+      if (visibleTypes == null || visibleTypes.canFlowTo(cls)) {
+        getDoItAllShardBody().createObjectOfType(cls);
+      } else {
+        droppedObjectCreationCount++;
+      }
     }
 
     // 2. Convert any use of application class name string constants to
     // explicit instantiations.
     for (SootClass cls : Hierarchy.v().getApplicationConstantPool().getApplicationClasses()) {
       if (!Hierarchy.isAbstractClass(cls) && !cls.isInterface()) {
-        doItAllBody.createObjectOfType(cls);
+        getDoItAllShardBody().createObjectOfType(cls);
       }
     }
 
@@ -695,7 +902,7 @@ public class CodeGenerator {
     // Class.newInstance
     if (AverroesOptions.isTamiflexEnabled()) {
       for (SootClass cls : getTamiFlexApplicationClassNewInstance()) {
-        doItAllBody.createObjectOfType(cls);
+        getDoItAllShardBody().createObjectOfType(cls);
       }
     }
 
@@ -703,13 +910,17 @@ public class CodeGenerator {
     // Constructor.newInstance
     if (AverroesOptions.isTamiflexEnabled()) {
       for (SootMethod init : getTamiFlexApplicationConstructorNewInstance()) {
-        doItAllBody.createObjectByCallingConstructor(init);
+        getDoItAllShardBody().createObjectByCallingConstructor(init);
       }
     }
 
     // 5. The library points to some certain objects of array types
     for (ArrayType type : getArrayTypesAccessibleToLibrary()) {
-      doItAllBody.createObjectOfType(type);
+      if (visibleTypes == null || visibleTypes.canFlowTo(type)) {
+        getDoItAllShardBody().createObjectOfType(type);
+      } else {
+        droppedObjectCreationCount++;
+      }
     }
 
     // 6. The library could possibly create application objects whose class
@@ -717,7 +928,7 @@ public class CodeGenerator {
     // calls to Class.forName
     if (AverroesOptions.isTamiflexEnabled()) {
       for (SootClass cls : getTamiFlexApplicationClassForName()) {
-        doItAllBody.createObjectOfType(cls);
+        getDoItAllShardBody().createObjectOfType(cls);
       }
     }
 
@@ -725,7 +936,7 @@ public class CodeGenerator {
     if (AverroesOptions.isDynamicClassesEnabled()) {
       try {
         for (String className : AverroesOptions.getDynamicApplicationClasses()) {
-          doItAllBody.createObjectOfType(Hierarchy.v().getClass(className));
+          getDoItAllShardBody().createObjectOfType(Hierarchy.v().getClass(className));
         }
       } catch (IOException e) {
         e.printStackTrace();
@@ -733,6 +944,47 @@ public class CodeGenerator {
     }
   }
 
+  /**
+   * Get the declared types through which the application can see the objects of the library: the
+   * return types of the library methods it calls, the types of the library fields it reads, and the
+   * receiver and parameter types of the methods the library calls back. The library also throws
+   * any throwable it points to, and writes to the elements of any array it points to, so the
+   * elements of the arrays the application passes to the library or sees are visible too.
+   *
+   * @return
+   */
+  private Set<Type> getApplicationVisibleTypes() {
+    Set<Type> result = new HashSet<Type>();
+
+    for (SootMethod method : Hierarchy.v().getApplicationConstantPool().getLibraryMethods()) {
+      result.add(method.getReturnType());
+      method.getParameterTypes().stream()
+          .filter(type -> type instanceof ArrayType)
+          .forEach(result::add);
+    }
+
+    for (SootField field : Hierarchy.v().getApplicationConstantPool().getLibraryFields()) {
+      result.add(field.getType());
+    }
+
+    for (SootMethod method : getAllMethodsToCallReflectively()) {
+      result.add(method.getDeclaringClass().getType());
+      result.addAll(method.getParameterTypes());
+    }
+
+    result.add(Hierarchy.v().getJavaLangThrowable().getType());
+
+    // Add the element types of the visible array types
+    for (Type type : new ArrayList<Type>(result)) {
+      while (type instanceof ArrayType) {
+        type = ((ArrayType) type).getElementType();
+        result.add(type);
+      }
+    }
+
+    return result;
+  }
+
   /**
    * Get a set of all the array types accessible to the library.
    *
@@ -767,15 +1019,21 @@ public class CodeGenerator {
 
   /**
    * Get a set of all the library classes. This include the original library classes, in addition to
-   * the concrete implementation classes generated by this code generator.
+   * the concrete implementation classes generated by this code generator. The set is iterated in a
+   * fixed order, with every class after its supertypes.
    *
    * @return
    */
   private Set<SootClass> getLibraryClasses() {
-    Set<SootClass> result = new HashSet<SootClass>();
+    Set<SootClass> result = new LinkedHashSet<SootClass>();
     result.addAll(Hierarchy.v().getLibraryClasses());
-    result.addAll(abstractLibraryClassToConcreteImplementationClass.values());
-    result.addAll(libraryInterfaceToConcreteImplementationClass.values());
+
+    // The generated classes only extend original library classes, so they go last
+    SortedSet<SootClass> generated =
+        new TreeSet<SootClass>(Comparator.comparing(SootClass::getName));
+    generated.addAll(abstractLibraryClassToConcreteImplementationClass.values());
+    generated.addAll(libraryInterfaceToConcreteImplementationClass.values());
+    result.addAll(generated);
     return result;
   }
 
@@ -1006,4 +1264,13 @@ public class CodeGenerator {
       }
     }
   }
+
+  /**
+   * The class files generated for the placeholder library by an Averroes job, in the order they
+   * were generated. Each of them is either serialized already, or serialized on demand.
+   */
+  private static class LibraryClassFiles {
+    private Map<String, Supplier<byte[]>> classFiles =
+        new LinkedHashMap<String, Supplier<byte[]>>();
+  }
 }
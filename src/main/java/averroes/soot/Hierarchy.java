@@ -9,46 +9,53 @@
  */
 package averroes.soot;
 
+import averroes.AverroesContext;
 import averroes.options.AverroesOptions;
+import averroes.util.CompactSets;
+import averroes.util.HeapReport;
 import org.objectweb.asm.AsmAverroesApplicationConstantPool;
 import soot.*;
 import soot.tagkit.Tag;
 
 import java.util.*;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  * A representation of the class hierarchy Averroes uses for the input program.
  *
+ * <p>If {@link AverroesOptions#isCompactHierarchy()} is set, the relations between classes and the
+ * supermethods of each method are kept in compact immutable sets (see {@link CompactSets}), so the
+ * many empty and singleton relations take (almost) no memory.
+ *
  * @author Karim Ali
  */
 public class Hierarchy {
 
-  private static Hierarchy instance = new Hierarchy();
-
   private AsmAverroesApplicationConstantPool applicationConstantPool;
 
   private SootBasicClassesDatabase basicClassesDatabase;
 
-  private HashMap<SootClass, LinkedHashSet<SootClass>> classToSuperclasses;
+  private HierarchyIndex index;
+  private OverrideIndex overrideIndex;
+  private boolean compact;
+  private boolean frozen;
+
+  private HashMap<SootClass, Integer> classToDepth;
+  private HashMap<SootClass, Set<SootClass>> classToSuperclasses;
   private HashMap<SootClass, SootClass> classToDirectSuperclass;
-  private HashMap<SootClass, LinkedHashSet<SootClass>> classToSubclasses;
-  private HashMap<SootClass, LinkedHashSet<SootClass>> classToConcreteSubclasses;
-  private HashMap<SootClass, LinkedHashSet<SootClass>> classToLibraryConcreteSubclasses;
-  private HashMap<SootClass, LinkedHashSet<SootClass>> classToDirectSubclasses;
-
-  private HashMap<SootClass, LinkedHashSet<SootClass>> classToSuperinterfaces;
-  private HashMap<SootClass, LinkedHashSet<SootClass>> classToDirectSuperinterfaces;
-  private HashMap<SootClass, LinkedHashSet<SootClass>> interfaceToDirectImplementers;
-  private HashMap<SootClass, LinkedHashSet<SootClass>> interfaceToImplementers;
-  private HashMap<SootClass, LinkedHashSet<SootClass>> interfaceToConcreteImplementers;
-  private HashMap<SootClass, LinkedHashSet<SootClass>> interfaceToLibraryConcreteImplementers;
+  private HashMap<SootClass, Set<SootClass>> classToDirectSubclasses;
+
+  private HashMap<SootClass, Set<SootClass>> classToSuperinterfaces;
+  private HashMap<SootClass, Set<SootClass>> classToDirectSuperinterfaces;
+  private HashMap<SootClass, Set<SootClass>> interfaceToDirectImplementers;
 
   private HashMap<SootMethod, SootMethod> methodToTopmostSuperMethod;
   private HashMap<SootMethod, SootMethod> methodToTopmostSuperclassesSuperMethod;
   private HashMap<SootMethod, SootMethod> methodToTopmostSuperinterfacesSuperMethod;
 
   private HashMap<SootMethod, Set<SootMethod>> methodToSuperMethods;
-  private HashMap<SootMethod, LinkedHashSet<SootMethod>> methodToSuperclassesSuperMethods;
+  private HashMap<SootMethod, Set<SootMethod>> methodToSuperclassesSuperMethods;
   private HashMap<SootMethod, Set<SootMethod>> methodToSuperinterfacesSuperMethods;
 
   private HashMap<SootClass, Set<SootMethod>> classToLibrarySuperMethods;
@@ -91,30 +98,29 @@ public class Hierarchy {
    * so it doesn't make sense to include any more classes.
    */
   private Hierarchy() {
-    classToSuperclasses = new HashMap<SootClass, LinkedHashSet<SootClass>>();
+    compact = AverroesOptions.isCompactHierarchy();
+    frozen = false;
+
+    classToDepth = new HashMap<SootClass, Integer>();
+    classToSuperclasses = new HashMap<SootClass, Set<SootClass>>();
     classToDirectSuperclass = new HashMap<SootClass, SootClass>();
-    classToSubclasses = new HashMap<SootClass, LinkedHashSet<SootClass>>();
-    classToConcreteSubclasses = new HashMap<SootClass, LinkedHashSet<SootClass>>();
-    classToLibraryConcreteSubclasses = new HashMap<SootClass, LinkedHashSet<SootClass>>();
-    classToDirectSubclasses = new HashMap<SootClass, LinkedHashSet<SootClass>>();
-
-    classToSuperinterfaces = new HashMap<SootClass, LinkedHashSet<SootClass>>();
-    classToDirectSuperinterfaces = new HashMap<SootClass, LinkedHashSet<SootClass>>();
-    interfaceToDirectImplementers = new HashMap<SootClass, LinkedHashSet<SootClass>>();
-    interfaceToImplementers = new HashMap<SootClass, LinkedHashSet<SootClass>>();
-    interfaceToConcreteImplementers = new HashMap<SootClass, LinkedHashSet<SootClass>>();
-    interfaceToLibraryConcreteImplementers = new HashMap<SootClass, LinkedHashSet<SootClass>>();
+    classToDirectSubclasses = new HashMap<SootClass, Set<SootClass>>();
+
+    classToSuperinterfaces = new HashMap<SootClass, Set<SootClass>>();
+    classToDirectSuperinterfaces = new HashMap<SootClass, Set<SootClass>>();
+    interfaceToDirectImplementers = new HashMap<SootClass, Set<SootClass>>();
 
     methodToTopmostSuperMethod = new HashMap<SootMethod, SootMethod>();
     methodToTopmostSuperclassesSuperMethod = new HashMap<SootMethod, SootMethod>();
     methodToTopmostSuperinterfacesSuperMethod = new HashMap<SootMethod, SootMethod>();
 
     methodToSuperMethods = new HashMap<SootMethod, Set<SootMethod>>();
-    methodToSuperclassesSuperMethods = new HashMap<SootMethod, LinkedHashSet<SootMethod>>();
+    methodToSuperclassesSuperMethods = new HashMap<SootMethod, Set<SootMethod>>();
     methodToSuperinterfacesSuperMethods = new HashMap<SootMethod, Set<SootMethod>>();
 
     classToLibrarySuperMethods = new HashMap<SootClass, Set<SootMethod>>();
     librarySuperMethodsOfApplicationMethods = new HashSet<SootMethod>();
+    overrideIndex = new OverrideIndex(this);
 
     applicationClassesReferencedByName = new HashSet<SootClass>();
     libraryMethodsReferencedInApplication = new HashSet<SootMethod>();
@@ -153,17 +159,17 @@ public class Hierarchy {
   }
 
   /**
-   * Get the Cleanup singleton.
+   * Get the hierarchy of the current Averroes job (see {@link AverroesContext}).
    *
    * @return
    */
   public static Hierarchy v() {
-    return instance;
+    return AverroesContext.v().get(Hierarchy.class, Hierarchy::new);
   }
 
-  /** Reset the hierarchy. */
+  /** Reset the hierarchy of the current Averroes job. */
   public static void reset() {
-    instance = new Hierarchy();
+    AverroesContext.v().put(Hierarchy.class, new Hierarchy());
   }
 
   /**
@@ -464,17 +470,168 @@ public class Hierarchy {
     return applicationFieldCount + libraryFieldCount;
   }
 
+  /**
+   * Add the estimated heap taken by each structure of this hierarchy to the given report.
+   *
+   * @param report
+   */
+  public void addTo(HeapReport report) {
+    report.add("class depths", classToDepth);
+    report.add("superclasses", classToSuperclasses, classToDirectSuperclass);
+    report.add("direct subclasses", classToDirectSubclasses);
+    report.add("superinterfaces", classToSuperinterfaces, classToDirectSuperinterfaces);
+    report.add("direct implementers", interfaceToDirectImplementers);
+    report.add(
+        "supermethods",
+        methodToSuperMethods,
+        methodToSuperclassesSuperMethods,
+        methodToSuperinterfacesSuperMethods);
+    report.add(
+        "topmost supermethods",
+        methodToTopmostSuperMethod,
+        methodToTopmostSuperclassesSuperMethod,
+        methodToTopmostSuperinterfacesSuperMethod);
+    report.add(
+        "library supermethods", classToLibrarySuperMethods, librarySuperMethodsOfApplicationMethods);
+    report.add(
+        "referenced library members",
+        applicationClassesReferencedByName,
+        libraryMethodsReferencedInApplication,
+        libraryFieldsReferencedInApplication);
+    report.add(
+        "class names and kinds",
+        classes,
+        nameToClass,
+        nameToApplicationClass,
+        nameToLibraryClass,
+        applicationClasses,
+        libraryClasses,
+        abstractLibraryClasses,
+        concreteLibraryClasses,
+        libraryInterfaces,
+        abstractLibraryClassesNotImplementedInLibrary,
+        libraryInterfacesNotImplementedInLibrary);
+    index.addTo(report);
+    overrideIndex.addTo(report);
+  }
+
   /**
    * Clean up the hierarchy from methods and fields not referenced by the application. In addition,
    * add default constructors to classes that don't have one. They will be used by Averroes to
    * create objects in the doItAll method.
    */
   public void cleanupLibraryClasses() {
+    // First decide what to remove, then mutate the library classes in one pass
+    Set<SootMethod> removableMethods = findRemovableLibraryMethods(true);
+    Set<SootField> removableFields = findRemovableLibraryFields(true);
+
     for (SootClass libraryClass : libraryClasses) {
       addDefaultConstructorToLibraryClass(libraryClass);
       cleanupLibraryClassTags(libraryClass);
-      cleanupMethodsInLibraryClass(libraryClass);
-      cleanupFieldsInLibraryClass(libraryClass);
+      cleanupMethodsInLibraryClass(libraryClass, removableMethods);
+      cleanupFieldsInLibraryClass(libraryClass, removableFields);
+    }
+  }
+
+  /**
+   * Find the library methods to remove. Whether a method is removable depends on which of its
+   * supermethods survive the cleanup, so the library classes are processed level by level in the
+   * class hierarchy (see {@link #getDepthOf(SootClass)}). The classes at the same level do not
+   * depend on each other, so they are processed in parallel. Otherwise, the library classes are
+   * processed one at a time in the same order.
+   *
+   * <p>The hierarchy is frozen while the methods are processed (see {@link #freeze(Supplier)}).
+   *
+   * @param parallel
+   * @return
+   */
+  public Set<SootMethod> findRemovableLibraryMethods(boolean parallel) {
+    return freeze(
+        () -> {
+          Set<SootMethod> result = new HashSet<SootMethod>();
+
+          // The library classes are already sorted by their depth
+          List<SootClass> level = new ArrayList<SootClass>();
+          int depth = -1;
+          for (SootClass libraryClass : libraryClasses) {
+            int classDepth = getDepthOf(libraryClass);
+            if (!parallel || classDepth != depth) {
+              result.addAll(findRemovableLibraryMethods(level, result, parallel));
+              level.clear();
+              depth = classDepth;
+            }
+            level.add(libraryClass);
+          }
+          result.addAll(findRemovableLibraryMethods(level, result, parallel));
+
+          return result;
+        });
+  }
+
+  /**
+   * Find the removable methods in the given library classes, given the methods already found to be
+   * removable in their supertypes.
+   *
+   * @param classes
+   * @param removedMethods
+   * @param parallel
+   * @return
+   */
+  private List<SootMethod> findRemovableLibraryMethods(
+      List<SootClass> classes, Set<SootMethod> removedMethods, boolean parallel) {
+    AverroesContext context = AverroesContext.v();
+    return (parallel ? classes.parallelStream() : classes.stream())
+        .flatMap(
+            cls ->
+                context
+                    .call(
+                        () ->
+                            cls.getMethods().stream()
+                                .filter(method -> isLibraryMethodRemovable(method, removedMethods))
+                                .collect(Collectors.toList()))
+                    .stream())
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Find the library fields to remove. The hierarchy is frozen while the fields are processed (see
+   * {@link #freeze(Supplier)}).
+   *
+   * @param parallel
+   * @return
+   */
+  public Set<SootField> findRemovableLibraryFields(boolean parallel) {
+    AverroesContext context = AverroesContext.v();
+    return freeze(
+        () ->
+            (parallel ? libraryClasses.parallelStream() : libraryClasses.stream())
+                .flatMap(
+                    cls ->
+                        context
+                            .call(
+                                () ->
+                                    cls.getFields().stream()
+                                        .filter(this::isLibraryFieldRemovable)
+                                        .collect(Collectors.toList()))
+                            .stream())
+                .collect(Collectors.toSet()));
+  }
+
+  /**
+   * Run the given task on a frozen hierarchy. The base relations of all the library classes are
+   * calculated first, then reading any relation that is still missing fails instead of writing to
+   * the closure maps, so the task can read the hierarchy from many threads.
+   *
+   * @param task
+   * @return
+   */
+  private <T> T freeze(Supplier<T> task) {
+    calculateBaseRelations(libraryClasses);
+    frozen = true;
+    try {
+      return task.get();
+    } finally {
+      frozen = false;
     }
   }
 
@@ -794,46 +951,34 @@ public class Hierarchy {
   }
 
   /**
-   * Find all the superclasses of the given class recursively. This also calculates the subclasses
-   * relation.
+   * Get the depth of the given class in the class hierarchy. That's 0 for a class without any
+   * supertypes (i.e., java.lang.Object), otherwise 1 + the maximum depth of its direct supertypes.
+   * Any supertype of a class has a smaller depth than the class itself.
    *
    * @param cls
    * @return
    */
-  public LinkedHashSet<SootClass> getSuperclassesOf(SootClass cls) {
+  public int getDepthOf(SootClass cls) {
     checkLevel(cls);
-
-    if (!classToSuperclasses.containsKey(cls)) {
-      LinkedHashSet<SootClass> result = new LinkedHashSet<SootClass>();
-
-      if (cls.hasSuperclass()) {
-        // Direct superclass
-        result.add(getDirectSuperclassOf(cls));
-
-        // Direct subclasses
-        getDirectSubclassesOf(cls.getSuperclass()).add(cls);
-
-        // Superclasses of direct superclass
-        result.addAll(getSuperclassesOf(cls.getSuperclass()));
-      }
-      classToSuperclasses.put(cls, result);
-
-      // Calculate the subclasses relation
-      for (SootClass superClass : result) {
-        getSubclassesOf(superClass).add(cls);
-
-        // Calculate the concrete subclasses relation if cls is
-        // concrete.
-        if (cls.isConcrete()) {
-          getConcreteSubclassesOf(superClass).add(cls);
-
-          if (isLibraryClass(cls)) {
-            getLibraryConcreteSubclassesOf(superClass).add(cls);
-          }
-        }
-      }
+    if (isIndexed(cls)) {
+      return index.getDepthOf(cls);
     }
+    calculateBaseRelationsOf(cls);
+    return classToDepth.get(cls);
+  }
 
+  /**
+   * Get all the superclasses of the given class, from its direct superclass up to the topmost one.
+   *
+   * @param cls
+   * @return
+   */
+  public Set<SootClass> getSuperclassesOf(SootClass cls) {
+    checkLevel(cls);
+    if (isIndexed(cls)) {
+      return index.getSuperclassesOf(cls);
+    }
+    calculateBaseRelationsOf(cls);
     return classToSuperclasses.get(cls);
   }
 
@@ -843,14 +988,9 @@ public class Hierarchy {
    * @param cls
    * @return
    */
-  public LinkedHashSet<SootClass> getSubclassesOf(SootClass cls) {
+  public Set<SootClass> getSubclassesOf(SootClass cls) {
     checkLevel(cls);
-
-    if (!classToSubclasses.containsKey(cls)) {
-      classToSubclasses.put(cls, new LinkedHashSet<SootClass>());
-    }
-
-    return classToSubclasses.get(cls);
+    return getSubclassesOf(cls, false, false);
   }
 
   /**
@@ -859,14 +999,9 @@ public class Hierarchy {
    * @param cls
    * @return
    */
-  public LinkedHashSet<SootClass> getConcreteSubclassesOf(SootClass cls) {
+  public Set<SootClass> getConcreteSubclassesOf(SootClass cls) {
     checkLevel(cls);
-
-    if (!classToConcreteSubclasses.containsKey(cls)) {
-      classToConcreteSubclasses.put(cls, new LinkedHashSet<SootClass>());
-    }
-
-    return classToConcreteSubclasses.get(cls);
+    return getSubclassesOf(cls, true, false);
   }
 
   /**
@@ -875,14 +1010,9 @@ public class Hierarchy {
    * @param cls
    * @return
    */
-  public LinkedHashSet<SootClass> getLibraryConcreteSubclassesOf(SootClass cls) {
+  public Set<SootClass> getLibraryConcreteSubclassesOf(SootClass cls) {
     checkLevel(cls);
-
-    if (!classToLibraryConcreteSubclasses.containsKey(cls)) {
-      classToLibraryConcreteSubclasses.put(cls, new LinkedHashSet<SootClass>());
-    }
-
-    return classToLibraryConcreteSubclasses.get(cls);
+    return getSubclassesOf(cls, true, true);
   }
 
   /**
@@ -893,11 +1023,7 @@ public class Hierarchy {
    */
   public SootClass getDirectSuperclassOf(SootClass cls) {
     checkLevel(cls);
-
-    if (!classToDirectSuperclass.containsKey(cls)) {
-      classToDirectSuperclass.put(cls, cls.getSuperclass());
-    }
-
+    calculateBaseRelationsOf(cls);
     return classToDirectSuperclass.get(cls);
   }
 
@@ -907,14 +1033,10 @@ public class Hierarchy {
    * @param cls
    * @return
    */
-  public LinkedHashSet<SootClass> getDirectSubclassesOf(SootClass cls) {
+  public Set<SootClass> getDirectSubclassesOf(SootClass cls) {
     checkLevel(cls);
-
-    if (!classToDirectSubclasses.containsKey(cls)) {
-      classToDirectSubclasses.put(cls, new LinkedHashSet<SootClass>());
-    }
-
-    return classToDirectSubclasses.get(cls);
+    return Collections.unmodifiableSet(
+        classToDirectSubclasses.getOrDefault(cls, Collections.emptySet()));
   }
 
   /**
@@ -925,6 +1047,9 @@ public class Hierarchy {
    * @return
    */
   public boolean isSubclassOf(SootClass possibleChild, SootClass cls) {
+    if (isIndexed(possibleChild) && isIndexed(cls)) {
+      return index.isSubclassOf(possibleChild, cls);
+    }
     return getSuperclassesOf(possibleChild).contains(cls);
   }
 
@@ -936,7 +1061,10 @@ public class Hierarchy {
    * @return
    */
   public boolean isConcreteSubclassOf(SootClass possibleChild, SootClass cls) {
-    return getConcreteSubclassesOf(cls).contains(possibleChild);
+    if (isIndexed(possibleChild) && isIndexed(cls)) {
+      return index.isSubclassOf(possibleChild, cls) && index.isConcrete(possibleChild);
+    }
+    return accept(possibleChild, true, false) && getSuperclassesOf(possibleChild).contains(cls);
   }
 
   /**
@@ -947,7 +1075,10 @@ public class Hierarchy {
    * @return
    */
   public boolean isLibraryConcreteSubclassOf(SootClass possibleChild, SootClass cls) {
-    return getLibraryConcreteSubclassesOf(cls).contains(possibleChild);
+    if (isIndexed(possibleChild) && isIndexed(cls)) {
+      return index.isSubclassOf(possibleChild, cls) && index.isLibraryConcrete(possibleChild);
+    }
+    return accept(possibleChild, true, true) && getSuperclassesOf(possibleChild).contains(cls);
   }
 
   /**
@@ -958,56 +1089,22 @@ public class Hierarchy {
    * @return
    */
   public boolean isSuperclassOf(SootClass possibleParent, SootClass cls) {
-    return getSuperclassesOf(cls).contains(possibleParent);
+    return isSubclassOf(cls, possibleParent);
   }
 
   /**
-   * Find all the super interfaces of a given Soot class recursively.
+   * Get all the superinterfaces of the given class. Those are its direct superinterfaces, then the
+   * superinterfaces of each of them, then the superinterfaces of its direct superclass.
    *
    * @param cls
    * @return
    */
-  public LinkedHashSet<SootClass> getSuperinterfacesOf(SootClass cls) {
+  public Set<SootClass> getSuperinterfacesOf(SootClass cls) {
     checkLevel(cls);
-
-    if (!classToSuperinterfaces.containsKey(cls)) {
-      LinkedHashSet<SootClass> result = new LinkedHashSet<SootClass>();
-
-      // Direct superinterfaces
-      result.addAll(getDirectSuperinterfacesOf(cls));
-
-      // Direct implementers
-      for (SootClass iface : getDirectSuperinterfacesOf(cls)) {
-        getDirectImplementersOf(iface).add(cls);
-      }
-
-      // Superinterface of a direct superinterface
-      for (SootClass iface : getDirectSuperinterfacesOf(cls)) {
-        result.addAll(getSuperinterfacesOf(iface));
-      }
-
-      // Superinterface of the direct superclass
-      if (cls.hasSuperclass()) {
-        result.addAll(getSuperinterfacesOf(cls.getSuperclass()));
-      }
-      classToSuperinterfaces.put(cls, result);
-
-      // Calculate the implementersOf relation
-      for (SootClass iface : result) {
-        getImplementersOf(iface).add(cls);
-
-        // Calculate the concrete implementersOf relation if cls is
-        // concrete
-        if (cls.isConcrete()) {
-          getConcreteImplementersOf(iface).add(cls);
-
-          if (isLibraryClass(cls)) {
-            getLibraryConcreteImplementersOf(iface).add(cls);
-          }
-        }
-      }
+    if (isIndexed(cls)) {
+      return index.getSuperinterfacesOf(cls);
     }
-
+    calculateBaseRelationsOf(cls);
     return classToSuperinterfaces.get(cls);
   }
 
@@ -1030,14 +1127,9 @@ public class Hierarchy {
    * @param cls
    * @return
    */
-  public LinkedHashSet<SootClass> getDirectSuperinterfacesOf(SootClass cls) {
+  public Set<SootClass> getDirectSuperinterfacesOf(SootClass cls) {
     checkLevel(cls);
-
-    if (!classToDirectSuperinterfaces.containsKey(cls)) {
-      LinkedHashSet<SootClass> ifaces = new LinkedHashSet<SootClass>(cls.getInterfaces());
-      classToDirectSuperinterfaces.put(cls, ifaces);
-    }
-
+    calculateBaseRelationsOf(cls);
     return classToDirectSuperinterfaces.get(cls);
   }
 
@@ -1047,14 +1139,10 @@ public class Hierarchy {
    * @param iface
    * @return
    */
-  public LinkedHashSet<SootClass> getDirectImplementersOf(SootClass iface) {
+  public Set<SootClass> getDirectImplementersOf(SootClass iface) {
     checkLevel(iface);
-
-    if (!interfaceToDirectImplementers.containsKey(iface)) {
-      interfaceToDirectImplementers.put(iface, new LinkedHashSet<SootClass>());
-    }
-
-    return interfaceToDirectImplementers.get(iface);
+    return Collections.unmodifiableSet(
+        interfaceToDirectImplementers.getOrDefault(iface, Collections.emptySet()));
   }
 
   /**
@@ -1063,14 +1151,9 @@ public class Hierarchy {
    * @param iface
    * @return
    */
-  public LinkedHashSet<SootClass> getImplementersOf(SootClass iface) {
+  public Set<SootClass> getImplementersOf(SootClass iface) {
     checkLevel(iface);
-
-    if (!interfaceToImplementers.containsKey(iface)) {
-      interfaceToImplementers.put(iface, new LinkedHashSet<SootClass>());
-    }
-
-    return interfaceToImplementers.get(iface);
+    return getImplementersOf(iface, false, false);
   }
 
   /**
@@ -1079,14 +1162,9 @@ public class Hierarchy {
    * @param iface
    * @return
    */
-  public LinkedHashSet<SootClass> getConcreteImplementersOf(SootClass iface) {
+  public Set<SootClass> getConcreteImplementersOf(SootClass iface) {
     checkLevel(iface);
-
-    if (!interfaceToConcreteImplementers.containsKey(iface)) {
-      interfaceToConcreteImplementers.put(iface, new LinkedHashSet<SootClass>());
-    }
-
-    return interfaceToConcreteImplementers.get(iface);
+    return getImplementersOf(iface, true, false);
   }
 
   /**
@@ -1095,14 +1173,9 @@ public class Hierarchy {
    * @param iface
    * @return
    */
-  public LinkedHashSet<SootClass> getLibraryConcreteImplementersOf(SootClass iface) {
+  public Set<SootClass> getLibraryConcreteImplementersOf(SootClass iface) {
     checkLevel(iface);
-
-    if (!interfaceToLibraryConcreteImplementers.containsKey(iface)) {
-      interfaceToLibraryConcreteImplementers.put(iface, new LinkedHashSet<SootClass>());
-    }
-
-    return interfaceToLibraryConcreteImplementers.get(iface);
+    return getImplementersOf(iface, true, true);
   }
 
   /**
@@ -1113,6 +1186,9 @@ public class Hierarchy {
    * @return
    */
   public boolean isSubinterfaceOf(SootClass possibleChild, SootClass iface) {
+    if (isIndexed(possibleChild)) {
+      return index.isSubinterfaceOf(possibleChild, iface);
+    }
     return getSuperinterfacesOf(possibleChild).contains(iface);
   }
 
@@ -1124,7 +1200,87 @@ public class Hierarchy {
    * @return
    */
   public boolean isSuperinterfaceOf(SootClass possibleParent, SootClass cls) {
-    return getSuperinterfacesOf(cls).contains(possibleParent);
+    return isSubinterfaceOf(cls, possibleParent);
+  }
+
+  /**
+   * Get the subclasses of the given class that pass the given filters. The subclasses in the index
+   * are a view over it, and the classes outside the index (e.g., created after the hierarchy) are
+   * found in the closure maps.
+   *
+   * @param cls
+   * @param concrete
+   * @param library
+   * @return
+   */
+  private Set<SootClass> getSubclassesOf(SootClass cls, boolean concrete, boolean library) {
+    Set<SootClass> result =
+        isIndexed(cls)
+            ? index.getSubclassesOf(cls, concrete, library)
+            : Collections.<SootClass>emptySet();
+    return withClassesOutsideIndex(result, classToSuperclasses, cls, concrete, library);
+  }
+
+  /**
+   * Get the implementers of the given interface that pass the given filters. The implementers in
+   * the index are a view over it, and the classes outside the index (e.g., created after the
+   * hierarchy) are found in the closure maps.
+   *
+   * @param iface
+   * @param concrete
+   * @param library
+   * @return
+   */
+  private Set<SootClass> getImplementersOf(SootClass iface, boolean concrete, boolean library) {
+    Set<SootClass> result = index.getImplementersOf(iface, concrete, library);
+    return withClassesOutsideIndex(result, classToSuperinterfaces, iface, concrete, library);
+  }
+
+  /**
+   * Add the classes outside the index whose given closure (i.e., superclasses or superinterfaces)
+   * includes the given supertype, and that pass the given filters, to the given set of classes from
+   * the index. The set is returned as is if there are no such classes.
+   *
+   * @param indexed
+   * @param closure
+   * @param supertype
+   * @param concrete
+   * @param library
+   * @return
+   */
+  private Set<SootClass> withClassesOutsideIndex(
+      Set<SootClass> indexed,
+      Map<SootClass, Set<SootClass>> closure,
+      SootClass supertype,
+      boolean concrete,
+      boolean library) {
+    Set<SootClass> result = indexed;
+    for (Map.Entry<SootClass, Set<SootClass>> entry : closure.entrySet()) {
+      if (entry.getValue().contains(supertype) && accept(entry.getKey(), concrete, library)) {
+        if (result == indexed) {
+          result = new LinkedHashSet<SootClass>(indexed);
+        }
+        result.add(entry.getKey());
+      }
+    }
+    return result == indexed ? indexed : Collections.unmodifiableSet(result);
+  }
+
+  /**
+   * Check if the given class passes the given filters, the same way the index does.
+   *
+   * @param cls
+   * @param concrete only accept concrete classes
+   * @param library only accept library classes (implies concrete)
+   * @return
+   */
+  private boolean accept(SootClass cls, boolean concrete, boolean library) {
+    if (library) {
+      return cls.isConcrete() && isLibraryClass(cls);
+    } else if (concrete) {
+      return cls.isConcrete();
+    }
+    return true;
   }
 
   /**
@@ -1146,7 +1302,7 @@ public class Hierarchy {
           result.addAll(getSuperinterfacesSuperMethodsOf(method));
         }
 
-        methodToSuperMethods.put(method, result);
+        methodToSuperMethods.put(method, memo(result));
       }
 
       return methodToSuperMethods.get(method);
@@ -1208,23 +1364,12 @@ public class Hierarchy {
    * @param method
    * @return
    */
-  public LinkedHashSet<SootMethod> getSuperclassesSuperMethodsOf(SootMethod method) {
+  public Set<SootMethod> getSuperclassesSuperMethodsOf(SootMethod method) {
     if (canOverride(method)) {
       if (!methodToSuperclassesSuperMethods.containsKey(method)) {
-        LinkedHashSet<SootMethod> result = new LinkedHashSet<SootMethod>();
-
-        for (SootClass superClass : getSuperclassesOf(method.getDeclaringClass())) {
-          if (superClass.declaresMethod(method.getNumberedSubSignature())) {
-            // NOTE: Private methods are ignored in calculating
-            // supermethods from superclasses
-            SootMethod m = superClass.getMethod(method.getNumberedSubSignature());
-            if (!m.isPrivate()) {
-              result.add(m);
-            }
-          }
-        }
-
-        methodToSuperclassesSuperMethods.put(method, result);
+        LinkedHashSet<SootMethod> result =
+            new LinkedHashSet<SootMethod>(overrideIndex.getSuperclassesMethodsOf(method));
+        methodToSuperclassesSuperMethods.put(method, memo(result));
       }
 
       return methodToSuperclassesSuperMethods.get(method);
@@ -1240,7 +1385,7 @@ public class Hierarchy {
    * @return
    */
   public boolean hasSuperclassesSuperMethods(SootMethod method) {
-    LinkedHashSet<SootMethod> superMethods = getSuperclassesSuperMethodsOf(method);
+    Set<SootMethod> superMethods = getSuperclassesSuperMethodsOf(method);
     return superMethods != null && !superMethods.isEmpty();
   }
 
@@ -1253,15 +1398,9 @@ public class Hierarchy {
   public Set<SootMethod> getSuperinterfacesSuperMethodsOf(SootMethod method) {
     if (canOverride(method)) {
       if (!methodToSuperinterfacesSuperMethods.containsKey(method)) {
-        Set<SootMethod> result = new HashSet<SootMethod>();
-
-        for (SootClass superInterface : getSuperinterfacesOf(method.getDeclaringClass())) {
-          if (superInterface.declaresMethod(method.getNumberedSubSignature())) {
-            result.add(superInterface.getMethod(method.getNumberedSubSignature()));
-          }
-        }
-
-        methodToSuperinterfacesSuperMethods.put(method, result);
+        Set<SootMethod> result =
+            new HashSet<SootMethod>(overrideIndex.getSuperinterfacesMethodsOf(method));
+        methodToSuperinterfacesSuperMethods.put(method, memo(result));
       }
 
       return methodToSuperinterfacesSuperMethods.get(method);
@@ -1330,7 +1469,7 @@ public class Hierarchy {
         SootMethod result = null;
 
         if (hasSuperclassesSuperMethods(method)) {
-          LinkedHashSet<SootMethod> s = getSuperclassesSuperMethodsOf(method);
+          Set<SootMethod> s = getSuperclassesSuperMethodsOf(method);
           result = s.stream().skip(s.size() - 1).findFirst().get();
           // result =
           // SetUtils.getLastElement(getSuperclassesSuperMethodsOf(method));
@@ -1442,7 +1581,7 @@ public class Hierarchy {
         }
       }
 
-      classToLibrarySuperMethods.put(cls, result);
+      classToLibrarySuperMethods.put(cls, memo(result));
     }
 
     return classToLibrarySuperMethods.get(cls);
@@ -1637,12 +1776,179 @@ public class Hierarchy {
     return result;
   }
 
-  /** Calculate the base relations (i.e., class hierarchy). */
+  /**
+   * Calculate the base relations (i.e., class hierarchy), then index the transitive relations.
+   * After this stage, the relations of the classes in the hierarchy are only read from the index,
+   * and the closure maps only hold the classes outside of it.
+   */
   private void calculateBaseRelations() {
-    for (SootClass cls : classes) {
-      getSuperclassesOf(cls);
-      getSuperinterfacesOf(cls);
+    calculateBaseRelations(classes);
+    if (compact) {
+      classToDirectSubclasses.replaceAll((cls, subclasses) -> CompactSets.copyOf(subclasses));
+      interfaceToDirectImplementers.replaceAll(
+          (iface, implementers) -> CompactSets.copyOf(implementers));
+    }
+    index = new HierarchyIndex(this);
+
+    classToDepth.clear();
+    classToSuperclasses.clear();
+    classToSuperinterfaces.clear();
+  }
+
+  /**
+   * Calculate the base relations of the given class, if not done already (e.g., for a class that
+   * was not in the Soot scene when the hierarchy was created). This fails on a frozen hierarchy
+   * (see {@link #freeze(Supplier)}).
+   *
+   * @param cls
+   */
+  private void calculateBaseRelationsOf(SootClass cls) {
+    if (!isCalculated(cls)) {
+      if (frozen) {
+        throw new IllegalStateException(
+            "The base relations of " + cls + " are missing, and the hierarchy is frozen.");
+      }
+      calculateBaseRelations(Collections.singletonList(cls));
+    }
+  }
+
+  /**
+   * Check if the base relations of the given class are calculated, i.e., it is in the index or in
+   * the closure maps.
+   *
+   * @param cls
+   * @return
+   */
+  private boolean isCalculated(SootClass cls) {
+    return isIndexed(cls) || classToSuperclasses.containsKey(cls);
+  }
+
+  /**
+   * Calculate the base relations of the given classes and all their supertypes. The classes are
+   * visited in topological order (i.e., every supertype before its subtypes) using an explicit
+   * stack, so that each class reuses the closures already computed for its direct supertypes.
+   *
+   * @param roots
+   */
+  private void calculateBaseRelations(Collection<SootClass> roots) {
+    Deque<SootClass> stack = new ArrayDeque<SootClass>();
+    Set<SootClass> visiting = new HashSet<SootClass>();
+
+    for (SootClass root : roots) {
+      stack.push(root);
+
+      while (!stack.isEmpty()) {
+        SootClass cls = stack.peek();
+
+        if (isCalculated(cls)) {
+          stack.pop();
+        } else if (visiting.add(cls)) {
+          // First visit: calculate the supertypes first
+          checkLevel(cls);
+          List<SootClass> ifaces = new ArrayList<SootClass>(cls.getInterfaces());
+          Collections.reverse(ifaces);
+          for (SootClass iface : ifaces) {
+            if (!visiting.contains(iface)) {
+              stack.push(iface);
+            }
+          }
+          if (cls.hasSuperclass() && !visiting.contains(cls.getSuperclass())) {
+            stack.push(cls.getSuperclass());
+          }
+        } else {
+          // Second visit: all the supertypes are done
+          calculateDirectRelationsOf(cls);
+          visiting.remove(cls);
+          stack.pop();
+        }
+      }
+    }
+  }
+
+  /**
+   * Calculate the relations of the given class from the already calculated relations of its direct
+   * supertypes.
+   *
+   * @param cls
+   */
+  private void calculateDirectRelationsOf(SootClass cls) {
+    int depth = 0;
+    LinkedHashSet<SootClass> superclasses = new LinkedHashSet<SootClass>();
+    LinkedHashSet<SootClass> directSuperinterfaces =
+        new LinkedHashSet<SootClass>(cls.getInterfaces());
+    LinkedHashSet<SootClass> superinterfaces =
+        new LinkedHashSet<SootClass>(directSuperinterfaces);
+
+    for (SootClass iface : directSuperinterfaces) {
+      addDirectRelation(interfaceToDirectImplementers, iface, cls);
+      if (isCalculated(iface)) {
+        superinterfaces.addAll(getSuperinterfacesOf(iface));
+        depth = Math.max(depth, getDepthOf(iface) + 1);
+      } else {
+        depth = Math.max(depth, 1);
+      }
+    }
+
+    if (cls.hasSuperclass()) {
+      SootClass superclass = cls.getSuperclass();
+      classToDirectSuperclass.put(cls, superclass);
+      addDirectRelation(classToDirectSubclasses, superclass, cls);
+
+      superclasses.add(superclass);
+      if (isCalculated(superclass)) {
+        superclasses.addAll(getSuperclassesOf(superclass));
+        superinterfaces.addAll(getSuperinterfacesOf(superclass));
+        depth = Math.max(depth, getDepthOf(superclass) + 1);
+      } else {
+        depth = Math.max(depth, 1);
+      }
     }
+
+    classToDepth.put(cls, depth);
+    classToSuperclasses.put(cls, readOnly(superclasses));
+    classToDirectSuperinterfaces.put(cls, readOnly(directSuperinterfaces));
+    classToSuperinterfaces.put(cls, readOnly(superinterfaces));
+  }
+
+  /**
+   * Add the given class to the given direct relation (e.g., direct subclasses) of the given
+   * supertype. A relation that was made compact already is copied back into a linked hash set.
+   *
+   * @param relation
+   * @param supertype
+   * @param cls
+   */
+  private static void addDirectRelation(
+      Map<SootClass, Set<SootClass>> relation, SootClass supertype, SootClass cls) {
+    Set<SootClass> related = relation.get(supertype);
+    if (!(related instanceof LinkedHashSet)) {
+      related =
+          related == null ? new LinkedHashSet<SootClass>() : new LinkedHashSet<SootClass>(related);
+      relation.put(supertype, related);
+    }
+    related.add(cls);
+  }
+
+  /**
+   * Get a read-only view of the given relation of a class, which is a compact copy of it if {@link
+   * AverroesOptions#isCompactHierarchy()} is set.
+   *
+   * @param relation
+   * @return
+   */
+  private <T> Set<T> readOnly(Set<T> relation) {
+    return compact ? CompactSets.copyOf(relation) : Collections.unmodifiableSet(relation);
+  }
+
+  /**
+   * Get the set to memoize for the given computed set, which is a compact copy of it if {@link
+   * AverroesOptions#isCompactHierarchy()} is set.
+   *
+   * @param result
+   * @return
+   */
+  private <T> Set<T> memo(Set<T> result) {
+    return compact ? CompactSets.copyOf(result) : result;
   }
 
   /** Create the class trees for the application and the library. */
@@ -1665,7 +1971,7 @@ public class Hierarchy {
   /** Find all the unimplemented abstract library classes. */
   private void findUnimplementedAbstractLibraryClasses() {
     for (SootClass cls : abstractLibraryClasses) {
-      if (getLibraryConcreteSubclassesOf(cls).isEmpty()) {
+      if (!index.hasLibraryConcreteSubclasses(cls)) {
         abstractLibraryClassesNotImplementedInLibrary.add(cls);
       }
     }
@@ -1674,7 +1980,7 @@ public class Hierarchy {
   /** Find all the unimplemented library interfaces. */
   private void findUnimplementedLibraryInterfaces() {
     for (SootClass iface : libraryInterfaces) {
-      if (getLibraryConcreteImplementersOf(iface).isEmpty()) {
+      if (!index.hasLibraryConcreteImplementers(iface)) {
         libraryInterfacesNotImplementedInLibrary.add(iface);
       }
     }
@@ -1756,6 +2062,17 @@ public class Hierarchy {
     return false;
   }
 
+  /**
+   * Check if the given class is in the hierarchy index, in which case the index answers subtype
+   * queries about it.
+   *
+   * @param cls
+   * @return
+   */
+  private boolean isIndexed(SootClass cls) {
+    return index != null && index.contains(cls);
+  }
+
   /**
    * Check if the given class is resolved at least at the level {@link ResolvingLevel#SIGNATURES}.
    *
@@ -1787,12 +2104,14 @@ public class Hierarchy {
    * native method to be non-native.
    *
    * @param libraryClass
+   * @param removableMethods
    */
-  private void cleanupMethodsInLibraryClass(SootClass libraryClass) {
+  private void cleanupMethodsInLibraryClass(
+      SootClass libraryClass, Set<SootMethod> removableMethods) {
     Set<SootMethod> toRemove = new HashSet<SootMethod>();
 
     for (SootMethod method : libraryClass.getMethods()) {
-      if (isLibraryMethodRemovable(method)) {
+      if (removableMethods.contains(method)) {
         toRemove.add(method);
       } else {
         cleanupLibraryMethodExceptions(method);
@@ -1871,12 +2190,13 @@ public class Hierarchy {
    * by the application.
    *
    * @param libraryClass
+   * @param removableFields
    */
-  private void cleanupFieldsInLibraryClass(SootClass libraryClass) {
+  private void cleanupFieldsInLibraryClass(SootClass libraryClass, Set<SootField> removableFields) {
     Set<SootField> toRemove = new HashSet<SootField>();
 
     for (SootField field : libraryClass.getFields()) {
-      if (isLibraryFieldRemovable(field)) {
+      if (removableFields.contains(field)) {
         toRemove.add(field);
       } else {
         cleanupLibraryFieldTags(field);
@@ -1912,12 +2232,16 @@ public class Hierarchy {
   }
 
   /**
-   * Check if it is safe to remove the given library method from its class.
+   * Check if it is safe to remove the given library method from its class, given the methods
+   * already found to be removable in the supertypes of its class. This only reads the hierarchy,
+   * so it's safe to call for different classes in parallel.
    *
    * @param libraryMethod
+   * @param removedMethods
    * @return
    */
-  private boolean isLibraryMethodRemovable(SootMethod libraryMethod) {
+  private boolean isLibraryMethodRemovable(
+      SootMethod libraryMethod, Set<SootMethod> removedMethods) {
     if (libraryMethod.isPrivate()
         || isLibraryMethodReturnTypeRemovable(libraryMethod)
         || isLibraryMethodParameterTypesRemovable(libraryMethod)) {
@@ -1925,10 +2249,42 @@ public class Hierarchy {
     } else if (isBasicLibraryMethod(libraryMethod)
         || isLibraryMethodReferencedInApplication(libraryMethod)) {
       return false;
-    } else
-      return !libraryMethod.isConcrete()
-          || hasConcreteSuperMethod(libraryMethod)
-          || !hasAbstractSuperMethod(libraryMethod);
+    } else if (!libraryMethod.isConcrete()) {
+      return true;
+    }
+
+    boolean hasConcreteSuperMethod = false;
+    boolean hasAbstractSuperMethod = false;
+
+    if (canOverride(libraryMethod)) {
+      List<SootMethod> superMethods = new ArrayList<SootMethod>();
+      superMethods.addAll(overrideIndex.getSuperclassesMethodsOf(libraryMethod));
+      superMethods.addAll(overrideIndex.getSuperinterfacesMethodsOf(libraryMethod));
+
+      for (SootMethod superMethod : superMethods) {
+        if (!removedMethods.contains(superMethod)) {
+          hasConcreteSuperMethod |= isConcreteAfterCleanup(superMethod);
+          hasAbstractSuperMethod |= superMethod.isAbstract();
+        }
+      }
+    }
+
+    return hasConcreteSuperMethod || !hasAbstractSuperMethod;
+  }
+
+  /**
+   * Check if the given method is concrete once the library classes are cleaned up. The native
+   * methods that survive the cleanup of a library class become concrete (see {@link
+   * #makeNotNative(SootMethod)}).
+   *
+   * @param method
+   * @return
+   */
+  private boolean isConcreteAfterCleanup(SootMethod method) {
+    if (method.isNative() && isLibraryMethod(method)) {
+      return !method.isPhantom() && !method.isAbstract();
+    }
+    return method.isConcrete();
   }
 
   /**
@@ -0,0 +1,588 @@
+/**
+ * ***************************************************************************** Copyright (c) 2015
+ * Karim Ali and Ondřej Lhoták. All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * <p>Contributors: Karim Ali - initial API and implementation and/or initial documentation
+ * *****************************************************************************
+ */
+package averroes.soot;
+
+import averroes.util.HeapReport;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import soot.SootClass;
+
+/**
+ * A compact representation of the transitive relations of a {@link Hierarchy}. Every class gets a
+ * dense integer id, which is its position in a pre-order walk of the superclass tree. That way,
+ * the subclasses of a class are exactly the ids that follow it up to the end of its subtree, and
+ * checking the superclass relation compares two integers. Interfaces get a second dense id. The
+ * superinterfaces of each class are stored as an array of interface ids (shared with its
+ * superclass if it has no direct superinterfaces), and the implementers of each interface as a bit
+ * set over the class ids. The relations are returned as read-only views over those ids, so no query
+ * copies them.
+ *
+ * @author Karim Ali
+ */
+public class HierarchyIndex {
+
+  private static final int[] NO_INTERFACES = new int[0];
+
+  private List<SootClass> classes;
+  private Map<SootClass, Integer> classIds;
+  private int[] subtreeEnds;
+  private int[] superclassIds;
+  private int[] depths;
+
+  private List<SootClass> interfaces;
+  private Map<SootClass, Integer> interfaceIds;
+  private int[][] superinterfaceIds;
+  private BitSet[] implementers;
+
+  private BitSet concreteClasses;
+  private BitSet libraryConcreteClasses;
+  private BitSet classesWithLibraryConcreteSubclasses;
+  private BitSet interfacesWithLibraryConcreteImplementers;
+
+  /**
+   * Index all the classes of the given hierarchy, whose relations must be calculated already.
+   *
+   * @param hierarchy
+   */
+  public HierarchyIndex(Hierarchy hierarchy) {
+    Collection<SootClass> input = hierarchy.getClasses();
+
+    classes = new ArrayList<SootClass>(input.size());
+    classIds = new HashMap<SootClass, Integer>(input.size() * 2);
+    subtreeEnds = new int[input.size()];
+    superclassIds = new int[input.size()];
+    depths = new int[input.size()];
+
+    interfaces = new ArrayList<SootClass>();
+    interfaceIds = new HashMap<SootClass, Integer>();
+    superinterfaceIds = new int[input.size()][];
+
+    concreteClasses = new BitSet(input.size());
+    libraryConcreteClasses = new BitSet(input.size());
+    classesWithLibraryConcreteSubclasses = new BitSet(input.size());
+    interfacesWithLibraryConcreteImplementers = new BitSet();
+
+    numberClasses(input);
+    numberInterfaces(hierarchy);
+
+    implementers = new BitSet[interfaces.size()];
+    for (int ifaceId = 0; ifaceId < interfaces.size(); ifaceId++) {
+      implementers[ifaceId] = new BitSet();
+    }
+
+    for (int id = 0; id < classes.size(); id++) {
+      SootClass cls = classes.get(id);
+      depths[id] = hierarchy.getDepthOf(cls);
+
+      // Without direct superinterfaces, a class has the same superinterfaces as its superclass
+      if (cls.getInterfaces().isEmpty() && superclassIds[id] >= 0) {
+        superinterfaceIds[id] = superinterfaceIds[superclassIds[id]];
+      } else {
+        superinterfaceIds[id] = interfaceIdsOf(hierarchy.getSuperinterfacesOf(cls));
+      }
+      for (int ifaceId : superinterfaceIds[id]) {
+        implementers[ifaceId].set(id);
+      }
+
+      if (cls.isConcrete()) {
+        concreteClasses.set(id);
+
+        if (hierarchy.isLibraryClass(cls)) {
+          libraryConcreteClasses.set(id);
+        }
+      }
+    }
+
+    // A class has a library concrete subclass if any class in its subtree (but itself) is one
+    for (int id = 0; id < classes.size(); id++) {
+      int next = libraryConcreteClasses.nextSetBit(id + 1);
+      if (next >= 0 && next < subtreeEnds[id]) {
+        classesWithLibraryConcreteSubclasses.set(id);
+      }
+    }
+
+    for (int ifaceId = 0; ifaceId < interfaces.size(); ifaceId++) {
+      if (implementers[ifaceId].intersects(libraryConcreteClasses)) {
+        interfacesWithLibraryConcreteImplementers.set(ifaceId);
+      }
+    }
+  }
+
+  /**
+   * Add the estimated heap taken by this index to the given report. The superinterface arrays
+   * shared by a class and its subclasses are only counted once.
+   *
+   * @param report
+   */
+  public void addTo(HeapReport report) {
+    report.add(
+        "hierarchy index",
+        classes,
+        classIds,
+        subtreeEnds,
+        superclassIds,
+        depths,
+        interfaces,
+        interfaceIds,
+        implementers,
+        concreteClasses,
+        libraryConcreteClasses,
+        classesWithLibraryConcreteSubclasses,
+        interfacesWithLibraryConcreteImplementers);
+
+    Set<int[]> arrays = Collections.newSetFromMap(new IdentityHashMap<int[], Boolean>());
+    Collections.addAll(arrays, superinterfaceIds);
+    long size = HeapReport.arraySize(superinterfaceIds.length, 4);
+    for (int[] array : arrays) {
+      size += HeapReport.arraySize(array.length, 4);
+    }
+    report.add("hierarchy index", size);
+  }
+
+  /**
+   * Check if the given class is in this index.
+   *
+   * @param cls
+   * @return
+   */
+  public boolean contains(SootClass cls) {
+    return classIds.containsKey(cls);
+  }
+
+  /**
+   * Get the depth of the given class (see {@link Hierarchy#getDepthOf(SootClass)}). The class must
+   * be in this index.
+   *
+   * @param cls
+   * @return
+   */
+  public int getDepthOf(SootClass cls) {
+    return depths[classIds.get(cls)];
+  }
+
+  /**
+   * Check if class A is a subclass of class B. Both classes must be in this index.
+   *
+   * @param possibleChild
+   * @param cls
+   * @return
+   */
+  public boolean isSubclassOf(SootClass possibleChild, SootClass cls) {
+    return isSubclassOf(classIds.get(possibleChild), classIds.get(cls));
+  }
+
+  /**
+   * Check if class A implements interface B. The class must be in this index.
+   *
+   * @param possibleChild
+   * @param iface
+   * @return
+   */
+  public boolean isSubinterfaceOf(SootClass possibleChild, SootClass iface) {
+    Integer ifaceId = interfaceIds.get(iface);
+    return ifaceId != null && implementers[ifaceId].get(classIds.get(possibleChild));
+  }
+
+  /**
+   * Check if the given class is concrete.
+   *
+   * @param cls
+   * @return
+   */
+  public boolean isConcrete(SootClass cls) {
+    return concreteClasses.get(classIds.get(cls));
+  }
+
+  /**
+   * Check if the given class is a concrete library class.
+   *
+   * @param cls
+   * @return
+   */
+  public boolean isLibraryConcrete(SootClass cls) {
+    return libraryConcreteClasses.get(classIds.get(cls));
+  }
+
+  /**
+   * Check if the given class has any concrete library subclass.
+   *
+   * @param cls
+   * @return
+   */
+  public boolean hasLibraryConcreteSubclasses(SootClass cls) {
+    Integer id = classIds.get(cls);
+    return id != null && classesWithLibraryConcreteSubclasses.get(id);
+  }
+
+  /**
+   * Check if the given interface has any concrete library implementer.
+   *
+   * @param iface
+   * @return
+   */
+  public boolean hasLibraryConcreteImplementers(SootClass iface) {
+    Integer id = interfaceIds.get(iface);
+    return id != null && interfacesWithLibraryConcreteImplementers.get(id);
+  }
+
+  /**
+   * Get the superclasses of the given class, from its direct superclass up to the topmost one. The
+   * class must be in this index.
+   *
+   * @param cls
+   * @return
+   */
+  public Set<SootClass> getSuperclassesOf(SootClass cls) {
+    return new SuperclassSet(classIds.get(cls));
+  }
+
+  /**
+   * Get the superinterfaces of the given class, in the order of {@link
+   * Hierarchy#getSuperinterfacesOf(SootClass)}. The class must be in this index.
+   *
+   * @param cls
+   * @return
+   */
+  public Set<SootClass> getSuperinterfacesOf(SootClass cls) {
+    return new SuperinterfaceSet(classIds.get(cls));
+  }
+
+  /**
+   * Get the subclasses of the given class, in the order of their ids. The class must be in this
+   * index.
+   *
+   * @param cls
+   * @param concrete only include concrete classes
+   * @param library only include library classes (implies concrete)
+   * @return
+   */
+  public Set<SootClass> getSubclassesOf(SootClass cls, boolean concrete, boolean library) {
+    int parent = classIds.get(cls);
+    return new ClassSet(parent + 1, subtreeEnds[parent], null, filter(concrete, library));
+  }
+
+  /**
+   * Get the implementers (including subinterfaces) of the given interface, in the order of their
+   * ids.
+   *
+   * @param iface
+   * @param concrete only include concrete classes
+   * @param library only include library classes (implies concrete)
+   * @return
+   */
+  public Set<SootClass> getImplementersOf(SootClass iface, boolean concrete, boolean library) {
+    Integer ifaceId = interfaceIds.get(iface);
+    if (ifaceId == null) {
+      return Collections.emptySet();
+    }
+    return new ClassSet(0, classes.size(), implementers[ifaceId], filter(concrete, library));
+  }
+
+  /**
+   * Check if the class with the first id is a subclass of the class with the second id.
+   *
+   * @param child
+   * @param parent
+   * @return
+   */
+  private boolean isSubclassOf(int child, int parent) {
+    return child > parent && child < subtreeEnds[parent];
+  }
+
+  /**
+   * Get the bit set of the classes that pass the given filters, or null if all of them do.
+   *
+   * @param concrete
+   * @param library
+   * @return
+   */
+  private BitSet filter(boolean concrete, boolean library) {
+    if (library) {
+      return libraryConcreteClasses;
+    } else if (concrete) {
+      return concreteClasses;
+    }
+    return null;
+  }
+
+  /**
+   * Convert the given interfaces to an array of their ids, keeping their order.
+   *
+   * @param ifaces
+   * @return
+   */
+  private int[] interfaceIdsOf(Collection<SootClass> ifaces) {
+    if (ifaces.isEmpty()) {
+      return NO_INTERFACES;
+    }
+
+    int[] result = new int[ifaces.size()];
+    int i = 0;
+    for (SootClass iface : ifaces) {
+      result[i++] = interfaceIds.get(iface);
+    }
+    return result;
+  }
+
+  /**
+   * Number the classes in a pre-order walk of the superclass tree, visiting the roots and the
+   * children of each class in the order of the given collection. A class whose superclass is not
+   * in the collection is a root too.
+   *
+   * @param input
+   */
+  private void numberClasses(Collection<SootClass> input) {
+    Map<SootClass, List<SootClass>> children = new HashMap<SootClass, List<SootClass>>();
+    List<SootClass> roots = new ArrayList<SootClass>();
+    for (SootClass cls : input) {
+      children.put(cls, new ArrayList<SootClass>());
+    }
+    for (SootClass cls : input) {
+      if (cls.hasSuperclass() && children.containsKey(cls.getSuperclass())) {
+        children.get(cls.getSuperclass()).add(cls);
+      } else {
+        roots.add(cls);
+      }
+    }
+
+    // An explicit stack of (class, next child) pairs, to avoid deep recursion
+    List<SootClass> stack = new ArrayList<SootClass>();
+    List<Integer> nextChild = new ArrayList<Integer>();
+    for (SootClass root : roots) {
+      enter(root, -1, stack, nextChild);
+
+      while (!stack.isEmpty()) {
+        int top = stack.size() - 1;
+        SootClass cls = stack.get(top);
+        List<SootClass> clsChildren = children.get(cls);
+        int next = nextChild.get(top);
+
+        if (next < clsChildren.size()) {
+          nextChild.set(top, next + 1);
+          enter(clsChildren.get(next), classIds.get(cls), stack, nextChild);
+        } else {
+          subtreeEnds[classIds.get(cls)] = classes.size();
+          stack.remove(top);
+          nextChild.remove(top);
+        }
+      }
+    }
+  }
+
+  /**
+   * Give the next class id to the given class, whose superclass has the given id (-1 for a root),
+   * and push it on the walk stack.
+   *
+   * @param cls
+   * @param superclassId
+   * @param stack
+   * @param nextChild
+   */
+  private void enter(
+      SootClass cls, int superclassId, List<SootClass> stack, List<Integer> nextChild) {
+    superclassIds[classes.size()] = superclassId;
+    classIds.put(cls, classes.size());
+    classes.add(cls);
+    stack.add(cls);
+    nextChild.add(0);
+  }
+
+  /**
+   * Number the interfaces that appear as a superinterface of any class, in class id order.
+   *
+   * @param hierarchy
+   */
+  private void numberInterfaces(Hierarchy hierarchy) {
+    for (SootClass cls : classes) {
+      for (SootClass iface : hierarchy.getSuperinterfacesOf(cls)) {
+        if (!interfaceIds.containsKey(iface)) {
+          interfaceIds.put(iface, interfaces.size());
+          interfaces.add(iface);
+        }
+      }
+    }
+  }
+
+  /** The classes with ids in a range, that are in a (possibly null) set of members and filter. */
+  private class ClassSet extends AbstractSet<SootClass> {
+    private final int from;
+    private final int to;
+    private final BitSet members;
+    private final BitSet filter;
+    private int size;
+
+    private ClassSet(int from, int to, BitSet members, BitSet filter) {
+      this.from = from;
+      this.to = to;
+      this.members = members;
+      this.filter = filter;
+      this.size = -1;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      Integer id = classIds.get(o);
+      return id != null && id >= from && id < to && accept(id);
+    }
+
+    @Override
+    public int size() {
+      if (size < 0) {
+        int count = 0;
+        for (int id = next(from); id < to; id = next(id + 1)) {
+          count++;
+        }
+        size = count;
+      }
+      return size;
+    }
+
+    @Override
+    public Iterator<SootClass> iterator() {
+      return new Iterator<SootClass>() {
+        private int id = ClassSet.this.next(from);
+
+        @Override
+        public boolean hasNext() {
+          return id < to;
+        }
+
+        @Override
+        public SootClass next() {
+          if (id >= to) {
+            throw new NoSuchElementException();
+          }
+          SootClass result = classes.get(id);
+          id = ClassSet.this.next(id + 1);
+          return result;
+        }
+      };
+    }
+
+    private boolean accept(int id) {
+      return (members == null || members.get(id)) && (filter == null || filter.get(id));
+    }
+
+    /** The first id in this set that is not less than the given one, or the end of the range. */
+    private int next(int id) {
+      while (id < to) {
+        if (members != null) {
+          id = members.nextSetBit(id);
+        }
+        if (id >= 0 && filter != null) {
+          id = filter.nextSetBit(id);
+        }
+        if (id < 0 || id >= to) {
+          return to;
+        } else if (accept(id)) {
+          return id;
+        }
+        id++;
+      }
+      return to;
+    }
+  }
+
+  /** The superclasses of a class, found by walking up the superclass tree. */
+  private class SuperclassSet extends AbstractSet<SootClass> {
+    private final int id;
+
+    private SuperclassSet(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      Integer parent = classIds.get(o);
+      return parent != null && isSubclassOf(id, parent);
+    }
+
+    @Override
+    public int size() {
+      int count = 0;
+      for (int parent = superclassIds[id]; parent >= 0; parent = superclassIds[parent]) {
+        count++;
+      }
+      return count;
+    }
+
+    @Override
+    public Iterator<SootClass> iterator() {
+      return new Iterator<SootClass>() {
+        private int parent = superclassIds[id];
+
+        @Override
+        public boolean hasNext() {
+          return parent >= 0;
+        }
+
+        @Override
+        public SootClass next() {
+          if (parent < 0) {
+            throw new NoSuchElementException();
+          }
+          SootClass result = classes.get(parent);
+          parent = superclassIds[parent];
+          return result;
+        }
+      };
+    }
+  }
+
+  /** The superinterfaces of a class, in the order of its array of interface ids. */
+  private class SuperinterfaceSet extends AbstractSet<SootClass> {
+    private final int id;
+
+    private SuperinterfaceSet(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      Integer ifaceId = interfaceIds.get(o);
+      return ifaceId != null && implementers[ifaceId].get(id);
+    }
+
+    @Override
+    public int size() {
+      return superinterfaceIds[id].length;
+    }
+
+    @Override
+    public Iterator<SootClass> iterator() {
+      return new Iterator<SootClass>() {
+        private int i = 0;
+
+        @Override
+        public boolean hasNext() {
+          return i < superinterfaceIds[id].length;
+        }
+
+        @Override
+        public SootClass next() {
+          if (i >= superinterfaceIds[id].length) {
+            throw new NoSuchElementException();
+          }
+          return interfaces.get(superinterfaceIds[id][i++]);
+        }
+      };
+    }
+  }
+}
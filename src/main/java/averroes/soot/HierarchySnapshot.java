@@ -0,0 +1,472 @@
+/**
+ * ***************************************************************************** Copyright (c) 2015
+ * Karim Ali and Ondřej Lhoták. All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * <p>Contributors: Karim Ali - initial API and implementation and/or initial documentation
+ * *****************************************************************************
+ */
+package averroes.soot;
+
+import averroes.options.AverroesOptions;
+import averroes.util.BytecodeUtils;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import soot.AbstractJasminClass;
+import soot.ClassProvider;
+import soot.ClassSource;
+import soot.RefType;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootField;
+import soot.SootMethod;
+import soot.SootResolver;
+import soot.Type;
+import soot.javaToJimple.IInitialResolver.Dependencies;
+
+/**
+ * A persistent snapshot of the library classes that Soot resolves. For each class, the snapshot
+ * holds what Soot reads from its class file to resolve it up to the level {@link
+ * ResolvingLevel#SIGNATURES}: its modifiers, supertypes and outer class, the signatures of its
+ * fields and methods, and the types it depends on. Soot gets those classes from the snapshot
+ * instead of parsing their class files again, and the classes that are not in the snapshot yet are
+ * added to it at the end of the run.
+ *
+ * <p>Each snapshot file is named after the key of the library inputs it was built from (see {@link
+ * averroes.JarOrganizer#libraryArchivesKey()}), so it's reused by any application that runs
+ * against the same library archives and Java runtime. The file is memory-mapped, and only the
+ * classes that Soot asks for are decoded. Annotations and other tags are not kept, since Averroes
+ * drops them from the placeholder library anyway. The method bodies are not kept either, so only
+ * library classes should be loaded from a snapshot.
+ *
+ * <p>A snapshot can also live in memory only (see {@link #HierarchySnapshot()}). A batch of jobs
+ * (see {@link averroes.Batch}) shares one snapshot per library key, so the classes recorded by one
+ * job are loaded from memory by the next ones.
+ *
+ * @author Karim Ali
+ */
+public class HierarchySnapshot {
+
+  /** Bump this whenever the layout of a snapshot file changes. */
+  private static final int VERSION = 1;
+
+  private static final int MAGIC = 0x41564853;
+
+  private File file;
+
+  private ByteBuffer buffer;
+  private Map<String, Integer> classToOffset;
+  private Map<String, byte[]> recordedClasses;
+  private boolean modified;
+
+  private int loadedClassCount;
+  private int recordedClassCount;
+
+  /** Create an empty snapshot that is only kept in memory. */
+  public HierarchySnapshot() {
+    file = null;
+    buffer = null;
+    classToOffset = new LinkedHashMap<String, Integer>();
+    recordedClasses = new LinkedHashMap<String, byte[]>();
+    modified = false;
+    loadedClassCount = 0;
+    recordedClassCount = 0;
+  }
+
+  /**
+   * Open the snapshot of the given key in the given directory.
+   *
+   * @param directory
+   * @param key
+   * @throws IOException
+   */
+  public HierarchySnapshot(File directory, String key) throws IOException {
+    this();
+    FileUtils.forceMkdir(directory);
+    file = new File(directory, key + ".snapshot");
+
+    if (file.isFile()) {
+      map();
+    }
+  }
+
+  /**
+   * Get a class provider that loads the classes in this snapshot, and asks the given class provider
+   * for any other class. Only the given library classes are loaded from or recorded into the
+   * snapshot (e.g., the ones that are not shadowed by a class of the same name in the input JAR
+   * files). The classes that the given provider resolves are recorded in this snapshot. This also
+   * restarts the counts of loaded and recorded classes.
+   *
+   * @param provider
+   * @param classNames
+   * @return
+   */
+  public ClassProvider classProvider(ClassProvider provider, Set<String> classNames) {
+    loadedClassCount = 0;
+    recordedClassCount = 0;
+
+    return className -> {
+      if (!classNames.contains(className)) {
+        return provider.find(className);
+      } else if (classToOffset.containsKey(className)
+          || recordedClasses.containsKey(className)) {
+        return new SnapshotClassSource(className);
+      }
+
+      ClassSource source = provider.find(className);
+      return source == null ? null : new RecordingClassSource(className, source);
+    };
+  }
+
+  /**
+   * The number of classes loaded from this snapshot through the last class provider.
+   *
+   * @return
+   */
+  public int getLoadedClassCount() {
+    return loadedClassCount;
+  }
+
+  /**
+   * The number of classes recorded into this snapshot through the last class provider.
+   *
+   * @return
+   */
+  public int getRecordedClassCount() {
+    return recordedClassCount;
+  }
+
+  /**
+   * Write the snapshot file back, if any classes were recorded since it was last written. The file
+   * is written to a temporary file first, and then moved in place, so a partially written snapshot
+   * is never read. A snapshot that is only kept in memory is never written.
+   *
+   * @throws IOException
+   */
+  public void save() throws IOException {
+    if (file == null || !modified) {
+      return;
+    }
+
+    Path temporaryFile =
+        Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(classToOffset.size() + recordedClasses.size());
+
+      for (String className : classToOffset.keySet()) {
+        writeRecord(out, className, readRecord(className));
+      }
+      for (Map.Entry<String, byte[]> record : recordedClasses.entrySet()) {
+        writeRecord(out, record.getKey(), record.getValue());
+      }
+    }
+
+    Files.move(temporaryFile, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    modified = false;
+  }
+
+  /**
+   * Map the snapshot file, and index the offsets of its classes. A snapshot file in another layout,
+   * or a truncated or corrupt one, is just ignored, it will be replaced by the next {@link #save()}.
+   *
+   * @throws IOException
+   */
+  private void map() throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    ByteBuffer index = buffer.duplicate();
+    DataInputStream in = new DataInputStream(new BufferInputStream(index));
+    try {
+      if (buffer.capacity() < 3 * Integer.BYTES
+          || in.readInt() != MAGIC
+          || in.readInt() != VERSION) {
+        System.out.println("Ignoring hierarchy snapshot in an older format: " + file);
+        return;
+      }
+
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String className = in.readUTF();
+        int length = in.readInt();
+        if (length < 0 || length > index.remaining()) {
+          throw new EOFException("truncated record of " + className);
+        }
+        classToOffset.put(className, index.position());
+        index.position(index.position() + length);
+      }
+    } catch (IOException e) {
+      System.out.println("Ignoring corrupt hierarchy snapshot: " + file + " (" + e + ")");
+      buffer = null;
+      classToOffset.clear();
+      modified = true;
+    }
+  }
+
+  /**
+   * Read the record of the given class from the snapshot file.
+   *
+   * @param className
+   * @return
+   */
+  private byte[] readRecord(String className) {
+    ByteBuffer record = recordBuffer(className);
+    byte[] result = new byte[record.remaining()];
+    record.get(result);
+    return result;
+  }
+
+  /**
+   * Get a view of the record of the given class, either in the snapshot file or among the classes
+   * recorded since.
+   *
+   * @param className
+   * @return
+   */
+  private ByteBuffer recordBuffer(String className) {
+    if (!classToOffset.containsKey(className)) {
+      return ByteBuffer.wrap(recordedClasses.get(className));
+    }
+
+    ByteBuffer record = buffer.duplicate();
+    int offset = classToOffset.get(className);
+    record.position(offset - Integer.BYTES);
+    int length = record.getInt();
+    record.limit(offset + length);
+    return record;
+  }
+
+  private static void writeRecord(DataOutputStream out, String className, byte[] record)
+      throws IOException {
+    out.writeUTF(className);
+    out.writeInt(record.length);
+    out.write(record);
+  }
+
+  /**
+   * Encode the given resolved class, along with the types it depends on.
+   *
+   * @param cls
+   * @param dependencies
+   * @return
+   * @throws IOException
+   */
+  private static byte[] encode(SootClass cls, Dependencies dependencies) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    out.writeInt(cls.getModifiers());
+    out.writeUTF(cls.hasSuperclass() ? cls.getSuperclass().getName() : "");
+    out.writeUTF(cls.hasOuterClass() ? cls.getOuterClass().getName() : "");
+
+    out.writeShort(cls.getInterfaceCount());
+    for (SootClass iface : cls.getInterfaces()) {
+      out.writeUTF(iface.getName());
+    }
+
+    out.writeShort(cls.getFieldCount());
+    for (SootField field : cls.getFields()) {
+      out.writeUTF(field.getName());
+      out.writeUTF(AbstractJasminClass.jasminDescriptorOf(field.getType()));
+      out.writeInt(field.getModifiers());
+    }
+
+    out.writeShort(cls.getMethodCount());
+    for (SootMethod method : cls.getMethods()) {
+      StringBuilder descriptor = new StringBuilder("(");
+      for (Type type : method.getParameterTypes()) {
+        descriptor.append(AbstractJasminClass.jasminDescriptorOf(type));
+      }
+      descriptor.append(")").append(AbstractJasminClass.jasminDescriptorOf(method.getReturnType()));
+
+      out.writeUTF(method.getName());
+      out.writeUTF(descriptor.toString());
+      out.writeInt(method.getModifiers());
+      out.writeShort(method.getExceptions().size());
+      for (SootClass exception : method.getExceptions()) {
+        out.writeUTF(exception.getName());
+      }
+    }
+
+    encodeTypes(out, dependencies.typesToHierarchy);
+    encodeTypes(out, dependencies.typesToSignature);
+
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static void encodeTypes(DataOutputStream out, Collection<Type> types) throws IOException {
+    out.writeInt(types.size());
+    for (Type type : types) {
+      out.writeUTF(AbstractJasminClass.jasminDescriptorOf(type));
+    }
+  }
+
+  /**
+   * Decode the record of the given class into the given (empty) class, just like Soot would do it
+   * from its class file. If {@link AverroesOptions#isCompactHierarchy()} is set, the names of the
+   * fields and methods are interned, since the same few names (e.g., &lt;init&gt;, toString) are
+   * declared over and over.
+   *
+   * @param in
+   * @param cls
+   * @return
+   * @throws IOException
+   */
+  private static Dependencies decode(DataInputStream in, SootClass cls) throws IOException {
+    boolean intern = AverroesOptions.isCompactHierarchy();
+    cls.setModifiers(in.readInt());
+
+    String superclass = in.readUTF();
+    if (!superclass.isEmpty()) {
+      cls.setSuperclass(SootResolver.v().makeClassRef(superclass));
+    }
+    String outerClass = in.readUTF();
+    if (!outerClass.isEmpty()) {
+      cls.setOuterClass(SootResolver.v().makeClassRef(outerClass));
+    }
+
+    int interfaceCount = in.readUnsignedShort();
+    for (int i = 0; i < interfaceCount; i++) {
+      cls.addInterface(SootResolver.v().makeClassRef(in.readUTF()));
+    }
+
+    int fieldCount = in.readUnsignedShort();
+    for (int i = 0; i < fieldCount; i++) {
+      String name = intern ? in.readUTF().intern() : in.readUTF();
+      Type type = BytecodeUtils.getFieldType(in.readUTF());
+      cls.addField(Scene.v().makeSootField(name, type, in.readInt()));
+    }
+
+    int methodCount = in.readUnsignedShort();
+    for (int i = 0; i < methodCount; i++) {
+      String name = intern ? in.readUTF().intern() : in.readUTF();
+      String descriptor = in.readUTF();
+      int modifiers = in.readInt();
+
+      int exceptionCount = in.readUnsignedShort();
+      List<SootClass> exceptions = new ArrayList<SootClass>(exceptionCount);
+      for (int j = 0; j < exceptionCount; j++) {
+        exceptions.add(SootResolver.v().makeClassRef(in.readUTF()));
+      }
+
+      cls.addMethod(
+          Scene.v()
+              .makeSootMethod(
+                  name,
+                  new ArrayList<Type>(BytecodeUtils.getParameterTypes(descriptor)),
+                  BytecodeUtils.getReturnType(descriptor),
+                  modifiers,
+                  exceptions));
+    }
+
+    Dependencies dependencies = new Dependencies();
+    decodeTypes(in, dependencies.typesToHierarchy);
+    decodeTypes(in, dependencies.typesToSignature);
+    return dependencies;
+  }
+
+  private static void decodeTypes(DataInputStream in, Collection<Type> types) throws IOException {
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      types.add(BytecodeUtils.getFieldType(in.readUTF()));
+    }
+  }
+
+  /** A class source that resolves a class from its record in the snapshot. */
+  private class SnapshotClassSource extends ClassSource {
+
+    private SnapshotClassSource(String className) {
+      super(className);
+    }
+
+    @Override
+    public Dependencies resolve(SootClass sc) {
+      try {
+        Dependencies dependencies =
+            decode(new DataInputStream(new BufferInputStream(recordBuffer(className))), sc);
+        loadedClassCount++;
+        return dependencies;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /** A class source that records the class it resolves into the snapshot. */
+  private class RecordingClassSource extends ClassSource {
+    private ClassSource source;
+
+    private RecordingClassSource(String className, ClassSource source) {
+      super(className);
+      this.source = source;
+    }
+
+    @Override
+    public Dependencies resolve(SootClass sc) {
+      Dependencies dependencies = source.resolve(sc);
+      try {
+        recordedClasses.put(className, encode(sc, dependencies));
+        recordedClassCount++;
+        modified = true;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return dependencies;
+    }
+
+    @Override
+    public void close() {
+      source.close();
+    }
+  }
+
+  /** An input stream over the remaining bytes of a buffer. */
+  private static class BufferInputStream extends InputStream {
+    private ByteBuffer buffer;
+
+    private BufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, count);
+      return count;
+    }
+  }
+}
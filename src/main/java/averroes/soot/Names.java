@@ -64,6 +64,8 @@ public class Names {
 
   // Methods
   public static final String AVERROES_DO_IT_ALL_METHOD_NAME = "doItAll";
+  public static final String AVERROES_DO_IT_ALL_SHARD_METHOD_NAME_PREFIX =
+      AVERROES_DO_IT_ALL_METHOD_NAME + "$";
   public static final String MAIN_METHOD = "main";
   public static final String AVERROES_ABSTRACT_DO_IT_ALL_METHOD_SIGNATURE =
       "<" + AVERROES_ABSTRACT_LIBRARY_CLASS + ": void " + AVERROES_DO_IT_ALL_METHOD_NAME + "()>";
@@ -0,0 +1,218 @@
+/**
+ * ***************************************************************************** Copyright (c) 2015
+ * Karim Ali and Ondřej Lhoták. All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * <p>Contributors: Karim Ali - initial API and implementation and/or initial documentation
+ * *****************************************************************************
+ */
+package averroes.soot;
+
+import averroes.options.AverroesOptions;
+import averroes.util.HeapReport;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.util.NumberedString;
+
+/**
+ * Per-class tables of the methods a class inherits, keyed by numbered subsignature (i.e., a
+ * virtual-dispatch table). Finding the methods that a method overrides then takes a single map
+ * lookup, instead of asking every superclass and superinterface whether it declares the same
+ * subsignature.
+ *
+ * <p>The tables are built lazily. The table of a class extends the table of its superclass, and a
+ * class that does not implement any interface directly shares the interface table of its
+ * superclass. Methods removed from their class after a table is built (e.g., while cleaning up the
+ * library classes) are filtered out on lookup. The tables may be queried from several threads at
+ * once. If {@link AverroesOptions#isCompactHierarchy()} is set, the many interface methods that are
+ * the only ones with their subsignature are kept in singleton lists.
+ *
+ * @author Karim Ali
+ */
+public class OverrideIndex {
+
+  private Hierarchy hierarchy;
+  private boolean compact;
+
+  private Map<SootClass, Map<NumberedString, MethodNode>> classToVisibleMethods;
+  private Map<SootClass, Map<NumberedString, List<SootMethod>>> classToInterfaceMethods;
+
+  /**
+   * Construct a new override index for the given hierarchy.
+   *
+   * @param hierarchy
+   */
+  public OverrideIndex(Hierarchy hierarchy) {
+    this.hierarchy = hierarchy;
+    compact = AverroesOptions.isCompactHierarchy();
+    classToVisibleMethods = new ConcurrentHashMap<SootClass, Map<NumberedString, MethodNode>>();
+    classToInterfaceMethods =
+        new ConcurrentHashMap<SootClass, Map<NumberedString, List<SootMethod>>>();
+  }
+
+  /**
+   * Get the methods with the same subsignature as the given method in the superclasses of its
+   * declaring class, from the nearest superclass to the topmost one.
+   *
+   * @param method
+   * @return
+   */
+  public List<SootMethod> getSuperclassesMethodsOf(SootMethod method) {
+    List<SootMethod> result = new ArrayList<SootMethod>();
+    SootClass cls = method.getDeclaringClass();
+
+    if (cls.hasSuperclass()) {
+      MethodNode node =
+          getVisibleMethodsOf(cls.getSuperclass()).get(method.getNumberedSubSignature());
+      for (; node != null; node = node.next) {
+        // NOTE: Private methods are ignored in calculating
+        // supermethods from superclasses
+        if (node.method.isDeclared() && !node.method.isPrivate()) {
+          result.add(node.method);
+        }
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the methods with the same subsignature as the given method in the superinterfaces of its
+   * declaring class.
+   *
+   * @param method
+   * @return
+   */
+  public List<SootMethod> getSuperinterfacesMethodsOf(SootMethod method) {
+    List<SootMethod> result = new ArrayList<SootMethod>();
+    List<SootMethod> candidates =
+        getInterfaceMethodsOf(method.getDeclaringClass()).get(method.getNumberedSubSignature());
+
+    if (candidates != null) {
+      for (SootMethod candidate : candidates) {
+        if (candidate.isDeclared()) {
+          result.add(candidate);
+        }
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the table of the methods declared in the given class and its superclasses. Each entry is a
+   * chain that starts at the method declared in the nearest class.
+   *
+   * @param cls
+   * @return
+   */
+  private Map<NumberedString, MethodNode> getVisibleMethodsOf(SootClass cls) {
+    // Walk up to the nearest class that already has a table
+    List<SootClass> missing = new ArrayList<SootClass>();
+    SootClass current = cls;
+    while (current != null && !classToVisibleMethods.containsKey(current)) {
+      missing.add(current);
+      current = current.hasSuperclass() ? current.getSuperclass() : null;
+    }
+
+    // Then extend the tables back down to the given class
+    Map<NumberedString, MethodNode> table =
+        current == null ? Collections.emptyMap() : classToVisibleMethods.get(current);
+    for (int i = missing.size() - 1; i >= 0; i--) {
+      SootClass superclass = missing.get(i);
+      table = new HashMap<NumberedString, MethodNode>(table);
+      for (SootMethod method : superclass.getMethods()) {
+        NumberedString subsig = method.getNumberedSubSignature();
+        table.put(subsig, new MethodNode(method, table.get(subsig)));
+      }
+      Map<NumberedString, MethodNode> existing =
+          classToVisibleMethods.putIfAbsent(superclass, table);
+      if (existing != null) {
+        table = existing;
+      }
+    }
+
+    return table;
+  }
+
+  /**
+   * Get the table of the methods declared in the superinterfaces of the given class.
+   *
+   * @param cls
+   * @return
+   */
+  private Map<NumberedString, List<SootMethod>> getInterfaceMethodsOf(SootClass cls) {
+    // Without direct superinterfaces, a class has the same superinterfaces as its superclass
+    SootClass owner = cls;
+    while (owner.getInterfaces().isEmpty() && owner.hasSuperclass()) {
+      owner = owner.getSuperclass();
+    }
+
+    Map<NumberedString, List<SootMethod>> table = classToInterfaceMethods.get(owner);
+    if (table == null) {
+      table = new HashMap<NumberedString, List<SootMethod>>();
+      for (SootClass iface : hierarchy.getSuperinterfacesOf(owner)) {
+        for (SootMethod method : iface.getMethods()) {
+          table
+              .computeIfAbsent(method.getNumberedSubSignature(), s -> new ArrayList<SootMethod>())
+              .add(method);
+        }
+      }
+      if (compact) {
+        table.replaceAll(
+            (subsig, methods) ->
+                methods.size() == 1 ? Collections.singletonList(methods.get(0)) : methods);
+      }
+      Map<NumberedString, List<SootMethod>> existing =
+          classToInterfaceMethods.putIfAbsent(owner, table);
+      if (existing != null) {
+        table = existing;
+      }
+    }
+
+    if (owner != cls) {
+      classToInterfaceMethods.putIfAbsent(cls, table);
+    }
+    return table;
+  }
+
+  /**
+   * Add the estimated heap taken by the tables of this index to the given report. The chains of
+   * methods are shared by the tables of a class and its subclasses, so each of them is only counted
+   * once.
+   *
+   * @param report
+   */
+  public void addTo(HeapReport report) {
+    report.add("override tables", classToVisibleMethods, classToInterfaceMethods);
+
+    Set<MethodNode> nodes = Collections.newSetFromMap(new IdentityHashMap<MethodNode, Boolean>());
+    for (Map<NumberedString, MethodNode> table : classToVisibleMethods.values()) {
+      nodes.addAll(table.values());
+    }
+    report.add("override tables", nodes.size() * MethodNode.SIZE);
+  }
+
+  /** A method in a chain of methods with the same subsignature, from the nearest class up. */
+  private static class MethodNode {
+    // An object header and two references
+    private static final long SIZE = 24;
+
+    private SootMethod method;
+    private MethodNode next;
+
+    private MethodNode(SootMethod method, MethodNode next) {
+      this.method = method;
+      this.next = next;
+    }
+  }
+}
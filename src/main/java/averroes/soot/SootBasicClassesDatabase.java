@@ -86,6 +86,16 @@ public class SootBasicClassesDatabase {
    * @return
    */
   public Set<String> listClasses() {
+    return basicClassNames();
+  }
+
+  /**
+   * Get a list of all the basic class names. Unlike {@link #listClasses()}, this does not need a
+   * hierarchy, so it can be used before Soot loads any class.
+   *
+   * @return
+   */
+  public static Set<String> basicClassNames() {
     Set<String> classNames = new HashSet<String>();
 
     // NOTE: This list of classes are the ones in the
@@ -13,8 +13,9 @@ import java.util.Comparator;
 import soot.SootClass;
 
 /**
- * A comparator that compares two Soot classes based on their position in the class hierarchy (i.e.,
- * the superclass relation).
+ * A comparator that compares two Soot classes based on their position in the class hierarchy. A
+ * class comes after all its supertypes, since it is deeper in the hierarchy (see {@link
+ * Hierarchy#getDepthOf(SootClass)}). Classes at the same depth are sorted by name.
  *
  * @author karim
  */
@@ -32,19 +33,13 @@ public class SootClassHierarchyComparer implements Comparator<SootClass> {
   }
 
   /**
-   * Compare two Soot classes based on the class hierarchy.
+   * Compare two Soot classes based on their depth in the class hierarchy, then their names.
    *
    * @param classA
    * @param classB
    */
   public int compare(SootClass classA, SootClass classB) {
-    if (hierarchy.isSuperclassOf(classA, classB) || hierarchy.isSuperinterfaceOf(classA, classB)) {
-      return -1;
-    } else if (hierarchy.isSuperclassOf(classB, classA)
-        || hierarchy.isSuperinterfaceOf(classB, classA)) {
-      return 1;
-    } else {
-      return classA.getName().compareTo(classB.getName());
-    }
+    int result = Integer.compare(hierarchy.getDepthOf(classA), hierarchy.getDepthOf(classB));
+    return result != 0 ? result : classA.getName().compareTo(classB.getName());
   }
 }
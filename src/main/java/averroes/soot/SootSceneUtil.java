@@ -12,7 +12,9 @@ package averroes.soot;
 import averroes.frameworks.options.FrameworksOptions;
 import soot.*;
 
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -40,21 +42,32 @@ public class SootSceneUtil {
    *
    */
   public static void addCommonDynamicClasses() {
-    /*
-     * For simulating the FileSystem class, we need the implementation of
-     * the FileSystem, but the classes are not loaded automatically due to
-     * the indirection via native code.
-     */
-    addCommonDynamicClass("java.io.UnixFileSystem");
-    addCommonDynamicClass("java.io.WinNTFileSystem");
-    addCommonDynamicClass("java.io.Win32FileSystem");
+    getCommonDynamicClasses().forEach(SootSceneUtil::addCommonDynamicClass);
+  }
+
+  /**
+   * Get the names of the common dynamic classes, i.e., library classes that are loaded dynamically
+   * by the library itself.
+   *
+   * @return
+   */
+  public static List<String> getCommonDynamicClasses() {
+    return Arrays.asList(
+        /*
+         * For simulating the FileSystem class, we need the implementation of
+         * the FileSystem, but the classes are not loaded automatically due to
+         * the indirection via native code.
+         */
+        "java.io.UnixFileSystem",
+        "java.io.WinNTFileSystem",
+        "java.io.Win32FileSystem",
 
-    /* java.net.URL loads handlers dynamically */
-    addCommonDynamicClass("sun.net.www.protocol.file.Handler");
-    addCommonDynamicClass("sun.net.www.protocol.ftp.Handler");
-    addCommonDynamicClass("sun.net.www.protocol.http.Handler");
-    addCommonDynamicClass("sun.net.www.protocol.https.Handler");
-    addCommonDynamicClass("sun.net.www.protocol.jar.Handler");
+        /* java.net.URL loads handlers dynamically */
+        "sun.net.www.protocol.file.Handler",
+        "sun.net.www.protocol.ftp.Handler",
+        "sun.net.www.protocol.http.Handler",
+        "sun.net.www.protocol.https.Handler",
+        "sun.net.www.protocol.jar.Handler");
   }
 
   /**
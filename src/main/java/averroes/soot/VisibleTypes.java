@@ -0,0 +1,126 @@
+/**
+ * ***************************************************************************** Copyright (c) 2015
+ * Karim Ali and Ondřej Lhoták. All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * <p>Contributors: Karim Ali - initial API and implementation and/or initial documentation
+ * *****************************************************************************
+ */
+package averroes.soot;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import soot.ArrayType;
+import soot.PrimType;
+import soot.RefType;
+import soot.SootClass;
+import soot.Type;
+
+/**
+ * A set of declared types through which the application can see the objects of the library (e.g.,
+ * the return types of the library methods it calls). An object can flow to one of those types if
+ * its type is a subtype of any of them.
+ *
+ * @author Karim Ali
+ */
+public class VisibleTypes {
+
+  // The class types that every array type is a subtype of
+  private static final Set<String> ARRAY_SUPERTYPES =
+      new HashSet<String>(
+          Arrays.asList(Names.JAVA_LANG_OBJECT, "java.lang.Cloneable", "java.io.Serializable"));
+
+  private Set<Type> types;
+  private Map<SootClass, Boolean> classCanFlow;
+  private VisibleTypes elementTypes;
+
+  /**
+   * Construct a new set of visible types.
+   *
+   * @param types
+   */
+  public VisibleTypes(Collection<? extends Type> types) {
+    this.types = new HashSet<Type>(types);
+    classCanFlow = new HashMap<SootClass, Boolean>();
+    elementTypes = null;
+  }
+
+  /**
+   * Check if an object of the given type can flow to any of the visible types.
+   *
+   * @param type
+   * @return
+   */
+  public boolean canFlowTo(Type type) {
+    if (type instanceof RefType) {
+      return canFlowTo(((RefType) type).getSootClass());
+    } else if (type instanceof ArrayType) {
+      if (types.stream().anyMatch(VisibleTypes::isArraySupertype)) {
+        return true;
+      }
+
+      // Otherwise, the elements have to flow to the elements of a visible
+      // array type
+      Type elementType = ((ArrayType) type).getElementType();
+      if (elementType instanceof PrimType) {
+        return getElementTypes().types.contains(elementType);
+      } else {
+        return getElementTypes().canFlowTo(elementType);
+      }
+    }
+
+    return types.contains(type);
+  }
+
+  /**
+   * Check if an object of the given class can flow to any of the visible types, i.e., if the class
+   * or any of its superclasses and superinterfaces is visible.
+   *
+   * @param cls
+   * @return
+   */
+  public boolean canFlowTo(SootClass cls) {
+    Boolean result = classCanFlow.get(cls);
+    if (result == null) {
+      result =
+          types.contains(cls.getType())
+              || (cls.hasSuperclass() && canFlowTo(cls.getSuperclass()))
+              || cls.getInterfaces().stream().anyMatch(this::canFlowTo);
+      classCanFlow.put(cls, result);
+    }
+    return result;
+  }
+
+  /**
+   * Check if every array type is a subtype of the given type.
+   *
+   * @param type
+   * @return
+   */
+  private static boolean isArraySupertype(Type type) {
+    return type instanceof RefType && ARRAY_SUPERTYPES.contains(((RefType) type).getClassName());
+  }
+
+  /**
+   * Get the element types of the visible array types.
+   *
+   * @return
+   */
+  private VisibleTypes getElementTypes() {
+    if (elementTypes == null) {
+      elementTypes =
+          new VisibleTypes(
+              types.stream()
+                  .filter(t -> t instanceof ArrayType)
+                  .map(t -> ((ArrayType) t).getElementType())
+                  .collect(Collectors.toSet()));
+    }
+    return elementTypes;
+  }
+}
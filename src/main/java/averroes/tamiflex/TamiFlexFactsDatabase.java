@@ -9,6 +9,7 @@
  */
 package averroes.tamiflex;
 
+import averroes.AverroesContext;
 import averroes.options.AverroesOptions;
 import java.io.BufferedReader;
 import java.io.FileReader;
@@ -24,14 +25,14 @@ import java.util.Set;
  */
 public class TamiFlexFactsDatabase {
 
-  private static Set<String> arrayNewInstance = new HashSet<String>();
-  private static Set<String> classForName = new HashSet<String>();
-  private static Set<String> classNewInstance = new HashSet<String>();
-  private static Set<String> constructorNewInstance = new HashSet<String>();
-  private static Set<String> methodInvoke = new HashSet<String>();
+  private Set<String> arrayNewInstance = new HashSet<String>();
+  private Set<String> classForName = new HashSet<String>();
+  private Set<String> classNewInstance = new HashSet<String>();
+  private Set<String> constructorNewInstance = new HashSet<String>();
+  private Set<String> methodInvoke = new HashSet<String>();
 
-  // Load the TamiFlex facts file on the first call to any static method
-  static {
+  /** Create the database, and load the TamiFlex facts file of the current Averroes job. */
+  private TamiFlexFactsDatabase() {
     try {
       loadFacts();
     } catch (IOException | URISyntaxException e) {
@@ -39,13 +40,23 @@ public class TamiFlexFactsDatabase {
     }
   }
 
+  /**
+   * Get the database of the current Averroes job (see {@link AverroesContext}). The facts file is
+   * loaded on the first call to any static method.
+   *
+   * @return
+   */
+  public static TamiFlexFactsDatabase v() {
+    return AverroesContext.v().get(TamiFlexFactsDatabase.class, TamiFlexFactsDatabase::new);
+  }
+
   /**
    * Load the facts into the database.
    *
    * @throws IOException
    * @throws URISyntaxException
    */
-  private static void loadFacts() throws IOException, URISyntaxException {
+  private void loadFacts() throws IOException, URISyntaxException {
 
     if (AverroesOptions.isTamiflexEnabled()) {
       String fileToLoad = AverroesOptions.getTamiflexFactsFile();
@@ -96,7 +107,7 @@ public class TamiFlexFactsDatabase {
    * @return
    */
   public static Set<String> getArrayNewInstance() {
-    return arrayNewInstance;
+    return v().arrayNewInstance;
   }
 
   /**
@@ -105,7 +116,7 @@ public class TamiFlexFactsDatabase {
    * @return
    */
   public static Set<String> getClassForName() {
-    return classForName;
+    return v().classForName;
   }
 
   /**
@@ -114,7 +125,7 @@ public class TamiFlexFactsDatabase {
    * @return
    */
   public static Set<String> getClassNewInstance() {
-    return classNewInstance;
+    return v().classNewInstance;
   }
 
   /**
@@ -123,7 +134,7 @@ public class TamiFlexFactsDatabase {
    * @return
    */
   public static Set<String> getConstructorNewInstance() {
-    return constructorNewInstance;
+    return v().constructorNewInstance;
   }
 
   /**
@@ -132,6 +143,6 @@ public class TamiFlexFactsDatabase {
    * @return
    */
   public static Set<String> getMethodInvoke() {
-    return methodInvoke;
+    return v().methodInvoke;
   }
 }
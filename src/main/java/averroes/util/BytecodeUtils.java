@@ -9,14 +9,35 @@
  */
 package averroes.util;
 
+import averroes.AverroesContext;
 import soot.*;
 import soot.coffi.Util;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class BytecodeUtils {
 
+  /*
+   * The parsed descriptors and the resolved members are shared by all the
+   * lookups against the same Soot scene (e.g., the whole scan of the
+   * application constant pool). Each Averroes job has its own caches, and
+   * they are dropped whenever Soot is reset.
+   */
+  private static class Caches {
+    private Scene scene = null;
+    private Map<String, Type[]> methodDescriptorTypes = new HashMap<String, Type[]>();
+    private Map<String, Type> fieldDescriptorTypes = new HashMap<String, Type>();
+    private Map<String, SootMethod> resolvedMethods = new HashMap<String, SootMethod>();
+    private Map<String, SootField> resolvedFields = new HashMap<String, SootField>();
+
+    private int resolutionCacheHitCount = 0;
+    private int resolutionCacheMissCount = 0;
+  }
+
   /**
    * Get the parameter types of a method from its descriptor.
    *
@@ -24,8 +45,8 @@ public class BytecodeUtils {
    * @return
    */
   public static List<Type> getParameterTypes(String methodDescriptor) {
-    Type[] types = Util.v().jimpleTypesOfFieldOrMethodDescriptor(methodDescriptor);
-    return Arrays.asList(types).subList(0, types.length - 1);
+    Type[] types = getMethodDescriptorTypes(methodDescriptor);
+    return Collections.unmodifiableList(Arrays.asList(types).subList(0, types.length - 1));
   }
 
   /**
@@ -35,12 +56,67 @@ public class BytecodeUtils {
    * @return
    */
   public static Type getReturnType(String methodDescriptor) {
-    Type[] types = Util.v().jimpleTypesOfFieldOrMethodDescriptor(methodDescriptor);
+    Type[] types = getMethodDescriptorTypes(methodDescriptor);
     return types[types.length - 1];
   }
 
+  /**
+   * Get the type of a field from its descriptor.
+   *
+   * @param fieldDescriptor
+   * @return
+   */
   public static Type getFieldType(String fieldDescriptor) {
-    return Util.v().jimpleTypeOfFieldDescriptor(fieldDescriptor);
+    return validCaches().fieldDescriptorTypes.computeIfAbsent(
+        fieldDescriptor, d -> Util.v().jimpleTypeOfFieldDescriptor(d));
+  }
+
+  /**
+   * Get the parameter types followed by the return type of a method from its descriptor.
+   *
+   * @param methodDescriptor
+   * @return
+   */
+  private static Type[] getMethodDescriptorTypes(String methodDescriptor) {
+    return validCaches().methodDescriptorTypes.computeIfAbsent(
+        methodDescriptor, d -> Util.v().jimpleTypesOfFieldOrMethodDescriptor(d));
+  }
+
+  /**
+   * The number of calls to {@link #makeSootMethod(String, String, String)} and {@link
+   * #makeSootField(String, String, String)} that were answered from the resolution cache.
+   *
+   * @return
+   */
+  public static int getResolutionCacheHitCount() {
+    return validCaches().resolutionCacheHitCount;
+  }
+
+  /**
+   * The number of calls to {@link #makeSootMethod(String, String, String)} and {@link
+   * #makeSootField(String, String, String)} that had to resolve the member through Soot.
+   *
+   * @return
+   */
+  public static int getResolutionCacheMissCount() {
+    return validCaches().resolutionCacheMissCount;
+  }
+
+  /**
+   * Get the caches of the current Averroes job. The cached types and members are dropped if they
+   * belong to a Soot scene that has been reset since.
+   *
+   * @return
+   */
+  private static Caches validCaches() {
+    AverroesContext context = AverroesContext.v();
+    Caches caches = context.get(Caches.class, Caches::new);
+    if (caches.scene != Scene.v()) {
+      caches = new Caches();
+      caches.scene = Scene.v();
+      context.put(Caches.class, caches);
+    }
+    return caches;
   }
 
   /**
@@ -54,6 +130,53 @@ public class BytecodeUtils {
    */
   public static SootMethod makeSootMethod(
       String className, String methodName, String methodDescriptor) {
+    Caches caches = validCaches();
+    String key = className + "." + methodName + methodDescriptor;
+    SootMethod method = caches.resolvedMethods.get(key);
+    if (method != null) {
+      caches.resolutionCacheHitCount++;
+    } else {
+      caches.resolutionCacheMissCount++;
+      method = resolveSootMethod(className, methodName, methodDescriptor);
+      caches.resolvedMethods.put(key, method);
+    }
+    return method;
+  }
+
+  /**
+   * Resolve the given bits of a field signature to the corresponding SootField from the Soot
+   * Scene.
+   *
+   * @param className
+   * @param fieldName
+   * @param fieldDescriptor
+   * @return
+   */
+  public static SootField makeSootField(
+      String className, String fieldName, String fieldDescriptor) {
+    Caches caches = validCaches();
+    String key = className + "." + fieldName + ":" + fieldDescriptor;
+    SootField field = caches.resolvedFields.get(key);
+    if (field != null) {
+      caches.resolutionCacheHitCount++;
+    } else {
+      caches.resolutionCacheMissCount++;
+      field = resolveSootField(className, fieldName, fieldDescriptor);
+      caches.resolvedFields.put(key, field);
+    }
+    return field;
+  }
+
+  /**
+   * Resolve a method through Soot, bypassing the resolution cache.
+   *
+   * @param className
+   * @param methodName
+   * @param methodDescriptor
+   * @return
+   */
+  private static SootMethod resolveSootMethod(
+      String className, String methodName, String methodDescriptor) {
     SootClass cls = Scene.v().getSootClass(className);
 
     List<Type> parameterTypes = getParameterTypes(methodDescriptor);
@@ -81,7 +204,15 @@ public class BytecodeUtils {
     return method;
   }
 
-  public static SootField makeSootField(
+  /**
+   * Resolve a field through Soot, bypassing the resolution cache.
+   *
+   * @param className
+   * @param fieldName
+   * @param fieldDescriptor
+   * @return
+   */
+  private static SootField resolveSootField(
       String className, String fieldName, String fieldDescriptor) {
     SootClass cls = Scene.v().getSootClass(className);
     Type fieldType = getFieldType(fieldDescriptor);
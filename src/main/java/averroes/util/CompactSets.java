@@ -0,0 +1,165 @@
+/**
+ * ***************************************************************************** Copyright (c) 2015
+ * Karim Ali and Ondřej Lhoták. All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * <p>Contributors: Karim Ali - initial API and implementation and/or initial documentation
+ * *****************************************************************************
+ */
+package averroes.util;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable sets that take as little memory as possible. Empty sets and singletons are the shared
+ * ones from {@link Collections}, and larger sets keep their elements in plain arrays, in insertion
+ * order. Small sets are searched linearly, while larger ones keep the hash codes of their elements
+ * sorted in a primitive array for binary search.
+ *
+ * @author Karim Ali
+ */
+public class CompactSets {
+
+  /** Sets up to this size are searched linearly. */
+  private static final int LINEAR_SEARCH_LIMIT = 8;
+
+  /**
+   * Get an immutable copy of the given elements, in the same order, without duplicates.
+   *
+   * @param elements
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> Set<T> copyOf(Collection<? extends T> elements) {
+    if (elements instanceof ArraySet) {
+      return (Set<T>) elements;
+    }
+
+    Collection<? extends T> distinct =
+        elements instanceof Set ? elements : new LinkedHashSet<T>(elements);
+    switch (distinct.size()) {
+      case 0:
+        return Collections.emptySet();
+      case 1:
+        return Collections.singleton(distinct.iterator().next());
+      default:
+        return new ArraySet<T>(distinct.toArray());
+    }
+  }
+
+  /**
+   * Estimate the number of bytes taken by the given compact set, excluding its elements, or -1 if
+   * it's not a compact set.
+   *
+   * @param set
+   * @return
+   */
+  public static long estimatedSizeOf(Object set) {
+    if (set == Collections.emptySet()) {
+      return 0;
+    } else if (set instanceof ArraySet) {
+      ArraySet<?> arraySet = (ArraySet<?>) set;
+      long size = 24 + HeapReport.arraySize(arraySet.elements.length, 4);
+      if (arraySet.hashes != null) {
+        size += 2 * HeapReport.arraySize(arraySet.hashes.length, 4);
+      }
+      return size;
+    }
+    return -1;
+  }
+
+  /** An immutable set backed by an array of its elements. */
+  private static class ArraySet<T> extends AbstractSet<T> {
+    private Object[] elements;
+
+    // The hash codes of the elements in ascending order, along with the
+    // position of each element in the array above (only for larger sets)
+    private int[] hashes;
+    private int[] positions;
+
+    private ArraySet(Object[] elements) {
+      this.elements = elements;
+
+      if (elements.length > LINEAR_SEARCH_LIMIT) {
+        long[] pairs = new long[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+          pairs[i] = ((long) elements[i].hashCode() << 32) | i;
+        }
+        Arrays.sort(pairs);
+
+        hashes = new int[elements.length];
+        positions = new int[elements.length];
+        for (int i = 0; i < pairs.length; i++) {
+          hashes[i] = (int) (pairs[i] >> 32);
+          positions[i] = (int) pairs[i];
+        }
+      }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (hashes == null) {
+        for (Object element : elements) {
+          if (element.equals(o)) {
+            return true;
+          }
+        }
+        return false;
+      }
+
+      if (o == null) {
+        return false;
+      }
+      int hash = o.hashCode();
+      int i = Arrays.binarySearch(hashes, hash);
+      if (i < 0) {
+        return false;
+      }
+
+      // Elements with the same hash code are next to each other
+      while (i > 0 && hashes[i - 1] == hash) {
+        i--;
+      }
+      for (; i < hashes.length && hashes[i] == hash; i++) {
+        if (elements[positions[i]].equals(o)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      return new Iterator<T>() {
+        private int next = 0;
+
+        @Override
+        public boolean hasNext() {
+          return next < elements.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return (T) elements[next++];
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return elements.length;
+    }
+  }
+}
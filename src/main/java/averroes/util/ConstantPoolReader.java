@@ -0,0 +1,267 @@
+/**
+ * ***************************************************************************** Copyright (c) 2015
+ * Karim Ali and Ondřej Lhoták. All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * <p>Contributors: Karim Ali - initial API and implementation and/or initial documentation
+ * *****************************************************************************
+ */
+package averroes.util;
+
+/**
+ * A reader that walks the constant pool of a class file once, recording where each entry starts,
+ * and then reads the entries on demand. Unlike {@link org.objectweb.asm.ClassReader}, it never
+ * parses anything past the constant pool (callers can walk the rest of the class file from {@link
+ * #getHeader()}), and unlike {@link org.objectweb.asm.ClassWriter}, it does not build any symbol
+ * table. UTF8 entries are decoded at most once.
+ *
+ * @author Karim Ali
+ */
+public class ConstantPoolReader {
+
+  public static final int CONSTANT_UTF8 = 1;
+  public static final int CONSTANT_INTEGER = 3;
+  public static final int CONSTANT_FLOAT = 4;
+  public static final int CONSTANT_LONG = 5;
+  public static final int CONSTANT_DOUBLE = 6;
+  public static final int CONSTANT_CLASS = 7;
+  public static final int CONSTANT_STRING = 8;
+  public static final int CONSTANT_FIELDREF = 9;
+  public static final int CONSTANT_METHODREF = 10;
+  public static final int CONSTANT_INTERFACE_METHODREF = 11;
+  public static final int CONSTANT_NAME_AND_TYPE = 12;
+  public static final int CONSTANT_METHOD_HANDLE = 15;
+  public static final int CONSTANT_METHOD_TYPE = 16;
+  public static final int CONSTANT_DYNAMIC = 17;
+  public static final int CONSTANT_INVOKE_DYNAMIC = 18;
+  public static final int CONSTANT_MODULE = 19;
+  public static final int CONSTANT_PACKAGE = 20;
+
+  private byte[] bytes;
+  private int[] offsets;
+  private String[] utf8Entries;
+  private char[] buffer;
+  private int header;
+
+  /**
+   * Construct a new reader for the given class file.
+   *
+   * @param classFile
+   */
+  public ConstantPoolReader(byte[] classFile) {
+    bytes = classFile;
+    offsets = new int[readUnsignedShort(8)];
+    utf8Entries = new String[offsets.length];
+
+    int current = 10;
+    int maxStringLength = 0;
+    for (int i = 1; i < offsets.length; i++) {
+      offsets[i] = current + 1;
+      switch (bytes[current]) {
+        case CONSTANT_FIELDREF:
+        case CONSTANT_METHODREF:
+        case CONSTANT_INTERFACE_METHODREF:
+        case CONSTANT_INTEGER:
+        case CONSTANT_FLOAT:
+        case CONSTANT_NAME_AND_TYPE:
+        case CONSTANT_DYNAMIC:
+        case CONSTANT_INVOKE_DYNAMIC:
+          current += 5;
+          break;
+        case CONSTANT_LONG:
+        case CONSTANT_DOUBLE:
+          // The entry after a long or a double is not a valid entry
+          current += 9;
+          i++;
+          break;
+        case CONSTANT_UTF8:
+          int length = readUnsignedShort(current + 1);
+          maxStringLength = Math.max(maxStringLength, length);
+          current += 3 + length;
+          break;
+        case CONSTANT_METHOD_HANDLE:
+          current += 4;
+          break;
+        case CONSTANT_CLASS:
+        case CONSTANT_STRING:
+        case CONSTANT_METHOD_TYPE:
+        case CONSTANT_MODULE:
+        case CONSTANT_PACKAGE:
+          current += 3;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown constant pool tag " + bytes[current]);
+      }
+    }
+
+    buffer = new char[maxStringLength];
+    header = current;
+  }
+
+  /**
+   * The number of entries in the constant pool, plus one (i.e., the valid indices are 1 to {@code
+   * getItemCount() - 1}).
+   *
+   * @return
+   */
+  public int getItemCount() {
+    return offsets.length;
+  }
+
+  /**
+   * The offset of the access flags of the class, i.e., the first byte after the constant pool.
+   *
+   * @return
+   */
+  public int getHeader() {
+    return header;
+  }
+
+  /**
+   * The tag of the constant pool entry at the given index, or 0 for the (unusable) entry after a
+   * long or a double.
+   *
+   * @param index
+   * @return
+   */
+  public int getTag(int index) {
+    return offsets[index] == 0 ? 0 : bytes[offsets[index] - 1];
+  }
+
+  /**
+   * The internal name of the class of a CONSTANT_Class entry.
+   *
+   * @param index
+   * @return
+   */
+  public String readClass(int index) {
+    return readUtf8(readUnsignedShort(offsets[index]));
+  }
+
+  /**
+   * The value of a CONSTANT_String entry.
+   *
+   * @param index
+   * @return
+   */
+  public String readString(int index) {
+    return readUtf8(readUnsignedShort(offsets[index]));
+  }
+
+  /**
+   * The internal name of the owner of a CONSTANT_Fieldref, CONSTANT_Methodref, or
+   * CONSTANT_InterfaceMethodref entry.
+   *
+   * @param index
+   * @return
+   */
+  public String readMemberOwner(int index) {
+    return readClass(readUnsignedShort(offsets[index]));
+  }
+
+  /**
+   * The name of a CONSTANT_Fieldref, CONSTANT_Methodref, or CONSTANT_InterfaceMethodref entry.
+   *
+   * @param index
+   * @return
+   */
+  public String readMemberName(int index) {
+    int nameAndType = offsets[readUnsignedShort(offsets[index] + 2)];
+    return readUtf8(readUnsignedShort(nameAndType));
+  }
+
+  /**
+   * The descriptor of a CONSTANT_Fieldref, CONSTANT_Methodref, or CONSTANT_InterfaceMethodref
+   * entry.
+   *
+   * @param index
+   * @return
+   */
+  public String readMemberDescriptor(int index) {
+    int nameAndType = offsets[readUnsignedShort(offsets[index] + 2)];
+    return readUtf8(readUnsignedShort(nameAndType + 2));
+  }
+
+  /**
+   * The descriptor of a CONSTANT_NameAndType entry.
+   *
+   * @param index
+   * @return
+   */
+  public String readNameAndTypeDescriptor(int index) {
+    return readUtf8(readUnsignedShort(offsets[index] + 2));
+  }
+
+  /**
+   * The method descriptor of a CONSTANT_MethodType entry.
+   *
+   * @param index
+   * @return
+   */
+  public String readMethodType(int index) {
+    return readUtf8(readUnsignedShort(offsets[index]));
+  }
+
+  /**
+   * Read the (modified) UTF8 string of the CONSTANT_Utf8 entry at the given index.
+   *
+   * @param index
+   * @return
+   */
+  public String readUtf8(int index) {
+    String value = utf8Entries[index];
+    if (value == null) {
+      value = decodeUtf8(offsets[index]);
+      utf8Entries[index] = value;
+    }
+    return value;
+  }
+
+  /**
+   * Decode the modified UTF8 string that starts at the given offset.
+   *
+   * @param offset
+   * @return
+   */
+  private String decodeUtf8(int offset) {
+    int current = offset + 2;
+    int end = current + readUnsignedShort(offset);
+    int length = 0;
+
+    while (current < end) {
+      int c = bytes[current++];
+      if ((c & 0x80) == 0) {
+        buffer[length++] = (char) (c & 0x7F);
+      } else if ((c & 0xE0) == 0xC0) {
+        buffer[length++] = (char) (((c & 0x1F) << 6) + (bytes[current++] & 0x3F));
+      } else {
+        buffer[length++] =
+            (char)
+                (((c & 0xF) << 12) + ((bytes[current++] & 0x3F) << 6) + (bytes[current++] & 0x3F));
+      }
+    }
+
+    return new String(buffer, 0, length);
+  }
+
+  /**
+   * Read an unsigned short value at the given offset of the class file.
+   *
+   * @param offset
+   * @return
+   */
+  public int readUnsignedShort(int offset) {
+    return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+  }
+
+  /**
+   * Read a signed int value at the given offset of the class file.
+   *
+   * @param offset
+   * @return
+   */
+  public int readInt(int offset) {
+    return (readUnsignedShort(offset) << 16) | readUnsignedShort(offset + 2);
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ * ***************************************************************************** Copyright (c) 2015
+ * Karim Ali and Ondřej Lhoták. All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * <p>Contributors: Karim Ali - initial API and implementation and/or initial documentation
+ * *****************************************************************************
+ */
+package averroes.util;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Utility methods to read the constant pool of a class file without building any Soot (or ASM)
+ * representation of the class.
+ *
+ * @author Karim Ali
+ */
+public class ConstantPoolUtils {
+
+  /**
+   * Get the names of all the classes referenced in the constant pool of the given class file. That
+   * includes the class entries (e.g., the super types and the owners of referenced members) and the
+   * class names in the descriptors of the referenced members, of the method types, and of the
+   * fields and methods that the class declares (e.g., parameter and field types). Other UTF8
+   * entries (e.g., string constants or generic signatures) are never considered.
+   *
+   * @param constantPool
+   * @return
+   */
+  public static Set<String> getReferencedClassNames(ConstantPoolReader constantPool) {
+    Set<String> result = new HashSet<String>();
+
+    for (int i = 1; i < constantPool.getItemCount(); i++) {
+      switch (constantPool.getTag(i)) {
+        case ConstantPoolReader.CONSTANT_CLASS:
+          String name = constantPool.readClass(i);
+          if (name.startsWith("[")) {
+            addClassNamesInDescriptor(name, result);
+          } else {
+            result.add(name.replace('/', '.'));
+          }
+          break;
+        case ConstantPoolReader.CONSTANT_NAME_AND_TYPE:
+          addClassNamesInDescriptor(constantPool.readNameAndTypeDescriptor(i), result);
+          break;
+        case ConstantPoolReader.CONSTANT_METHOD_TYPE:
+          addClassNamesInDescriptor(constantPool.readMethodType(i), result);
+          break;
+        default:
+          break;
+      }
+    }
+
+    addClassNamesInMemberDescriptors(constantPool, result);
+    return result;
+  }
+
+  /**
+   * Get the package name of the given class name (the empty string for the default package).
+   *
+   * @param className
+   * @return
+   */
+  public static String packageName(String className) {
+    int index = className.lastIndexOf('.');
+    return index < 0 ? "" : className.substring(0, index);
+  }
+
+  /**
+   * Add the class names in the descriptors of the fields and the methods declared by the given
+   * class file to the given set. They follow the interfaces of the class, and each of them is
+   * followed by its attributes.
+   *
+   * @param constantPool
+   * @param result
+   */
+  private static void addClassNamesInMemberDescriptors(
+      ConstantPoolReader constantPool, Set<String> result) {
+    // Skip the access flags, this class, the super class and the interfaces
+    int current = constantPool.getHeader() + 6;
+    current += 2 + 2 * constantPool.readUnsignedShort(current);
+
+    // The fields, then the methods
+    for (int kind = 0; kind < 2; kind++) {
+      int memberCount = constantPool.readUnsignedShort(current);
+      current += 2;
+      for (int i = 0; i < memberCount; i++) {
+        String descriptor = constantPool.readUtf8(constantPool.readUnsignedShort(current + 4));
+        addClassNamesInDescriptor(descriptor, result);
+        int attributeCount = constantPool.readUnsignedShort(current + 6);
+        current += 8;
+        for (int j = 0; j < attributeCount; j++) {
+          current += 6 + constantPool.readInt(current + 2);
+        }
+      }
+    }
+  }
+
+  /**
+   * Add the class names in the given descriptor (or array class name) to the given set. A class
+   * name in a descriptor starts with an 'L' and ends with a ';'.
+   *
+   * @param descriptor
+   * @param result
+   */
+  private static void addClassNamesInDescriptor(String descriptor, Set<String> result) {
+    int start = descriptor.indexOf('L');
+    while (start >= 0) {
+      int end = descriptor.indexOf(';', start);
+      if (end < 0) {
+        return;
+      }
+
+      result.add(descriptor.substring(start + 1, end).replace('/', '.'));
+      start = descriptor.indexOf('L', end);
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/**
+ * ***************************************************************************** Copyright (c) 2015
+ * Karim Ali and Ondřej Lhoták. All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * <p>Contributors: Karim Ali - initial API and implementation and/or initial documentation
+ * *****************************************************************************
+ */
+package averroes.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * An estimate of the heap taken by the data structures of Averroes, broken down by structure. The
+ * sizes are computed from the shape of each structure (e.g., the number of entries of a map), as
+ * laid out by a 64-bit JVM with compressed references. Only the collections themselves are
+ * counted, not the Soot classes, methods or strings they refer to, and a collection that is shared
+ * by several structures is only counted once.
+ *
+ * @author Karim Ali
+ */
+public class HeapReport {
+
+  private static final int OBJECT_HEADER = 12;
+  private static final int ARRAY_HEADER = 16;
+  private static final int REFERENCE = 4;
+
+  private static final Class<?> UNMODIFIABLE_SET =
+      Collections.unmodifiableSet(new HashSet<Object>()).getClass();
+  private static final Class<?> SINGLETON_SET = Collections.singleton(null).getClass();
+  private static final Class<?> SINGLETON_LIST = Collections.singletonList(null).getClass();
+
+  private Map<String, Long> structureToSize;
+  private Set<Object> counted;
+
+  /** Create an empty report. */
+  public HeapReport() {
+    structureToSize = new LinkedHashMap<String, Long>();
+    counted = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+  }
+
+  /**
+   * Add the estimated size of the given structures (maps, collections, arrays, bit sets) to the
+   * given entry of this report.
+   *
+   * @param name
+   * @param structures
+   */
+  public void add(String name, Object... structures) {
+    long size = 0;
+    for (Object structure : structures) {
+      size += sizeOf(structure);
+    }
+    add(name, size);
+  }
+
+  /**
+   * Add the given number of bytes to the given entry of this report.
+   *
+   * @param name
+   * @param bytes
+   */
+  public void add(String name, long bytes) {
+    structureToSize.merge(name, bytes, Long::sum);
+  }
+
+  /**
+   * Print out this report, along with the heap used by the whole JVM.
+   *
+   * @param title
+   */
+  public void print(String title) {
+    System.out.println(title);
+    long total = 0;
+    for (Map.Entry<String, Long> entry : structureToSize.entrySet()) {
+      System.out.println("  " + entry.getKey() + ": " + megabytes(entry.getValue()) + " MB");
+      total += entry.getValue();
+    }
+    System.out.println("# estimated total: " + megabytes(total) + " MB");
+
+    Runtime runtime = Runtime.getRuntime();
+    System.out.println(
+        "# used heap: "
+            + megabytes(runtime.totalMemory() - runtime.freeMemory())
+            + " MB (max heap: "
+            + megabytes(runtime.maxMemory())
+            + " MB)");
+  }
+
+  /**
+   * The size of an array of the given length, whose elements take the given number of bytes.
+   *
+   * @param length
+   * @param elementSize
+   * @return
+   */
+  public static long arraySize(int length, int elementSize) {
+    return align(ARRAY_HEADER + (long) length * elementSize);
+  }
+
+  private static long align(long size) {
+    return (size + 7) & ~7L;
+  }
+
+  private static double megabytes(long bytes) {
+    return MathUtils.round(bytes / (1024.0 * 1024.0));
+  }
+
+  /**
+   * Estimate the size of the given object, including the collections it holds, unless it was
+   * counted already.
+   *
+   * @param object
+   * @return
+   */
+  private long sizeOf(Object object) {
+    if (object == null || !counted.add(object)) {
+      return 0;
+    }
+
+    long compact = CompactSets.estimatedSizeOf(object);
+    if (compact >= 0) {
+      return compact;
+    } else if (object instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>) object;
+      long size = mapSize(map);
+      for (Object value : map.values()) {
+        size += sizeOf(value);
+      }
+      return size;
+    } else if (object instanceof Collection) {
+      return collectionSize((Collection<?>) object);
+    } else if (object instanceof BitSet) {
+      return align(OBJECT_HEADER + REFERENCE + 4 + 1) + arraySize(((BitSet) object).size() / 64, 8);
+    } else if (object instanceof int[]) {
+      return arraySize(((int[]) object).length, 4);
+    } else if (object instanceof Object[]) {
+      long size = arraySize(((Object[]) object).length, REFERENCE);
+      for (Object element : (Object[]) object) {
+        size += sizeOf(element);
+      }
+      return size;
+    } else if (object instanceof Integer) {
+      // Small integers are cached by the JVM
+      int value = (Integer) object;
+      return value >= -128 && value <= 127 ? 0 : align(OBJECT_HEADER + 4);
+    }
+
+    // Anything else is owned by Soot
+    return 0;
+  }
+
+  /**
+   * The size of the given map, excluding its keys and values.
+   *
+   * @param map
+   * @return
+   */
+  private static long mapSize(Map<?, ?> map) {
+    if (map instanceof TreeMap) {
+      return align(OBJECT_HEADER + 5 * REFERENCE + 8) + map.size() * treeEntrySize();
+    } else if (map instanceof LinkedHashMap) {
+      return align(OBJECT_HEADER + 6 * REFERENCE + 17) + hashTableSize(map.size(), 8);
+    }
+    return align(OBJECT_HEADER + 4 * REFERENCE + 16) + hashTableSize(map.size(), 0);
+  }
+
+  /**
+   * The size of the given collection, excluding its elements.
+   *
+   * @param collection
+   * @return
+   */
+  private static long collectionSize(Collection<?> collection) {
+    int size = collection.size();
+    if (collection.getClass() == SINGLETON_SET || collection.getClass() == SINGLETON_LIST) {
+      return align(OBJECT_HEADER + REFERENCE);
+    } else if (collection == Collections.emptySet() || collection == Collections.emptyList()) {
+      return 0;
+    } else if (collection.getClass() == UNMODIFIABLE_SET) {
+      // Averroes wraps linked hash sets
+      return align(OBJECT_HEADER + 2 * REFERENCE)
+          + align(OBJECT_HEADER + REFERENCE)
+          + align(OBJECT_HEADER + 6 * REFERENCE + 17)
+          + hashTableSize(size, 8);
+    } else if (collection instanceof TreeSet) {
+      return align(OBJECT_HEADER + REFERENCE)
+          + align(OBJECT_HEADER + 5 * REFERENCE + 8)
+          + size * treeEntrySize();
+    } else if (collection instanceof LinkedHashSet) {
+      return align(OBJECT_HEADER + REFERENCE)
+          + align(OBJECT_HEADER + 6 * REFERENCE + 17)
+          + hashTableSize(size, 8);
+    } else if (collection instanceof HashSet) {
+      return align(OBJECT_HEADER + REFERENCE)
+          + align(OBJECT_HEADER + 4 * REFERENCE + 16)
+          + hashTableSize(size, 0);
+    } else if (collection instanceof ArrayList) {
+      return align(OBJECT_HEADER + REFERENCE + 8) + arraySize(Math.max(size, 10), REFERENCE);
+    }
+    return align(OBJECT_HEADER + REFERENCE) + arraySize(size, REFERENCE);
+  }
+
+  /**
+   * The size of the table and the entries of a hash map with the given number of entries. Each
+   * entry holds its hash, key, value and next entry, along with the given extra bytes (e.g., the
+   * links of a linked hash map).
+   *
+   * @param entries
+   * @param extraEntryBytes
+   * @return
+   */
+  private static long hashTableSize(int entries, int extraEntryBytes) {
+    if (entries == 0) {
+      return 0;
+    }
+    int capacity = Integer.highestOneBit(Math.max(16, (int) (entries / 0.75f) + 1) - 1) << 1;
+    return arraySize(capacity, REFERENCE)
+        + entries * align(OBJECT_HEADER + 4 + 3 * REFERENCE + extraEntryBytes);
+  }
+
+  private static long treeEntrySize() {
+    return align(OBJECT_HEADER + 5 * REFERENCE + 1);
+  }
+}
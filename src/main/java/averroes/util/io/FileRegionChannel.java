@@ -0,0 +1,108 @@
+/**
+ * ***************************************************************************** Copyright (c) 2015
+ * Karim Ali and Ondřej Lhoták. All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * <p>Contributors: Karim Ali - initial API and implementation and/or initial documentation
+ * *****************************************************************************
+ */
+package averroes.util.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only channel over a region of a file. That's used to read a ZIP archive that is stored
+ * (i.e., not compressed) inside another ZIP archive, without extracting it first (e.g., the nested
+ * JAR files of a Spring Boot fat JAR).
+ *
+ * @author Karim Ali
+ */
+public class FileRegionChannel implements SeekableByteChannel {
+
+  private FileChannel channel;
+  private long offset;
+  private long size;
+  private long position;
+
+  /**
+   * Construct a new channel over the given region of the given file.
+   *
+   * @param file
+   * @param offset
+   * @param size
+   * @throws IOException
+   */
+  public FileRegionChannel(Path file, long offset, long size) throws IOException {
+    this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    this.offset = offset;
+    this.size = size;
+    this.position = 0;
+  }
+
+  @Override
+  public synchronized int read(ByteBuffer dst) throws IOException {
+    long remaining = size - position;
+    if (remaining <= 0) {
+      return -1;
+    }
+
+    // Never read past the end of the region
+    ByteBuffer buffer = dst;
+    if (dst.remaining() > remaining) {
+      buffer = dst.duplicate();
+      buffer.limit(buffer.position() + (int) remaining);
+    }
+
+    int count = channel.read(buffer, offset + position);
+    if (buffer != dst) {
+      dst.position(buffer.position());
+    }
+    if (count > 0) {
+      position += count;
+    }
+    return count;
+  }
+
+  @Override
+  public int write(ByteBuffer src) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public synchronized long position() {
+    return position;
+  }
+
+  @Override
+  public synchronized SeekableByteChannel position(long newPosition) {
+    position = newPosition;
+    return this;
+  }
+
+  @Override
+  public long size() {
+    return size;
+  }
+
+  @Override
+  public SeekableByteChannel truncate(long size) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,55 @@
+/**
+ * ***************************************************************************** Copyright (c) 2015
+ * Karim Ali and Ondřej Lhoták. All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * <p>Contributors: Karim Ali - initial API and implementation and/or initial documentation
+ * *****************************************************************************
+ */
+package averroes.util.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A resource that represents a file in a file system, which does not have to be the default one
+ * (e.g., a class file in a Java runtime image, under jrt:/).
+ *
+ * @author Karim Ali
+ */
+public class PathResource implements Resource {
+
+  private Path path;
+
+  /**
+   * Construct a new path resource.
+   *
+   * @param path
+   */
+  public PathResource(Path path) {
+    this.path = path;
+  }
+
+  @Override
+  public InputStream open() {
+    try {
+      return new ByteArrayInputStream(Files.readAllBytes(path));
+    } catch (IOException e) {
+      e.printStackTrace();
+      return new ByteArrayInputStream(new byte[0]);
+    }
+  }
+
+  /**
+   * The path of this resource.
+   *
+   * @return
+   */
+  public Path path() {
+    return path;
+  }
+}
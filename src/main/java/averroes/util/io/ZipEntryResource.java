@@ -12,8 +12,8 @@ package averroes.util.io;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 
 /**
  * A resource that represents a ZIP archive entry. That's used for both ZIP and JAR archives.
@@ -22,16 +22,19 @@ import java.util.zip.ZipFile;
  */
 public class ZipEntryResource implements Resource {
 
+  private String archivePath;
   private ZipFile archive;
-  private ZipEntry entry;
+  private ZipArchiveEntry entry;
 
   /**
    * Construct a new ZIP entry resource.
    *
+   * @param archivePath
    * @param archive
    * @param entry
    */
-  public ZipEntryResource(ZipFile archive, ZipEntry entry) {
+  public ZipEntryResource(String archivePath, ZipFile archive, ZipArchiveEntry entry) {
+    this.archivePath = archivePath;
     this.archive = archive;
     this.entry = entry;
   }
@@ -41,11 +44,15 @@ public class ZipEntryResource implements Resource {
     return doJDKBugWorkaround();
   }
 
+  public String archivePath() {
+    return archivePath;
+  }
+
   public ZipFile archive() {
     return archive;
   }
 
-  public ZipEntry entry() {
+  public ZipArchiveEntry entry() {
     return entry;
   }
 
@@ -64,8 +71,7 @@ public class ZipEntryResource implements Resource {
     final int N = 1024;
     int ln = 0;
     int count = 0;
-    try {
-      InputStream is = archive.getInputStream(entry);
+    try (InputStream is = archive.getInputStream(entry)) {
       while (sz > 0 && (ln = is.read(buf, count, Math.min(N, sz))) != -1) {
         count += ln;
         sz -= ln;
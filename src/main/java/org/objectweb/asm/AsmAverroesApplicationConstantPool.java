@@ -1,14 +1,21 @@
 package org.objectweb.asm;
 
+import averroes.AverroesContext;
+import averroes.JarOrganizer;
+import averroes.options.AverroesOptions;
 import averroes.soot.Hierarchy;
 import averroes.util.BytecodeUtils;
+import averroes.util.ConstantPoolReader;
+import averroes.util.io.Resource;
 import soot.Type;
 import soot.*;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.*;
 import java.util.stream.Collectors;
+import org.apache.commons.io.IOUtils;
 
 /**
  * A class that holds the values of library methods and fields found in the constant pool of
@@ -21,6 +28,9 @@ public class AsmAverroesApplicationConstantPool {
   private Set<SootMethod> libraryMethods;
   private Set<SootField> libraryFields;
 
+  private Set<MemberRef> methodRefs;
+  private Set<MemberRef> fieldRefs;
+
   private averroes.soot.Hierarchy hierarchy;
 
   /**
@@ -34,29 +44,47 @@ public class AsmAverroesApplicationConstantPool {
     libraryMethods = new HashSet<SootMethod>();
     libraryFields = new HashSet<SootField>();
 
+    methodRefs = new LinkedHashSet<MemberRef>();
+    fieldRefs = new LinkedHashSet<MemberRef>();
+
     this.hierarchy = hierarchy;
 
     initialize();
   }
 
   /**
-   * Get the constant pool entries for the given Soot class. This method uses the ASM symbol table
-   * to do so.
+   * Get a reader for the constant pool of the given Soot class. The reader only walks the constant
+   * pool of the class file, without building any ASM representation of the class. With a virtual
+   * classpath, the class file is read through the class index of the {@link JarOrganizer}, since
+   * the classes of a fat JAR or a WAR file are not on the Soot classpath.
    *
    * @param cls
    * @return
    * @throws IOException
    */
-  private static List<Symbol> getConstantPool(SootClass cls) throws IOException {
+  private static ConstantPoolReader getConstantPool(SootClass cls) throws IOException {
+    JarOrganizer jarOrganizer = AverroesContext.v().find(JarOrganizer.class);
+    if (AverroesOptions.isVirtualClassPath() && jarOrganizer != null) {
+      Resource classFile = jarOrganizer.classIndex().get(cls.getName());
+      if (classFile == null) {
+        throw new IOException("cannot find the class file of " + cls.getName());
+      }
+      try (InputStream classFileInputStream = classFile.open()) {
+        return new ConstantPoolReader(IOUtils.toByteArray(classFileInputStream));
+      }
+    }
+
     String clsFile = cls.getName().replace('.', '/') + ".class";
     FoundFile sourceFile = SourceLocator.v().lookupInClassPath(clsFile);
+    if (sourceFile == null) {
+      throw new IOException("cannot find the class file of " + cls.getName());
+    }
 
-    InputStream classFileInputStream = sourceFile.inputStream();
-    ClassReader reader = new ClassReader(classFileInputStream);
-    ClassWriter writer = new ClassWriter(reader, 0);
-    AverroesSymbolTable symbolTable = new AverroesSymbolTable(writer, reader);
-
-    return Arrays.stream(symbolTable.getEntries()).collect(Collectors.toList());
+    try (InputStream classFileInputStream = sourceFile.inputStream()) {
+      return new ConstantPoolReader(IOUtils.toByteArray(classFileInputStream));
+    } finally {
+      sourceFile.close();
+    }
   }
 
   /**
@@ -109,46 +137,74 @@ public class AsmAverroesApplicationConstantPool {
 
   /** Initialize the application constant pool. */
   private void initialize() {
+    findMemberRefsInApplicationConstantPool();
     findApplicationClassesReferencedByName();
     findLibraryMethodsInApplicationConstantPool();
     findLibraryFieldsInApplicationConstantPool();
   }
 
   /**
-   * Get the referenced library methods in an application class.
+   * Collect the method and field refs in the constant pool of all application classes. The class
+   * files are read in parallel, since that only touches their bytes. The refs are then resolved to
+   * Soot methods and fields on this thread, once per distinct ref.
+   */
+  private void findMemberRefsInApplicationConstantPool() {
+    List<SootClass> classes =
+        hierarchy.getApplicationClasses().stream()
+            /*
+             * This is only useful if the application class has any methods. Some
+             * classes will not have any methods in them, e.g.,
+             * org.jfree.data.xml.DatasetTags which is an interface that has some
+             * final constants only.
+             */
+            .filter(cls -> cls.getMethodCount() > 0)
+            .collect(Collectors.toList());
+
+    // The worker threads look the class files up in the Soot instance of this job
+    AverroesContext context = AverroesContext.v();
+    List<List<MemberRef>> refs =
+        classes.parallelStream()
+            .map(cls -> context.call(() -> findMemberRefsInConstantPool(cls)))
+            .collect(Collectors.toList());
+
+    for (List<MemberRef> classRefs : refs) {
+      for (MemberRef ref : classRefs) {
+        if (ref.tag == ConstantPoolReader.CONSTANT_FIELDREF) {
+          fieldRefs.add(ref);
+        } else {
+          methodRefs.add(ref);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the method refs (including interface method refs) and field refs in the constant pool of an
+   * application class.
    *
    * @param applicationClass
    * @return
    */
-  private Set<SootMethod> findLibraryMethodsInConstantPool(SootClass applicationClass) {
-    Set<SootMethod> result = new HashSet<SootMethod>();
-
-    /*
-     * This is only useful if the application class has any methods. Some
-     * classes will not have any methods in them, e.g.,
-     * org.jfree.data.xml.DatasetTags which is an interface that has some
-     * final constants only.
-     */
-    if (applicationClass.getMethodCount() > 0) {
-      try {
-        List<Symbol> constantPool = getConstantPool(applicationClass);
-        for(Symbol symbol : constantPool) {
-          if(symbol.tag == Symbol.CONSTANT_METHODREF_TAG) {
-            // TODO still don't remember why I have this condition for class names (it's 2021 now!)
-            String className = symbol.owner.startsWith("[") ? "java.lang.Object" : symbol.owner.replace("/", ".");
-            String methodName = symbol.name;
-            String methodDescriptor = symbol.value;
-            SootMethod method = BytecodeUtils.makeSootMethod(className, methodName, methodDescriptor);
-
-            // If the resolved method is in the library, add it to the result
-            if (hierarchy.isLibraryMethod(method)) {
-              result.add(method);
-            }
-          }
+  private static List<MemberRef> findMemberRefsInConstantPool(SootClass applicationClass) {
+    List<MemberRef> result = new ArrayList<MemberRef>();
+
+    try {
+      ConstantPoolReader constantPool = getConstantPool(applicationClass);
+      for (int i = 1; i < constantPool.getItemCount(); i++) {
+        int tag = constantPool.getTag(i);
+        if (tag == ConstantPoolReader.CONSTANT_METHODREF
+            || tag == ConstantPoolReader.CONSTANT_INTERFACE_METHODREF
+            || tag == ConstantPoolReader.CONSTANT_FIELDREF) {
+          result.add(
+              new MemberRef(
+                  tag,
+                  constantPool.readMemberOwner(i),
+                  constantPool.readMemberName(i),
+                  constantPool.readMemberDescriptor(i)));
         }
-      } catch (IOException e) {
-        e.printStackTrace();
       }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
 
     return result;
@@ -162,53 +218,20 @@ public class AsmAverroesApplicationConstantPool {
   private void findApplicationClassesReferencedByName() {
     applicationClasses = new HashSet<SootClass>();
 
-    // If we're processing an android apk, process the global string
-    // constant pool
-    // if (Options.v().src_prec() == Options.src_prec_apk) {
-    // applicationClasses.addAll(findAndroidApplicationClassesReferencedByName());
-    // } else {
-    // Add the classes whose name appear in the constant pool of application
-    // classes
     // TODO
     //		for (SootClass applicationClass : hierarchy.getApplicationClasses()) {
     //			applicationClasses.addAll(findApplicationClassesReferencedByName(applicationClass));
     //		}
-    // applicationClasses.forEach(System.out::println);
-    // System.out.println("averroes found " + substrings.size() +
-    // " possible class name substrings");
-    // substrings.forEach(System.out::println);
-    // System.out.println("-------------");
-    // classes.stream()
-    // .filter(c -> {
-    // if (substrings.stream().anyMatch(s -> c.getName().startsWith(s))
-    // && substrings.stream().anyMatch(s -> c.getName().endsWith(s))) {
-    // return true;
-    // } else {
-    // return false;
-    // }
-    // }).forEach(System.out::println);
-    // applicationClasses.addAll(classes
-    // .stream()
-    // .filter(c -> {
-    // if (substrings.stream().anyMatch(s -> c.getName().startsWith(s))
-    // && substrings.stream().anyMatch(s -> c.getName().endsWith(s))) {
-    // return true;
-    // } else {
-    // return false;
-    // }
-    // }).collect(Collectors.toSet()));
-    // }
   }
 
   /**
-   * Get the classes referenced by name in the constant pool of an application class.
+   * Get the classes referenced by name (i.e., string constants) in the constant pool of an
+   * application class.
    *
    * @param applicationClass
    */
   private Set<SootClass> findApplicationClassesReferencedByName(SootClass applicationClass) {
     Set<SootClass> result = new HashSet<SootClass>();
-    // Set<SootClass> classes = new HashSet<SootClass>();
-    // Set<String> substrings = new HashSet<String>();
 
     /*
      * This is only useful if the application class has any methods. Some
@@ -218,20 +241,10 @@ public class AsmAverroesApplicationConstantPool {
      */
     if (applicationClass.getMethodCount() > 0) {
       try {
-        List<Symbol> constantPool = getConstantPool(applicationClass);
-        for(Symbol symbol : constantPool) {
-          if(symbol.tag == Symbol.CONSTANT_STRING_TAG) {
-            String className = symbol.value; // .trim();
-
-            // if (className.length() > 2) {
-            // Set<SootClass> set =
-            // hierarchy.matchSubstrOfApplicationClass(className);
-            // if (!set.isEmpty()) {
-            // classes.addAll(set);
-            // substrings.add(className);
-            // }
-            // }
-
+        ConstantPoolReader constantPool = getConstantPool(applicationClass);
+        for (int i = 1; i < constantPool.getItemCount(); i++) {
+          if (constantPool.getTag(i) == ConstantPoolReader.CONSTANT_STRING) {
+            String className = constantPool.readString(i);
             if (hierarchy.isApplicationClass(className)) {
               result.add(hierarchy.getClass(className));
             }
@@ -240,128 +253,78 @@ public class AsmAverroesApplicationConstantPool {
       } catch (IOException e) {
         e.printStackTrace();
       }
-
-      /*
-       * This filtering has to take place here (i.e., for each class
-       * separately). Otherwise, we will collect a lot of class names that
-       * has substrings spanning multiple class files which is both wrong
-       * and imprecise.
-       */
-      // result.addAll(classes
-      // .stream()
-      // .filter(c -> {
-      // if (substrings.stream().anyMatch(s -> c.getName().startsWith(s))
-      // && substrings.stream().anyMatch(s -> c.getName().endsWith(s))) {
-      // return true;
-      // } else {
-      // return false;
-      // }
-      // }).collect(Collectors.toSet()));
-
     }
 
     return result;
   }
 
-  /**
-   * Find all the library methods referenced from the constant pool of application classes.
-   *
-   * @return
-   */
+  /** Find all the library methods referenced from the constant pool of application classes. */
   private void findLibraryMethodsInApplicationConstantPool() {
     libraryMethods = new HashSet<SootMethod>();
 
-    // If we're processing an android apk, process the global method
-    // constant pool
-    // if (Options.v().src_prec() == Options.src_prec_apk) {
-    // libraryMethods.addAll(findLibraryMethodsInAndroidApplicationConstantPool());
-    // } else {
-    // Add the library methods that appear in the constant pool of
-    // application classes
-    for (SootClass applicationClass : hierarchy.getApplicationClasses()) {
-      libraryMethods.addAll(findLibraryMethodsInConstantPool(applicationClass));
+    for (MemberRef ref : methodRefs) {
+      SootMethod method = BytecodeUtils.makeSootMethod(ref.className(), ref.name, ref.descriptor);
+
+      // If the resolved method is in the library, add it to the result
+      if (hierarchy.isLibraryMethod(method)) {
+        libraryMethods.add(method);
+      }
     }
-    // }
   }
 
-  /**
-   * Get the referenced library fields in an application class.
-   *
-   * @param applicationClass
-   * @return
-   */
-  private Set<SootField> findLibraryFieldsInConstantPool(SootClass applicationClass) {
-    Set<SootField> result = new HashSet<SootField>();
+  /** Get all the library fields referenced from the constant pool of application classes. */
+  private void findLibraryFieldsInApplicationConstantPool() {
+    libraryFields = new HashSet<SootField>();
 
-    /*
-     * This is only useful if the application class has any methods. Some
-     * classes will not have any methods in them, e.g.,
-     * org.jfree.data.xml.DatasetTags which is an interface that has some
-     * final constants only.
-     */
-    if (applicationClass.getMethodCount() > 0) {
-      try {
-        List<Symbol> constantPool = getConstantPool(applicationClass);
-        for(Symbol symbol : constantPool) {
-          if(symbol.tag == Symbol.CONSTANT_FIELDREF_TAG) {
-            // TODO still don't remember why I have this condition for class names (it's 2021 now!)
-            String className = symbol.owner.startsWith("[") ? "java.lang.Object" : symbol.owner.replace("/", ".");
-            String fieldName = symbol.name;
-            String fieldDescriptor = symbol.value;
+    for (MemberRef ref : fieldRefs) {
+      SootField field = BytecodeUtils.makeSootField(ref.className(), ref.name, ref.descriptor);
 
-            SootClass cls = Scene.v().getSootClass(className);
-            Type fieldType = BytecodeUtils.getFieldType(fieldDescriptor);
+      // If the resolved field is in the library, add it to the result
+      if (hierarchy.isLibraryField(field)) {
+        libraryFields.add(field);
+      }
+    }
+  }
 
-            // Get the field ref and resolve it to a Soot field
-            SootFieldRef fieldRef = Scene.v().makeFieldRef(cls, fieldName, fieldType, false);
-            SootField field;
+  /** A method or field ref, as it appears in the constant pool of a class file. */
+  private static class MemberRef {
+    private int tag;
+    private String owner;
+    private String name;
+    private String descriptor;
+
+    private MemberRef(int tag, String owner, String name, String descriptor) {
+      this.tag = tag;
+      this.owner = owner;
+      this.name = name;
+      this.descriptor = descriptor;
+    }
 
-            /*
-             * We have to do this ugly code. Try first and see if the
-             * field is not static. If it is static, then create a new
-             * fieldRef in the catch and resolve it again with isStatic
-             * = true.
-             */
-            try {
-              field = fieldRef.resolve();
-            } catch (ResolutionFailedException e) {
-              fieldRef = Scene.v().makeFieldRef(cls, fieldName, fieldType, true);
-            }
-            field = fieldRef.resolve();
+    /**
+     * The name of the class that declares this member. Members of array types (e.g., clone) are
+     * looked up in java.lang.Object.
+     *
+     * @return
+     */
+    private String className() {
+      return owner.startsWith("[") ? "java.lang.Object" : owner.replace('/', '.');
+    }
 
-            // If the resolved field is in the library, add it to the
-            // result
-            if (hierarchy.isLibraryField(field)) {
-              result.add(field);
-            }
-          }
-        }
-      } catch (IOException e) {
-        e.printStackTrace();
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof MemberRef)) {
+        return false;
       }
+      MemberRef other = (MemberRef) obj;
+      return tag == other.tag
+          && owner.equals(other.owner)
+          && name.equals(other.name)
+          && descriptor.equals(other.descriptor);
     }
 
-    return result;
-  }
-
-  /**
-   * Get all the library fields referenced from the constant pool of application classes.
-   *
-   * @return
-   */
-  private void findLibraryFieldsInApplicationConstantPool() {
-    libraryFields = new HashSet<SootField>();
-
-    // If we're processing an android apk, process the global field constant
-    // pool
-    // if (Options.v().src_prec() == Options.src_prec_apk) {
-    // libraryFields.addAll(findLibraryFieldsInAndroidApplicationConstantPool());
-    // } else {
-    // Add the library methods that appear in the constant pool of
-    // application classes
-    for (SootClass applicationClass : hierarchy.getApplicationClasses()) {
-      libraryFields.addAll(findLibraryFieldsInConstantPool(applicationClass));
+    @Override
+    public int hashCode() {
+      return Objects.hash(tag, owner, name, descriptor);
     }
-    // }
   }
 }
@@ -0,0 +1,69 @@
+package soot.asm;
+
+import averroes.util.io.PathResource;
+import averroes.util.io.Resource;
+import averroes.util.io.ZipEntryResource;
+import java.io.InputStream;
+import java.util.Map;
+import soot.ClassProvider;
+import soot.ClassSource;
+import soot.FoundFile;
+
+/**
+ * A class provider that loads the classes selected by {@link averroes.JarOrganizer} straight from
+ * the input archives, instead of going through the organized JAR files. It lives in this package
+ * because {@link AsmClassSource} is not accessible outside of it.
+ *
+ * @author Karim Ali
+ */
+public class AsmAverroesClassProvider implements ClassProvider {
+
+  private Map<String, Resource> classIndex;
+
+  /**
+   * Construct a new class provider backed by the given index of class names to class files.
+   *
+   * @param classIndex
+   */
+  public AsmAverroesClassProvider(Map<String, Resource> classIndex) {
+    this.classIndex = classIndex;
+  }
+
+  @Override
+  public ClassSource find(String className) {
+    Resource resource = classIndex.get(className);
+
+    if (resource instanceof ZipEntryResource) {
+      ZipEntryResource zipEntry = (ZipEntryResource) resource;
+      return new AsmClassSource(
+          className,
+          new ResourceFoundFile(zipEntry.archivePath(), zipEntry.entry().getName(), resource));
+    } else if (resource instanceof PathResource) {
+      PathResource file = (PathResource) resource;
+      return new AsmClassSource(
+          className,
+          new ResourceFoundFile(
+              file.path().getFileSystem().toString(), file.path().toString(), resource));
+    }
+
+    return null;
+  }
+
+  /**
+   * A found file that reads the class file through an already opened archive, rather than opening
+   * the archive again for every class.
+   */
+  private static class ResourceFoundFile extends FoundFile {
+    private Resource resource;
+
+    private ResourceFoundFile(String archivePath, String entryName, Resource resource) {
+      super(archivePath, entryName);
+      this.resource = resource;
+    }
+
+    @Override
+    public InputStream inputStream() {
+      return resource.open();
+    }
+  }
+}
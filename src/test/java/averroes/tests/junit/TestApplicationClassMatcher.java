@@ -0,0 +1,137 @@
+package averroes.tests.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import averroes.options.ApplicationClassMatcher;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class TestApplicationClassMatcher {
+
+  private static final List<String> CLASS_NAMES =
+      Arrays.asList(
+          "Main",
+          "Main$1",
+          "app.Main",
+          "app.Main$Inner",
+          "App.Main",
+          "app.util.Strings",
+          "APP.UTIL.Strings",
+          "app.util.text.Format",
+          "application.Main",
+          "org.apache.xalan.templates.OutputProperties",
+          "org.apache.xalan.templates.OutputProperties$1",
+          "Org.Apache.Xalan.Templates.OutputProperties",
+          "org.apache.xalanx.Other",
+          "java.lang.Object",
+          "\u0130stanbul.Main");
+
+  @Test
+  public void testPackage() {
+    ApplicationClassMatcher matcher = new ApplicationClassMatcher(Arrays.asList("app.*"));
+
+    assertTrue(matcher.matches("app.Main"));
+    assertTrue(matcher.matches("app.Main$Inner"));
+    assertTrue(matcher.matches("App.Main"));
+    assertFalse(matcher.matches("app.util.Strings"));
+    assertFalse(matcher.matches("application.Main"));
+    assertFalse(matcher.matches("Main"));
+  }
+
+  @Test
+  public void testSuperPackage() {
+    ApplicationClassMatcher matcher = new ApplicationClassMatcher(Arrays.asList("app.**"));
+
+    assertTrue(matcher.matches("app.Main"));
+    assertTrue(matcher.matches("app.util.Strings"));
+    assertTrue(matcher.matches("app.util.text.Format"));
+    assertFalse(matcher.matches("App.Main"));
+    assertFalse(matcher.matches("APP.UTIL.Strings"));
+    assertFalse(matcher.matches("application.Main"));
+    assertFalse(matcher.matches("Main"));
+  }
+
+  @Test
+  public void testDefaultPackage() {
+    ApplicationClassMatcher matcher = new ApplicationClassMatcher(Arrays.asList("**"));
+
+    assertTrue(matcher.matches("Main"));
+    assertTrue(matcher.matches("Main$1"));
+    assertFalse(matcher.matches("app.Main"));
+  }
+
+  @Test
+  public void testClassName() {
+    ApplicationClassMatcher matcher =
+        new ApplicationClassMatcher(
+            Arrays.asList("org.apache.xalan.templates.OutputProperties"));
+
+    assertTrue(matcher.matches("org.apache.xalan.templates.OutputProperties"));
+    assertTrue(matcher.matches("Org.Apache.Xalan.Templates.OutputProperties"));
+    assertFalse(matcher.matches("org.apache.xalan.templates.OutputProperties$1"));
+    assertFalse(matcher.matches("org.apache.xalan.templates.Other"));
+  }
+
+  @Test
+  public void testSameAsRegexWalk() {
+    List<List<String>> regexes =
+        Arrays.asList(
+            Arrays.asList("app.*"),
+            Arrays.asList("APP.util.*"),
+            Arrays.asList("app.**"),
+            Arrays.asList("app.util.**", "**"),
+            Arrays.asList("org.apache.xalan.**", "app.Main"),
+            Arrays.asList("ORG.APACHE.XALAN.TEMPLATES.OUTPUTPROPERTIES$1", "java.lang.*"),
+            Arrays.asList("istanbul.*", "Main"),
+            Arrays.asList("**", "app.*", "org.**", "java.lang.Object"));
+
+    for (List<String> regex : regexes) {
+      ApplicationClassMatcher matcher = new ApplicationClassMatcher(regex);
+      for (String className : CLASS_NAMES) {
+        assertEquals(
+            regex + " on " + className,
+            isApplicationClass(regex, className),
+            matcher.matches(className));
+
+        // The cached decision is the same
+        assertEquals(
+            regex + " on " + className,
+            isApplicationClass(regex, className),
+            matcher.matches(className));
+      }
+    }
+  }
+
+  /**
+   * Match the given class name by walking the given application regex, the way Averroes did before
+   * the regex was compiled into an {@link ApplicationClassMatcher}.
+   *
+   * @param regex
+   * @param className
+   * @return
+   */
+  private static boolean isApplicationClass(List<String> regex, String className) {
+    int lastDot = className.lastIndexOf('.');
+    String pkg = lastDot < 0 ? "" : className.substring(0, lastDot);
+
+    for (String entry : regex) {
+      if (entry.endsWith(".*")) {
+        if (pkg.equalsIgnoreCase(entry.replace(".*", ""))) {
+          return true;
+        }
+      } else if (entry.endsWith(".**")) {
+        if (className.startsWith(entry.replace("**", ""))) {
+          return true;
+        }
+      } else if (entry.equalsIgnoreCase("**") && pkg.isEmpty()) {
+        return true;
+      } else if (entry.equalsIgnoreCase(className)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,122 @@
+package averroes.tests.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import averroes.util.ConstantPoolReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+public class TestConstantPoolReader {
+
+  @Test
+  public void testFixtureHasAllKinds() throws IOException {
+    ConstantPoolReader constantPool = new ConstantPoolReader(classFile(Fixture.class));
+    Set<Integer> tags = new HashSet<Integer>();
+    for (int i = 1; i < constantPool.getItemCount(); i++) {
+      tags.add(constantPool.getTag(i));
+    }
+
+    assertTrue(tags.contains(ConstantPoolReader.CONSTANT_METHODREF));
+    assertTrue(tags.contains(ConstantPoolReader.CONSTANT_INTERFACE_METHODREF));
+    assertTrue(tags.contains(ConstantPoolReader.CONSTANT_FIELDREF));
+    assertTrue(tags.contains(ConstantPoolReader.CONSTANT_LONG));
+    assertTrue(tags.contains(ConstantPoolReader.CONSTANT_DOUBLE));
+    assertTrue(tags.contains(ConstantPoolReader.CONSTANT_INVOKE_DYNAMIC));
+    assertTrue(tags.contains(ConstantPoolReader.CONSTANT_METHOD_HANDLE));
+  }
+
+  @Test
+  public void testFixture() throws IOException {
+    assertSameAsClassReader(classFile(Fixture.class));
+  }
+
+  @Test
+  public void testConstantPoolReader() throws IOException {
+    assertSameAsClassReader(classFile(ConstantPoolReader.class));
+  }
+
+  @Test
+  public void testTestClass() throws IOException {
+    assertSameAsClassReader(classFile(TestConstantPoolReader.class));
+  }
+
+  /**
+   * Check that a {@link ConstantPoolReader} reads the same entries as an ASM {@link ClassReader}
+   * in the given class file: the tags (including the unusable entry after a long or a double), the
+   * classes, the strings, the owner, name, and descriptor of the field and method refs, and where
+   * the constant pool ends.
+   *
+   * @param classFile
+   */
+  private static void assertSameAsClassReader(byte[] classFile) {
+    ConstantPoolReader constantPool = new ConstantPoolReader(classFile);
+    ClassReader reader = new ClassReader(classFile);
+    char[] buffer = new char[reader.getMaxStringLength()];
+
+    assertEquals(reader.getItemCount(), constantPool.getItemCount());
+    assertEquals(reader.header, constantPool.getHeader());
+    for (int i = 1; i < reader.getItemCount(); i++) {
+      int offset = reader.getItem(i);
+      int tag = offset == 0 ? 0 : reader.readByte(offset - 1);
+      assertEquals("tag of entry " + i, tag, constantPool.getTag(i));
+
+      switch (tag) {
+        case ConstantPoolReader.CONSTANT_CLASS:
+          assertEquals(reader.readUTF8(offset, buffer), constantPool.readClass(i));
+          break;
+        case ConstantPoolReader.CONSTANT_STRING:
+          assertEquals(reader.readUTF8(offset, buffer), constantPool.readString(i));
+          break;
+        case ConstantPoolReader.CONSTANT_FIELDREF:
+        case ConstantPoolReader.CONSTANT_METHODREF:
+        case ConstantPoolReader.CONSTANT_INTERFACE_METHODREF:
+          int nameAndType = reader.getItem(reader.readUnsignedShort(offset + 2));
+          assertEquals(reader.readClass(offset, buffer), constantPool.readMemberOwner(i));
+          assertEquals(reader.readUTF8(nameAndType, buffer), constantPool.readMemberName(i));
+          assertEquals(
+              reader.readUTF8(nameAndType + 2, buffer), constantPool.readMemberDescriptor(i));
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  private static byte[] classFile(Class<?> cls) throws IOException {
+    String name = cls.getName();
+    try (InputStream in =
+        cls.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class")) {
+      return IOUtils.toByteArray(in);
+    }
+  }
+
+  /**
+   * A class whose constant pool holds method refs, interface method refs, field refs, long and
+   * double constants, non-ASCII strings and a lambda (i.e., an invokedynamic).
+   */
+  private static class Fixture {
+    private static final long BIG = 1L << 40;
+    private static final String GREETING = "h\u00e9llo \u4e16\u754c \ud83d\ude00";
+
+    private long count;
+    private double ratio;
+    private List<String> names = new ArrayList<String>();
+
+    private long run() {
+      count += 123456789012L + BIG;
+      ratio = ratio * 2.5;
+      names.add(GREETING);
+      Supplier<String> supplier = () -> names.toString();
+      return count + supplier.get().length() + (long) ratio;
+    }
+  }
+}
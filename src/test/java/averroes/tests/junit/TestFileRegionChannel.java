@@ -0,0 +1,143 @@
+package averroes.tests.junit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import averroes.util.io.FileRegionChannel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFileRegionChannel {
+
+  private static final byte[] CLASS_FILE =
+      "not really a class file".getBytes(StandardCharsets.UTF_8);
+
+  private Path outerJar;
+  private byte[] nestedJar;
+  private long offset;
+
+  @Before
+  public void createOuterJar() throws IOException {
+    nestedJar = zip("a/A.class", CLASS_FILE);
+    outerJar = Files.createTempFile("outer", ".jar");
+    Files.write(outerJar, zip("BOOT-INF/lib/nested.jar", nestedJar));
+
+    try (ZipFile outer = new ZipFile(outerJar.toFile())) {
+      offset = outer.getEntry("BOOT-INF/lib/nested.jar").getDataOffset();
+    }
+  }
+
+  @After
+  public void deleteOuterJar() throws IOException {
+    Files.deleteIfExists(outerJar);
+  }
+
+  @Test
+  public void testSize() throws IOException {
+    try (FileRegionChannel channel = new FileRegionChannel(outerJar, offset, nestedJar.length)) {
+      assertEquals(nestedJar.length, channel.size());
+      assertEquals(0, channel.position());
+    }
+  }
+
+  @Test
+  public void testReadWholeRegion() throws IOException {
+    try (FileRegionChannel channel = new FileRegionChannel(outerJar, offset, nestedJar.length)) {
+      ByteBuffer buffer = ByteBuffer.allocate(nestedJar.length);
+      while (buffer.hasRemaining() && channel.read(buffer) > 0) {}
+
+      assertArrayEquals(nestedJar, buffer.array());
+      assertEquals(nestedJar.length, channel.position());
+    }
+  }
+
+  @Test
+  public void testReadFromPosition() throws IOException {
+    try (FileRegionChannel channel = new FileRegionChannel(outerJar, offset, nestedJar.length)) {
+      channel.position(10);
+      ByteBuffer buffer = ByteBuffer.allocate(5);
+      assertEquals(5, channel.read(buffer));
+
+      assertArrayEquals(Arrays.copyOfRange(nestedJar, 10, 15), buffer.array());
+      assertEquals(15, channel.position());
+    }
+  }
+
+  @Test
+  public void testTruncatedRead() throws IOException {
+    try (FileRegionChannel channel = new FileRegionChannel(outerJar, offset, nestedJar.length)) {
+      channel.position(nestedJar.length - 3);
+      ByteBuffer buffer = ByteBuffer.allocate(16);
+
+      // Only the end of the region is read, not the bytes that follow it in the outer file
+      assertEquals(3, channel.read(buffer));
+      assertEquals(3, buffer.position());
+      assertEquals(16, buffer.limit());
+      assertArrayEquals(
+          Arrays.copyOfRange(nestedJar, nestedJar.length - 3, nestedJar.length),
+          Arrays.copyOf(buffer.array(), 3));
+      assertEquals(nestedJar.length, channel.position());
+    }
+  }
+
+  @Test
+  public void testReadPastEnd() throws IOException {
+    try (FileRegionChannel channel = new FileRegionChannel(outerJar, offset, nestedJar.length)) {
+      channel.position(nestedJar.length);
+      assertEquals(-1, channel.read(ByteBuffer.allocate(16)));
+
+      channel.position(nestedJar.length + 100);
+      assertEquals(-1, channel.read(ByteBuffer.allocate(16)));
+    }
+  }
+
+  @Test
+  public void testOpenNestedJar() throws IOException {
+    FileRegionChannel channel = new FileRegionChannel(outerJar, offset, nestedJar.length);
+    try (ZipFile nested = new ZipFile(channel, "nested.jar", "UTF-8", true);
+        InputStream in = nested.getInputStream(nested.getEntry("a/A.class"))) {
+      assertArrayEquals(CLASS_FILE, IOUtils.toByteArray(in));
+    }
+  }
+
+  /**
+   * Create a ZIP archive that holds the given contents, stored (i.e., not compressed) under the
+   * given entry name.
+   *
+   * @param entryName
+   * @param contents
+   * @return
+   * @throws IOException
+   */
+  private static byte[] zip(String entryName, byte[] contents) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(contents);
+
+    ZipArchiveEntry entry = new ZipArchiveEntry(entryName);
+    entry.setMethod(ZipArchiveEntry.STORED);
+    entry.setSize(contents.length);
+    entry.setCrc(crc.getValue());
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ZipArchiveOutputStream out = new ZipArchiveOutputStream(bytes)) {
+      out.putArchiveEntry(entry);
+      out.write(contents);
+      out.closeArchiveEntry();
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,231 @@
+package averroes.tests.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import averroes.options.AverroesOptions;
+import averroes.soot.Hierarchy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.commons.cli.ParseException;
+import org.junit.Before;
+import org.junit.Test;
+import soot.G;
+import soot.Modifier;
+import soot.Scene;
+import soot.SootClass;
+
+public class TestHierarchy {
+
+  private List<SootClass> classes;
+  private SootClass object;
+  private SootClass pet;
+  private SootClass animal;
+  private SootClass dog;
+  private Hierarchy hierarchy;
+
+  @Before
+  public void createHierarchy() throws ParseException {
+    G.reset();
+    String tmp = System.getProperty("java.io.tmpdir");
+    AverroesOptions.parseArguments(
+        new String[] {"-r", "app.**", "-m", "app.Main", "-a", "app.jar", "-o", tmp, "-j", tmp});
+
+    classes = new ArrayList<SootClass>();
+    object = addClass("java.lang.Object", Modifier.PUBLIC, null);
+    pet = addClass("lib.Pet", Modifier.PUBLIC | Modifier.INTERFACE, object);
+    SootClass named = addClass("lib.Named", Modifier.PUBLIC | Modifier.INTERFACE, object, pet);
+    animal = addClass("lib.Animal", Modifier.PUBLIC | Modifier.ABSTRACT, object, named);
+    dog = addClass("lib.Dog", Modifier.PUBLIC, animal, pet);
+    addClass("lib.Puppy", Modifier.PUBLIC, dog);
+    addClass("lib.Cat", Modifier.PUBLIC, animal);
+    addClass("lib.Stone", Modifier.PUBLIC, object);
+    addClass("app.Robot", Modifier.PUBLIC, dog);
+    addClass("app.Toy", Modifier.PUBLIC | Modifier.ABSTRACT, object, pet);
+
+    Hierarchy.reset();
+    hierarchy = Hierarchy.v();
+  }
+
+  @Test
+  public void testSupertypes() {
+    for (SootClass cls : classes) {
+      String name = cls.getName();
+
+      assertEquals(name, superclassesOf(cls), list(hierarchy.getSuperclassesOf(cls)));
+      assertEquals(name, superinterfacesOf(cls), set(hierarchy.getSuperinterfacesOf(cls)));
+      assertEquals(name, depthOf(cls), hierarchy.getDepthOf(cls));
+    }
+  }
+
+  @Test
+  public void testSubtypes() {
+    for (SootClass cls : classes) {
+      String name = cls.getName();
+
+      assertEquals(name, subclassesOf(cls, false, false), set(hierarchy.getSubclassesOf(cls)));
+      assertEquals(
+          name, subclassesOf(cls, true, false), set(hierarchy.getConcreteSubclassesOf(cls)));
+      assertEquals(
+          name, subclassesOf(cls, true, true), set(hierarchy.getLibraryConcreteSubclassesOf(cls)));
+
+      if (cls.isInterface()) {
+        assertEquals(
+            name, implementersOf(cls, false, false), set(hierarchy.getImplementersOf(cls)));
+        assertEquals(
+            name, implementersOf(cls, true, false), set(hierarchy.getConcreteImplementersOf(cls)));
+        assertEquals(
+            name,
+            implementersOf(cls, true, true),
+            set(hierarchy.getLibraryConcreteImplementersOf(cls)));
+      }
+    }
+  }
+
+  @Test
+  public void testSubtypeChecks() {
+    for (SootClass child : classes) {
+      for (SootClass cls : classes) {
+        String pair = child.getName() + " < " + cls.getName();
+        boolean subclass = superclassesOf(child).contains(cls);
+
+        assertEquals(pair, subclass, hierarchy.isSubclassOf(child, cls));
+        assertEquals(
+            pair, subclass && child.isConcrete(), hierarchy.isConcreteSubclassOf(child, cls));
+        assertEquals(
+            pair,
+            subclass && child.isConcrete() && hierarchy.isLibraryClass(child),
+            hierarchy.isLibraryConcreteSubclassOf(child, cls));
+        assertEquals(
+            pair, superinterfacesOf(child).contains(cls), hierarchy.isSubinterfaceOf(child, cls));
+      }
+    }
+  }
+
+  @Test
+  public void testClassOutsideHierarchy() {
+    // A class created after the hierarchy is answered from the closure maps, and it is no library
+    // class of the hierarchy
+    SootClass wolf = addClass("lib.Wolf", Modifier.PUBLIC, dog);
+
+    assertTrue(hierarchy.isConcreteSubclassOf(wolf, animal));
+    assertFalse(hierarchy.isLibraryConcreteSubclassOf(wolf, animal));
+    assertTrue(hierarchy.isSubclassOf(wolf, object));
+    assertTrue(hierarchy.isSubinterfaceOf(wolf, pet));
+    assertEquals(Arrays.asList(dog, animal, object), list(hierarchy.getSuperclassesOf(wolf)));
+    assertEquals(depthOf(wolf), hierarchy.getDepthOf(wolf));
+
+    assertTrue(hierarchy.getSubclassesOf(animal).contains(wolf));
+    assertTrue(hierarchy.getConcreteSubclassesOf(dog).contains(wolf));
+    assertFalse(hierarchy.getLibraryConcreteSubclassesOf(dog).contains(wolf));
+    assertTrue(hierarchy.getImplementersOf(pet).contains(wolf));
+    assertTrue(hierarchy.getConcreteImplementersOf(pet).contains(wolf));
+    assertFalse(hierarchy.getLibraryConcreteImplementersOf(pet).contains(wolf));
+
+    // A subclass of a class outside the hierarchy
+    SootClass cub = addClass("lib.Cub", Modifier.PUBLIC, wolf);
+
+    assertTrue(hierarchy.isConcreteSubclassOf(cub, wolf));
+    assertEquals(set(Arrays.asList(cub)), set(hierarchy.getConcreteSubclassesOf(wolf)));
+  }
+
+  /**
+   * The superclasses of the given class, from its direct superclass up to java.lang.Object.
+   *
+   * @param cls
+   * @return
+   */
+  private static List<SootClass> superclassesOf(SootClass cls) {
+    List<SootClass> result = new ArrayList<SootClass>();
+    for (SootClass c = cls; c.hasSuperclass(); c = c.getSuperclass()) {
+      result.add(c.getSuperclass());
+    }
+    return result;
+  }
+
+  /**
+   * The interfaces the given class implements directly or through its supertypes.
+   *
+   * @param cls
+   * @return
+   */
+  private static Set<SootClass> superinterfacesOf(SootClass cls) {
+    Set<SootClass> result = new HashSet<SootClass>();
+    for (SootClass iface : cls.getInterfaces()) {
+      result.add(iface);
+      result.addAll(superinterfacesOf(iface));
+    }
+    if (cls.hasSuperclass()) {
+      result.addAll(superinterfacesOf(cls.getSuperclass()));
+    }
+    return result;
+  }
+
+  /**
+   * The length of the longest path from the given class up to a root of the hierarchy.
+   *
+   * @param cls
+   * @return
+   */
+  private static int depthOf(SootClass cls) {
+    int depth = 0;
+    for (SootClass iface : cls.getInterfaces()) {
+      depth = Math.max(depth, depthOf(iface) + 1);
+    }
+    if (cls.hasSuperclass()) {
+      depth = Math.max(depth, depthOf(cls.getSuperclass()) + 1);
+    }
+    return depth;
+  }
+
+  private Set<SootClass> subclassesOf(SootClass cls, boolean concrete, boolean library) {
+    Set<SootClass> result = new HashSet<SootClass>();
+    for (SootClass child : classes) {
+      if (superclassesOf(child).contains(cls) && accept(child, concrete, library)) {
+        result.add(child);
+      }
+    }
+    return result;
+  }
+
+  private Set<SootClass> implementersOf(SootClass iface, boolean concrete, boolean library) {
+    Set<SootClass> result = new HashSet<SootClass>();
+    for (SootClass child : classes) {
+      if (superinterfacesOf(child).contains(iface) && accept(child, concrete, library)) {
+        result.add(child);
+      }
+    }
+    return result;
+  }
+
+  private boolean accept(SootClass cls, boolean concrete, boolean library) {
+    return (!concrete || cls.isConcrete()) && (!library || hierarchy.isLibraryClass(cls));
+  }
+
+  private static List<SootClass> list(Collection<SootClass> classes) {
+    return new ArrayList<SootClass>(classes);
+  }
+
+  private static Set<SootClass> set(Collection<SootClass> classes) {
+    return new HashSet<SootClass>(classes);
+  }
+
+  private SootClass addClass(
+      String name, int modifiers, SootClass superclass, SootClass... interfaces) {
+    SootClass cls = new SootClass(name, modifiers);
+    if (superclass != null) {
+      cls.setSuperclass(superclass);
+    }
+    for (SootClass iface : interfaces) {
+      cls.addInterface(iface);
+    }
+    Scene.v().addClass(cls);
+    classes.add(cls);
+    return cls;
+  }
+}
@@ -0,0 +1,323 @@
+package averroes.tests.junit;
+
+import static org.junit.Assert.assertEquals;
+
+import averroes.options.AverroesOptions;
+import averroes.soot.HierarchySnapshot;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import soot.ArrayType;
+import soot.ClassProvider;
+import soot.ClassSource;
+import soot.G;
+import soot.IntType;
+import soot.Modifier;
+import soot.RefType;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootField;
+import soot.SootMethod;
+import soot.SootResolver;
+import soot.Type;
+import soot.VoidType;
+import soot.javaToJimple.IInitialResolver.Dependencies;
+
+public class TestHierarchySnapshot {
+
+  private static final String KEY = "library";
+  private static final List<String> CLASS_NAMES =
+      Arrays.asList("java.lang.Object", "lib.Widget", "lib.Widget$Part");
+
+  private File directory;
+
+  @Before
+  public void createDirectory() throws IOException, ParseException {
+    G.reset();
+    directory = Files.createTempDirectory("snapshot").toFile();
+    String tmp = directory.getPath();
+    AverroesOptions.parseArguments(
+        new String[] {"-r", "app.**", "-m", "app.Main", "-a", "app.jar", "-o", tmp, "-j", tmp});
+  }
+
+  @After
+  public void deleteDirectory() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    HierarchySnapshot snapshot = new HierarchySnapshot(directory, KEY);
+    Map<String, SootClass> resolved = resolve(snapshot);
+    assertEquals(CLASS_NAMES.size(), snapshot.getRecordedClassCount());
+    assertEquals(0, snapshot.getLoadedClassCount());
+    snapshot.save();
+
+    HierarchySnapshot reopened = new HierarchySnapshot(directory, KEY);
+    Map<String, SootClass> loaded = resolveFromSnapshot(reopened);
+    assertEquals(CLASS_NAMES.size(), reopened.getLoadedClassCount());
+    assertEquals(0, reopened.getRecordedClassCount());
+
+    for (String className : CLASS_NAMES) {
+      assertSameClass(resolved.get(className), loaded.get(className));
+    }
+  }
+
+  @Test
+  public void testRecordedClassesAreKept() throws IOException {
+    // The classes of the snapshot file are written back along with the newly recorded ones
+    HierarchySnapshot snapshot = new HierarchySnapshot(directory, KEY);
+    resolve(snapshot, CLASS_NAMES.subList(0, 1));
+    snapshot.save();
+
+    HierarchySnapshot reopened = new HierarchySnapshot(directory, KEY);
+    resolve(reopened);
+    assertEquals(1, reopened.getLoadedClassCount());
+    assertEquals(CLASS_NAMES.size() - 1, reopened.getRecordedClassCount());
+    reopened.save();
+
+    assertEquals(CLASS_NAMES.size(), countLoaded(new HierarchySnapshot(directory, KEY)));
+  }
+
+  @Test
+  public void testTruncatedFile() throws IOException {
+    HierarchySnapshot snapshot = new HierarchySnapshot(directory, KEY);
+    resolve(snapshot);
+    snapshot.save();
+    byte[] bytes = Files.readAllBytes(new File(directory, KEY + ".snapshot").toPath());
+
+    for (int length = 0; length < bytes.length; length++) {
+      String key = "truncated-" + length;
+      Files.write(new File(directory, key + ".snapshot").toPath(), Arrays.copyOf(bytes, length));
+
+      // A truncated file is ignored, and replaced by the next save
+      HierarchySnapshot truncated = new HierarchySnapshot(directory, key);
+      assertEquals(key, 0, countLoaded(truncated));
+      truncated.save();
+      assertEquals(key, CLASS_NAMES.size(), countLoaded(new HierarchySnapshot(directory, key)));
+    }
+  }
+
+  @Test
+  public void testCorruptFile() throws IOException {
+    HierarchySnapshot snapshot = new HierarchySnapshot(directory, KEY);
+    resolve(snapshot);
+    snapshot.save();
+    File file = new File(directory, KEY + ".snapshot");
+    byte[] bytes = Files.readAllBytes(file.toPath());
+
+    // The length of the first record (i.e., java.lang.Object) now runs past the end of the file
+    int lengthOffset = 3 * Integer.BYTES + 2 + "java.lang.Object".length();
+    bytes[lengthOffset] = (byte) 0x7F;
+    Files.write(file.toPath(), bytes);
+
+    HierarchySnapshot corrupt = new HierarchySnapshot(directory, KEY);
+    assertEquals(0, countLoaded(corrupt));
+    corrupt.save();
+    assertEquals(CLASS_NAMES.size(), countLoaded(new HierarchySnapshot(directory, KEY)));
+  }
+
+  /**
+   * Resolve all the test classes through the given snapshot, and return the number of classes it
+   * loaded.
+   *
+   * @param snapshot
+   * @return
+   */
+  private static int countLoaded(HierarchySnapshot snapshot) {
+    resolve(snapshot);
+    return snapshot.getLoadedClassCount();
+  }
+
+  private static Map<String, SootClass> resolve(HierarchySnapshot snapshot) {
+    return resolve(snapshot, CLASS_NAMES);
+  }
+
+  /**
+   * Resolve the given test classes through the given snapshot. The classes that are not in the
+   * snapshot are resolved by {@link #createClass(SootClass)}.
+   *
+   * @param snapshot
+   * @param classNames
+   * @return
+   */
+  private static Map<String, SootClass> resolve(
+      HierarchySnapshot snapshot, List<String> classNames) {
+    ClassProvider provider =
+        snapshot.classProvider(
+            className -> new TestClassSource(className), new HashSet<String>(CLASS_NAMES));
+    Map<String, SootClass> result = new LinkedHashMap<String, SootClass>();
+    for (String className : classNames) {
+      SootClass cls = new SootClass(className);
+      provider.find(className).resolve(cls);
+      result.put(className, cls);
+    }
+    return result;
+  }
+
+  /**
+   * Resolve all the test classes through the given snapshot, failing on any class that is not in
+   * the snapshot.
+   *
+   * @param snapshot
+   * @return
+   */
+  private static Map<String, SootClass> resolveFromSnapshot(HierarchySnapshot snapshot) {
+    ClassProvider provider =
+        snapshot.classProvider(
+            className -> {
+              throw new AssertionError(className + " is not in the snapshot");
+            },
+            new HashSet<String>(CLASS_NAMES));
+    Map<String, SootClass> result = new LinkedHashMap<String, SootClass>();
+    for (String className : CLASS_NAMES) {
+      SootClass cls = new SootClass(className);
+      Dependencies expected = dependenciesOf(className);
+      Dependencies actual = provider.find(className).resolve(cls);
+      assertEquals(className, expected.typesToHierarchy, actual.typesToHierarchy);
+      assertEquals(className, expected.typesToSignature, actual.typesToSignature);
+      result.put(className, cls);
+    }
+    return result;
+  }
+
+  private static void assertSameClass(SootClass expected, SootClass actual) {
+    String className = expected.getName();
+    assertEquals(className, expected.getModifiers(), actual.getModifiers());
+    assertEquals(
+        className, nameOf(expected.getSuperclassUnsafe()), nameOf(actual.getSuperclassUnsafe()));
+    assertEquals(
+        className, nameOf(expected.getOuterClassUnsafe()), nameOf(actual.getOuterClassUnsafe()));
+    assertEquals(className, namesOf(expected.getInterfaces()), namesOf(actual.getInterfaces()));
+
+    assertEquals(className, expected.getFieldCount(), actual.getFieldCount());
+    for (SootField field : expected.getFields()) {
+      SootField other = actual.getField(field.getName(), field.getType());
+      assertEquals(field.getSignature(), field.getModifiers(), other.getModifiers());
+    }
+
+    assertEquals(className, expected.getMethodCount(), actual.getMethodCount());
+    for (SootMethod method : expected.getMethods()) {
+      SootMethod other =
+          actual.getMethod(method.getName(), method.getParameterTypes(), method.getReturnType());
+      assertEquals(method.getSignature(), method.getModifiers(), other.getModifiers());
+      assertEquals(
+          method.getSignature(), namesOf(method.getExceptions()), namesOf(other.getExceptions()));
+    }
+  }
+
+  private static String nameOf(SootClass cls) {
+    return cls == null ? null : cls.getName();
+  }
+
+  private static List<String> namesOf(Iterable<SootClass> classes) {
+    List<String> result = new ArrayList<String>();
+    for (SootClass cls : classes) {
+      result.add(cls.getName());
+    }
+    return result;
+  }
+
+  /**
+   * Fill in the given test class, the way Soot would from its class file.
+   *
+   * @param cls
+   */
+  private static void createClass(SootClass cls) {
+    SootResolver resolver = SootResolver.v();
+    Type object = RefType.v("java.lang.Object");
+
+    switch (cls.getName()) {
+      case "java.lang.Object":
+        cls.setModifiers(Modifier.PUBLIC);
+        cls.addMethod(
+            Scene.v()
+                .makeSootMethod(
+                    SootMethod.constructorName,
+                    Collections.<Type>emptyList(),
+                    VoidType.v(),
+                    Modifier.PUBLIC));
+        break;
+      case "lib.Widget":
+        cls.setModifiers(Modifier.PUBLIC | Modifier.ABSTRACT);
+        cls.setSuperclass(resolver.makeClassRef("java.lang.Object"));
+        cls.addInterface(resolver.makeClassRef("java.io.Serializable"));
+        cls.addInterface(resolver.makeClassRef("java.lang.Cloneable"));
+        cls.addField(Scene.v().makeSootField("count", IntType.v(), Modifier.PRIVATE));
+        cls.addField(
+            Scene.v()
+                .makeSootField(
+                    "parts",
+                    ArrayType.v(RefType.v("lib.Widget$Part"), 2),
+                    Modifier.PROTECTED | Modifier.FINAL));
+        cls.addMethod(
+            Scene.v()
+                .makeSootMethod(
+                    "find",
+                    Arrays.asList(object, IntType.v(), ArrayType.v(IntType.v(), 1)),
+                    RefType.v("lib.Widget$Part"),
+                    Modifier.PUBLIC | Modifier.ABSTRACT,
+                    Arrays.asList(
+                        resolver.makeClassRef("java.io.IOException"),
+                        resolver.makeClassRef("java.lang.Exception"))));
+        cls.addMethod(
+            Scene.v()
+                .makeSootMethod(
+                    "find", Arrays.asList(object), object, Modifier.PUBLIC | Modifier.NATIVE));
+        break;
+      case "lib.Widget$Part":
+        cls.setModifiers(Modifier.PUBLIC | Modifier.STATIC | Modifier.FINAL);
+        cls.setSuperclass(resolver.makeClassRef("java.lang.Object"));
+        cls.setOuterClass(resolver.makeClassRef("lib.Widget"));
+        cls.addField(Scene.v().makeSootField("NAME", object, Modifier.PUBLIC | Modifier.STATIC));
+        break;
+      default:
+        throw new AssertionError(cls.getName());
+    }
+  }
+
+  /**
+   * The types the given test class depends on.
+   *
+   * @param className
+   * @return
+   */
+  private static Dependencies dependenciesOf(String className) {
+    Dependencies dependencies = new Dependencies();
+    if (!className.equals("java.lang.Object")) {
+      dependencies.typesToHierarchy.add(RefType.v("java.lang.Object"));
+    }
+    if (className.equals("lib.Widget")) {
+      dependencies.typesToHierarchy.add(RefType.v("java.io.Serializable"));
+      dependencies.typesToSignature.add(RefType.v("java.io.IOException"));
+      dependencies.typesToSignature.add(RefType.v("lib.Widget$Part"));
+    }
+    return dependencies;
+  }
+
+  /** A class source that fills in the test classes instead of reading their class files. */
+  private static class TestClassSource extends ClassSource {
+
+    private TestClassSource(String className) {
+      super(className);
+    }
+
+    @Override
+    public Dependencies resolve(SootClass sc) {
+      createClass(sc);
+      return dependenciesOf(className);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package averroes.tests.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import averroes.LibraryClassClosure;
+import averroes.RuntimeImage;
+import averroes.util.ConstantPoolUtils;
+import averroes.util.io.Resource;
+import java.io.IOException;
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import javax.swing.JPanel;
+import org.junit.Test;
+
+public class TestLibraryClassClosure {
+
+  private static final String WIDGET = Widget.class.getName();
+  private static final String GADGET = Gadget.class.getName();
+  private static final String UNUSED = Unused.class.getName();
+
+  @Test
+  public void testCompute() {
+    Set<String> closure = closure().compute(Collections.singleton(WIDGET));
+
+    assertEquals(new HashSet<String>(Arrays.asList(WIDGET, GADGET)), closure);
+  }
+
+  @Test
+  public void testReferencedClassNames() {
+    for (boolean parallel : Arrays.asList(false, true)) {
+      Set<String> referenced =
+          closure().referencedClassNames(Collections.singleton(WIDGET), parallel);
+
+      // The JDK super class of a library class is referenced, even though it is no library class
+      assertTrue(referenced.contains(WIDGET));
+      assertTrue(referenced.contains(GADGET));
+      assertTrue(referenced.contains(JPanel.class.getName()));
+      assertTrue(referenced.contains(StringBuilder.class.getName()));
+      assertFalse(referenced.contains(UNUSED));
+      assertFalse(referenced.contains(Connection.class.getName()));
+    }
+  }
+
+  @Test
+  public void testSelectedModules() throws IOException {
+    String javaHome = System.getProperty("java.home");
+    assumeTrue(RuntimeImage.isModular(javaHome));
+
+    Set<String> packages =
+        closure().referencedClassNames(Collections.singleton(WIDGET), false).stream()
+            .map(ConstantPoolUtils::packageName)
+            .collect(Collectors.toSet());
+    try (RuntimeImage runtimeImage = RuntimeImage.open(javaHome)) {
+      Set<String> modules = runtimeImage.selectModules(packages);
+
+      assertTrue(modules.contains("java.desktop"));
+      assertFalse(modules.contains("java.sql"));
+    }
+  }
+
+  /**
+   * A closure over the library classes {@link Widget}, {@link Gadget}, and {@link Unused}.
+   *
+   * @return
+   */
+  private static LibraryClassClosure closure() {
+    Map<String, Resource> libraryClasses = new HashMap<String, Resource>();
+    for (Class<?> cls : Arrays.asList(Widget.class, Gadget.class, Unused.class)) {
+      String name = cls.getName();
+      String fileName = name.substring(name.lastIndexOf('.') + 1) + ".class";
+      libraryClasses.put(name, () -> cls.getResourceAsStream(fileName));
+    }
+    return new LibraryClassClosure(libraryClasses);
+  }
+
+  /** A library class whose super class is in the module java.desktop. */
+  private static class Widget extends JPanel {
+    private static final long serialVersionUID = 1L;
+
+    private Gadget gadget;
+
+    private String describe() {
+      return new StringBuilder().append(gadget).toString();
+    }
+  }
+
+  /** A library class in the signature of {@link Widget}. */
+  private static class Gadget {}
+
+  /** A library class that no other class references, whose field type is in java.sql. */
+  private static class Unused {
+    private Connection connection;
+  }
+}
@@ -0,0 +1,134 @@
+package averroes.tests.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import averroes.AverroesContext;
+import averroes.JarOrganizer;
+import averroes.options.AverroesOptions;
+import averroes.soot.Hierarchy;
+import java.util.Collections;
+import java.util.Set;
+import org.apache.commons.cli.ParseException;
+import org.junit.Before;
+import org.junit.Test;
+import soot.G;
+import soot.IntType;
+import soot.Modifier;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootField;
+import soot.SootMethod;
+import soot.Type;
+
+public class TestRemovableLibraryMembers {
+
+  private SootMethod shapeDraw;
+  private SootMethod shapeArea;
+  private SootMethod squareDraw;
+  private SootMethod squareArea;
+  private SootMethod tileDraw;
+  private SootMethod drawableDraw;
+  private SootMethod canvasDraw;
+  private Hierarchy hierarchy;
+
+  @Before
+  public void createHierarchy() throws ParseException {
+    G.reset();
+    String tmp = System.getProperty("java.io.tmpdir");
+    AverroesOptions.parseArguments(
+        new String[] {
+          "-r", "app.**", "-m", "app.App", "-a", "app.jar", "-o", tmp, "-j", tmp,
+          "--virtual-classpath"
+        });
+
+    SootClass object = addClass("java.lang.Object", Modifier.PUBLIC, null);
+    object.addMethod(Hierarchy.getNewDefaultConstructor());
+
+    SootClass shape = addClass("lib.Shape", Modifier.PUBLIC | Modifier.ABSTRACT, object);
+    shapeDraw = addMethod(shape, "draw", Modifier.PUBLIC | Modifier.ABSTRACT);
+    shapeArea = addMethod(shape, "area", Modifier.PUBLIC);
+    shape.addField(new SootField("sides", IntType.v(), Modifier.PUBLIC));
+
+    SootClass square = addClass("lib.Square", Modifier.PUBLIC, shape);
+    squareDraw = addMethod(square, "draw", Modifier.PUBLIC);
+    squareArea = addMethod(square, "area", Modifier.PUBLIC);
+
+    SootClass tile = addClass("lib.Tile", Modifier.PUBLIC, square);
+    tileDraw = addMethod(tile, "draw", Modifier.PUBLIC);
+
+    SootClass drawable = addClass("lib.Drawable", Modifier.PUBLIC | Modifier.INTERFACE, object);
+    drawableDraw = addMethod(drawable, "draw", Modifier.PUBLIC | Modifier.ABSTRACT);
+
+    SootClass canvas = addClass("lib.Canvas", Modifier.PUBLIC, object);
+    canvas.addInterface(drawable);
+    canvasDraw = addMethod(canvas, "draw", Modifier.PUBLIC);
+
+    // The application overrides lib.Shape.draw(), so the abstract method is kept. Its constant pool
+    // is read from a class file without any member refs.
+    SootClass app = addClass("app.App", Modifier.PUBLIC, shape);
+    addMethod(app, "draw", Modifier.PUBLIC);
+    JarOrganizer jarOrganizer = new JarOrganizer();
+    jarOrganizer
+        .classIndex()
+        .put(
+            app.getName(),
+            () ->
+                TestRemovableLibraryMembers.class.getResourceAsStream(
+                    "TestRemovableLibraryMembers$Marker.class"));
+    AverroesContext.v().put(JarOrganizer.class, jarOrganizer);
+
+    Hierarchy.reset();
+    hierarchy = Hierarchy.v();
+  }
+
+  @Test
+  public void testParallelSameAsSequential() {
+    Set<SootMethod> parallelMethods = hierarchy.findRemovableLibraryMethods(true);
+    Set<SootMethod> sequentialMethods = hierarchy.findRemovableLibraryMethods(false);
+    Set<SootField> parallelFields = hierarchy.findRemovableLibraryFields(true);
+    Set<SootField> sequentialFields = hierarchy.findRemovableLibraryFields(false);
+
+    assertEquals(sequentialMethods, parallelMethods);
+    assertEquals(sequentialFields, parallelFields);
+  }
+
+  @Test
+  public void testRemovableLibraryMethods() {
+    for (boolean parallel : new boolean[] {false, true}) {
+      Set<SootMethod> removable = hierarchy.findRemovableLibraryMethods(parallel);
+
+      // The abstract method overridden by the application is kept, and so is its first concrete
+      // override, but not the overrides of that one
+      assertFalse(removable.contains(shapeDraw));
+      assertFalse(removable.contains(squareDraw));
+      assertTrue(removable.contains(tileDraw));
+
+      // Once a supermethod is removed, its overrides are removable too
+      assertTrue(removable.contains(shapeArea));
+      assertTrue(removable.contains(squareArea));
+      assertTrue(removable.contains(drawableDraw));
+      assertTrue(removable.contains(canvasDraw));
+    }
+  }
+
+  private static SootClass addClass(String name, int modifiers, SootClass superclass) {
+    SootClass cls = new SootClass(name, modifiers);
+    if (superclass != null) {
+      cls.setSuperclass(superclass);
+    }
+    Scene.v().addClass(cls);
+    return cls;
+  }
+
+  private static SootMethod addMethod(SootClass cls, String name, int modifiers) {
+    SootMethod method =
+        new SootMethod(name, Collections.<Type>emptyList(), IntType.v(), modifiers);
+    cls.addMethod(method);
+    return method;
+  }
+
+  /** An empty class file, used as the constant pool of the application class. */
+  private interface Marker {}
+}
@@ -0,0 +1,141 @@
+package averroes.tests.junit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import averroes.soot.VisibleTypes;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import soot.ArrayType;
+import soot.G;
+import soot.IntType;
+import soot.LongType;
+import soot.Modifier;
+import soot.RefType;
+import soot.Scene;
+import soot.SootClass;
+import soot.Type;
+
+public class TestVisibleTypes {
+
+  private SootClass object;
+  private SootClass cloneable;
+  private SootClass serializable;
+  private SootClass pet;
+  private SootClass animal;
+  private SootClass dog;
+  private SootClass cat;
+  private SootClass stone;
+
+  @Before
+  public void createHierarchy() {
+    G.reset();
+
+    object = addClass("java.lang.Object", Modifier.PUBLIC, null);
+    cloneable = addClass("java.lang.Cloneable", Modifier.PUBLIC | Modifier.INTERFACE, object);
+    serializable = addClass("java.io.Serializable", Modifier.PUBLIC | Modifier.INTERFACE, object);
+    pet = addClass("lib.Pet", Modifier.PUBLIC | Modifier.INTERFACE, object);
+    animal = addClass("lib.Animal", Modifier.PUBLIC, object);
+    dog = addClass("lib.Dog", Modifier.PUBLIC, animal);
+    dog.addInterface(pet);
+    cat = addClass("lib.Cat", Modifier.PUBLIC, animal);
+    stone = addClass("lib.Stone", Modifier.PUBLIC, object);
+  }
+
+  @Test
+  public void testSuperclass() {
+    VisibleTypes visibleTypes = visibleTypes(animal.getType());
+
+    assertTrue(visibleTypes.canFlowTo(animal));
+    assertTrue(visibleTypes.canFlowTo(dog));
+    assertTrue(visibleTypes.canFlowTo(cat.getType()));
+    assertFalse(visibleTypes.canFlowTo(stone));
+    assertFalse(visibleTypes.canFlowTo(object));
+  }
+
+  @Test
+  public void testInterface() {
+    VisibleTypes visibleTypes = visibleTypes(pet.getType());
+
+    assertTrue(visibleTypes.canFlowTo(dog));
+    assertFalse(visibleTypes.canFlowTo(cat));
+    assertFalse(visibleTypes.canFlowTo(animal));
+  }
+
+  @Test
+  public void testPrimitiveType() {
+    VisibleTypes visibleTypes = visibleTypes(IntType.v());
+
+    assertTrue(visibleTypes.canFlowTo(IntType.v()));
+    assertFalse(visibleTypes.canFlowTo(LongType.v()));
+  }
+
+  @Test
+  public void testArrayOfClasses() {
+    VisibleTypes visibleTypes = visibleTypes(ArrayType.v(animal.getType(), 1));
+
+    assertTrue(visibleTypes.canFlowTo(ArrayType.v(animal.getType(), 1)));
+    assertTrue(visibleTypes.canFlowTo(ArrayType.v(dog.getType(), 1)));
+    assertFalse(visibleTypes.canFlowTo(ArrayType.v(stone.getType(), 1)));
+    assertFalse(visibleTypes.canFlowTo(ArrayType.v(dog.getType(), 2)));
+    assertFalse(visibleTypes.canFlowTo(ArrayType.v(IntType.v(), 1)));
+    assertFalse(visibleTypes.canFlowTo(dog));
+  }
+
+  @Test
+  public void testArrayOfPrimitives() {
+    VisibleTypes visibleTypes = visibleTypes(ArrayType.v(IntType.v(), 1));
+
+    assertTrue(visibleTypes.canFlowTo(ArrayType.v(IntType.v(), 1)));
+    assertFalse(visibleTypes.canFlowTo(ArrayType.v(LongType.v(), 1)));
+    assertFalse(visibleTypes.canFlowTo(ArrayType.v(IntType.v(), 2)));
+    assertFalse(visibleTypes.canFlowTo(IntType.v()));
+  }
+
+  @Test
+  public void testMultiDimensionalArray() {
+    VisibleTypes visibleTypes = visibleTypes(ArrayType.v(object.getType(), 1));
+
+    // An int[][] is an Object[], but an int[] is not
+    assertTrue(visibleTypes.canFlowTo(ArrayType.v(IntType.v(), 2)));
+    assertTrue(visibleTypes.canFlowTo(ArrayType.v(stone.getType(), 1)));
+    assertFalse(visibleTypes.canFlowTo(ArrayType.v(IntType.v(), 1)));
+    assertFalse(visibleTypes.canFlowTo(stone));
+  }
+
+  @Test
+  public void testArraySupertypes() {
+    for (SootClass supertype : Arrays.asList(object, cloneable, serializable)) {
+      VisibleTypes visibleTypes = visibleTypes(supertype.getType());
+
+      assertTrue(visibleTypes.canFlowTo(ArrayType.v(IntType.v(), 1)));
+      assertTrue(visibleTypes.canFlowTo(ArrayType.v(stone.getType(), 1)));
+      assertTrue(visibleTypes.canFlowTo(ArrayType.v(dog.getType(), 3)));
+    }
+  }
+
+  @Test
+  public void testObjectIsVisible() {
+    // Once java.lang.Object is visible, every object can flow to it
+    VisibleTypes visibleTypes = visibleTypes(object.getType());
+
+    assertTrue(visibleTypes.canFlowTo(stone));
+    assertTrue(visibleTypes.canFlowTo(dog));
+    assertTrue(visibleTypes.canFlowTo(ArrayType.v(LongType.v(), 2)));
+    assertFalse(visibleTypes(serializable.getType()).canFlowTo(stone));
+  }
+
+  private static VisibleTypes visibleTypes(Type... types) {
+    return new VisibleTypes(Arrays.asList(types));
+  }
+
+  private static SootClass addClass(String name, int modifiers, SootClass superclass) {
+    SootClass cls = new SootClass(name, modifiers);
+    if (superclass != null) {
+      cls.setSuperclass(superclass);
+    }
+    Scene.v().addClass(cls);
+    return cls;
+  }
+}